@@ -0,0 +1,183 @@
+/*
+ * Copyright (c) 2011 Matthew Francis
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package org.itadaki.bzip2;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+
+/**
+ * <p>Compresses a single BZip2 block into a private buffer rather than directly onto the output
+ * stream. As the compressed form of a block does not depend on any other block, any number of
+ * tasks may be compressed concurrently and then written out in their original order with
+ * {@link #writeTo(BitOutputStream)}</p>
+ *
+ * <p>The block data is written through {@link #getBlockCompressor()} on the calling thread before
+ * the task is submitted; {@link #call()} then performs the expensive stages of the compression.</p>
+ */
+class BZip2BlockCompressionTask implements Callable<BZip2BlockCompressionTask> {
+
+	/**
+	 * The buffer to which the compressed block is written
+	 */
+	private final ByteArrayOutputStream buffer;
+
+	/**
+	 * A bit-level wrapper for {@link #buffer}
+	 */
+	private final BitOutputStream bitOutputStream;
+
+	/**
+	 * The compressor for the block
+	 */
+	private final BZip2BlockCompressor blockCompressor;
+
+	/**
+	 * The pool from which the block's workspace was taken
+	 */
+	private final BZip2WorkspacePool workspacePool;
+
+	/**
+	 * The workspace providing the block's working arrays. Returned to the pool once the block has
+	 * been compressed
+	 */
+	private final BZip2BlockWorkspace workspace;
+
+	/**
+	 * The exact length in bits of the compressed block. Only valid after calling {@link #call()}
+	 */
+	private long bitLength;
+
+	/**
+	 * {@link #NEW}, {@link #STARTED} or {@link #RELEASED}. Whichever of {@link #call()} and
+	 * {@link #abandon()} moves the task on from {@link #NEW} is responsible for returning the
+	 * workspace to the pool
+	 */
+	private final AtomicInteger state = new AtomicInteger (NEW);
+
+	/**
+	 * The task has neither been run nor abandoned
+	 */
+	private static final int NEW = 0;
+
+	/**
+	 * The task has been run, and releases its workspace on completion
+	 */
+	private static final int STARTED = 1;
+
+	/**
+	 * The task was abandoned before it ran, and its workspace has been released
+	 */
+	private static final int RELEASED = 2;
+
+
+	/**
+	 * @return The compressor to which the uncompressed block data should be written
+	 */
+	public BZip2BlockCompressor getBlockCompressor() {
+
+		return this.blockCompressor;
+
+	}
+
+
+	/**
+	 * Compresses the block into the private buffer
+	 * @return This task
+	 * @throws IOException on any error compressing the block
+	 */
+	public BZip2BlockCompressionTask call() throws IOException {
+
+		if (!this.state.compareAndSet (NEW, STARTED)) {
+			throw new CancellationException ("BZip2 block compression task abandoned");
+		}
+
+		try {
+			this.blockCompressor.close();
+		} finally {
+			this.workspacePool.release (this.workspace);
+		}
+		this.bitLength = this.bitOutputStream.getBitsWritten();
+		this.bitOutputStream.flush();
+
+		return this;
+
+	}
+
+
+	/**
+	 * Returns the workspace to the pool if the task has not yet been run, and prevents it from
+	 * running later. A task that is already running releases its workspace itself when it completes
+	 */
+	public void abandon() {
+
+		if (this.state.compareAndSet (NEW, RELEASED)) {
+			this.workspacePool.release (this.workspace);
+		}
+
+	}
+
+
+	/**
+	 * Writes the compressed block to a stream. Only valid after calling {@link #call()}
+	 * @param outputStream The stream to write the block to. The block need not begin on a byte
+	 *                     boundary within the stream
+	 * @throws IOException on any I/O error writing to the output stream
+	 */
+	public void writeTo (final BitOutputStream outputStream) throws IOException {
+
+		outputStream.writeBitString (this.buffer.toByteArray(), this.bitLength);
+
+	}
+
+
+	/**
+	 * Gets the CRC of the compressed block. Only valid after calling {@link #call()}
+	 * @return The block's CRC
+	 */
+	public int getCRC() {
+
+		return this.blockCompressor.getCRC();
+
+	}
+
+
+	/**
+	 * @param blockSize The declared block size in bytes
+	 * @param effort The compression effort
+	 * @param workspacePool The pool from which to take a workspace for the block
+	 */
+	public BZip2BlockCompressionTask (final int blockSize, final int effort, final BZip2WorkspacePool workspacePool) {
+
+		this.buffer = new ByteArrayOutputStream (blockSize >>> 1);
+		this.bitOutputStream = new BitOutputStream (this.buffer);
+		this.workspacePool = workspacePool;
+		this.workspace = workspacePool.acquire();
+		this.blockCompressor = new BZip2BlockCompressor (this.bitOutputStream, blockSize, effort, this.workspace);
+
+	}
+
+}
@@ -23,6 +23,7 @@
 package org.itadaki.bzip2;
 
 import java.io.IOException;
+import java.nio.ByteBuffer;
 
 
 /*
@@ -76,6 +77,26 @@ public class BZip2BlockCompressor {
 	 */
 	private final int[] bwtBlock;
 
+	/**
+	 * The compression effort applied to the block's Huffman stage
+	 */
+	private final int effort;
+
+	/**
+	 * The workspace providing the block's working arrays
+	 */
+	private final BZip2BlockWorkspace workspace;
+
+	/**
+	 * The listener to which the block's figures are reported, or {@code null}
+	 */
+	private BZip2BlockListener listener = null;
+
+	/**
+	 * The number of input bytes written to the block
+	 */
+	private int inputLength = 0;
+
 	/**
 	 * The current RLE value being accumulated (undefined when {@link #rleLength} is 0)
 	 */
@@ -88,7 +109,7 @@ public class BZip2BlockCompressor {
 
 
 	/**
-	 * Writes an RLE run to the block array, updating the block CRC and present values array as required
+	 * Writes an RLE run to the block array, updating the present values array as required
 	 * @param value The value to write
 	 * @param runLength The run length of the value to write
 	 */
@@ -98,7 +119,6 @@ public class BZip2BlockCompressor {
 		final byte[] block = this.block;
 
 		this.blockValuesPresent[value] = true;
-		this.crc.updateCRC (value, runLength);
 
 		final byte byteValue = (byte)value;
 		switch (runLength) {
@@ -136,11 +156,12 @@ public class BZip2BlockCompressor {
 
 
 	/**
-	 * Writes a byte to the block, accumulating to an RLE run where possible
+	 * Accumulates a byte to the current RLE run, writing out the previous run where necessary. The
+	 * block CRC is not updated; this is the responsibility of the caller
 	 * @param value The byte to write
 	 * @return {@code true} if the byte was written, or {@code false} if the block is already full
 	 */
-	public boolean write (final int value) {
+	private boolean writeValue (final int value) {
 
 		if (this.blockLength > this.blockLengthLimit) {
 			return false;
@@ -171,6 +192,24 @@ public class BZip2BlockCompressor {
 	}
 
 
+	/**
+	 * Writes a byte to the block, accumulating to an RLE run where possible
+	 * @param value The byte to write
+	 * @return {@code true} if the byte was written, or {@code false} if the block is already full
+	 */
+	public boolean write (final int value) {
+
+		if (!writeValue (value)) {
+			return false;
+		}
+
+		this.crc.updateCRC (value);
+		this.inputLength++;
+		return true;
+
+	}
+
+
 	/**
 	 * Writes an array to the block
 	 * @param data The array to write
@@ -179,17 +218,54 @@ public class BZip2BlockCompressor {
 	 * @return The actual number of input bytes written. May be less than the number requested, or
 	 *         zero if the block is already full
 	 */
-	public int write (final byte[] data, int offset, int length) {
+	public int write (final byte[] data, final int offset, final int length) {
 
-		int written = 0;
+		final int limit = offset + length;
+		int position = offset;
 
-		while (length-- > 0) {
-			if (!write (data[offset++])) {
-				break;
-			}
-			written++;
+		while ((position < limit) && writeValue (data[position])) {
+			position++;
 		}
 
+		// The CRC is calculated over the accepted input in a single pass
+		final int written = position - offset;
+		this.crc.updateCRC (data, offset, written);
+		this.inputLength += written;
+
+		return written;
+
+	}
+
+
+	/**
+	 * Writes the remaining bytes of a buffer to the block, advancing the buffer's position past the
+	 * bytes accepted. Direct buffers are read in place
+	 * @param data The buffer to write
+	 * @return The actual number of input bytes written. May be less than the number remaining, or
+	 *         zero if the block is already full
+	 */
+	public int write (final ByteBuffer data) {
+
+		final int start = data.position();
+
+		if (data.hasArray()) {
+			final int written = write (data.array(), data.arrayOffset() + start, data.remaining());
+			data.position (start + written);
+			return written;
+		}
+
+		final int limit = data.limit();
+		int position = start;
+
+		while ((position < limit) && writeValue (data.get (position))) {
+			position++;
+		}
+
+		final int written = position - start;
+		this.crc.updateCRC (data, start, written);
+		this.inputLength += written;
+		data.position (position);
+
 		return written;
 
 	}
@@ -209,10 +285,17 @@ public class BZip2BlockCompressor {
 		// Apply a one byte block wrap required by the BWT implementation
 		this.block[this.blockLength] = this.block[0];
 
+		// Stage timings are only taken when there is a listener to report them to
+		final BZip2BlockListener listener = this.listener;
+		final long startBits = (listener != null) ? this.bitOutputStream.getBitsWritten() : 0;
+		final long startTime = (listener != null) ? System.nanoTime() : 0;
+
 		// Perform the Burrows Wheeler Transform
 		BZip2DivSufSort divSufSort = new BZip2DivSufSort (this.block, this.bwtBlock, this.blockLength);
 		int bwtStartPointer = divSufSort.bwt();
 
+		final long bwtEndTime = (listener != null) ? System.nanoTime() : 0;
+
 		// Write out the block header
 		this.bitOutputStream.writeBits (24, BZip2Constants.BLOCK_HEADER_MARKER_1);
 		this.bitOutputStream.writeBits (24, BZip2Constants.BLOCK_HEADER_MARKER_2);
@@ -221,8 +304,24 @@ public class BZip2BlockCompressor {
 		this.bitOutputStream.writeBits (24, bwtStartPointer);
 
 		// Perform the Huffman Encoding stage and write out the encoded data
-		BZip2HuffmanStageEncoder huffmanEncoder = new BZip2HuffmanStageEncoder (this.bitOutputStream, this.blockValuesPresent, this.bwtBlock, this.blockLength);
-		huffmanEncoder.encode();
+		final char[] mtfBlock = this.workspace.getCharArray (this.blockLength + 1);
+		BZip2HuffmanStageEncoder huffmanEncoder = new BZip2HuffmanStageEncoder (this.bitOutputStream, this.blockValuesPresent, this.bwtBlock, this.blockLength, mtfBlock, this.effort);
+		if (listener == null) {
+			huffmanEncoder.encode();
+		} else {
+			huffmanEncoder.moveToFrontAndRunLengthEncode();
+			final long mtfEndTime = System.nanoTime();
+			huffmanEncoder.encodeHuffmanStage();
+			final long huffmanEndTime = System.nanoTime();
+
+			listener.blockCompressed (new BZip2BlockStatistics (
+					this.inputLength,
+					this.bitOutputStream.getBitsWritten() - startBits,
+					bwtEndTime - startTime,
+					mtfEndTime - bwtEndTime,
+					huffmanEndTime - mtfEndTime
+			));
+		}
 
 	}
 
@@ -239,6 +338,18 @@ public class BZip2BlockCompressor {
 	}
 
 
+	/**
+	 * Sets the listener to which the block's figures are reported when it is closed. Stage timings
+	 * are only taken while a listener is set
+	 * @param listener The listener, or {@code null} for none
+	 */
+	void setListener (final BZip2BlockListener listener) {
+
+		this.listener = listener;
+
+	}
+
+
 	/**
 	 * Gets the CRC of the completed block. Only valid after calling {@link #close()}
 	 * @return The block's CRC
@@ -257,12 +368,30 @@ public class BZip2BlockCompressor {
 	 */
 	public BZip2BlockCompressor (final BitOutputStream bitOutputStream, final int blockSize) {
 
+		this (bitOutputStream, blockSize, BZip2OutputStream.MAXIMUM_EFFORT, new BZip2BlockWorkspace());
+
+	}
+
+
+	/**
+	 * @param bitOutputStream The stream to which compressed BZip2 data is written
+	 * @param blockSize The declared block size in bytes. Up to this many bytes will be accepted
+	 *                  into the block after Run-Length Encoding is applied
+	 * @param effort The compression effort, from {@link BZip2OutputStream#MINIMUM_EFFORT} to
+	 *               {@link BZip2OutputStream#MAXIMUM_EFFORT}
+	 * @param workspace The workspace providing the block's working arrays. The workspace must not
+	 *                  be used for any other block until this block has been closed
+	 */
+	BZip2BlockCompressor (final BitOutputStream bitOutputStream, final int blockSize, final int effort, final BZip2BlockWorkspace workspace) {
+
 		this.bitOutputStream = bitOutputStream;
+		this.effort = effort;
+		this.workspace = workspace;
 
 		// One extra byte is added to allow for the block wrap applied in close()
-		this.block = new byte[blockSize + 1];
-		this.bwtBlock = new int[blockSize + 1];
-		this.blockLengthLimit = blockSize - 6; // 5 bytes for one RLE run plus one byte - see {@link #write(int)}
+		this.block = workspace.getByteArray (blockSize + 1);
+		this.bwtBlock = workspace.getIntArray (blockSize + 1);
+		this.blockLengthLimit = blockSize - 6; // 5 bytes for one RLE run plus one byte - see {@link #writeValue(int)}
 
 	}
 
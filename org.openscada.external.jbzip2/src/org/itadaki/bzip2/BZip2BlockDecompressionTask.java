@@ -0,0 +1,323 @@
+/*
+ * Copyright (c) 2011 Matthew Francis
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package org.itadaki.bzip2;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.concurrent.Callable;
+
+
+/**
+ * <p>Decompresses a single BZip2 block from a buffer of compressed data, starting at a given bit
+ * offset. Blocks are located by searching for the block header marker rather than by decoding the
+ * blocks before them, so any number of tasks may be run concurrently. A task may have been started
+ * at a false match of the marker within some other block's data; such tasks are simply discarded
+ * when the true sequence of blocks passes over them.</p>
+ *
+ * <p>The whole block is decoded and its CRC verified by {@link #call()}, after which the
+ * decompressed data is returned through {@link #read()} and {@link #read(byte[], int, int)}.</p>
+ */
+class BZip2BlockDecompressionTask implements Callable<BZip2BlockDecompressionTask> {
+
+	/**
+	 * The buffer of compressed data containing the block
+	 */
+	private final byte[] data;
+
+	/**
+	 * The length of valid data in {@link #data}
+	 */
+	private final int dataLength;
+
+	/**
+	 * The bit offset within {@link #data} of the block header marker
+	 */
+	private final long bitOffset;
+
+	/**
+	 * The declared block size of the stream
+	 */
+	private final int blockSize;
+
+	/**
+	 * {@code true} if {@link #data} extends to the end of the compressed input, otherwise
+	 * {@code false}
+	 */
+	private final boolean finalData;
+
+	/**
+	 * The pool from which to take a workspace for the block
+	 */
+	private final BZip2WorkspacePool workspacePool;
+
+	/**
+	 * If {@code true}, the block's figures are recorded in {@link #statistics}
+	 */
+	private final boolean recordStatistics;
+
+	/**
+	 * The figures recorded for the block, or {@code null} if none were recorded
+	 */
+	private BZip2BlockStatistics statistics = null;
+
+	/**
+	 * {@code true} if the block ran beyond the end of {@link #data} before the end of the input was
+	 * reached, and must be retried when more data is available
+	 */
+	private boolean truncated = false;
+
+	/**
+	 * The bit offset within {@link #data} immediately following the block
+	 */
+	private long endBitOffset;
+
+	/**
+	 * The verified CRC of the block
+	 */
+	private int blockCRC;
+
+	/**
+	 * The decompressed block data
+	 */
+	private byte[] output;
+
+	/**
+	 * The length of valid data in {@link #output}
+	 */
+	private int outputLength;
+
+	/**
+	 * The position of the next byte to be read from {@link #output}
+	 */
+	private int outputPosition = 0;
+
+
+	/**
+	 * Decodes the block and verifies its CRC
+	 * @return This task
+	 * @throws IOException if the block could not be decoded or failed CRC verification
+	 */
+	public BZip2BlockDecompressionTask call() throws IOException {
+
+		final int startByte = (int)(this.bitOffset >>> 3);
+		final BitInputStream bitInputStream = new BitInputStream (this.data, startByte, this.dataLength - startByte);
+		final BZip2BlockWorkspace workspace = this.workspacePool.acquire();
+
+		try {
+			// Skip to the block header marker, which is already known to be present
+			bitInputStream.readBits ((int)(this.bitOffset & 7));
+			bitInputStream.readBits (24);
+			bitInputStream.readBits (24);
+
+			// Figures are recorded rather than reported directly, as the block may yet be discarded
+			final BZip2BlockListener recorder = !this.recordStatistics ? null : new BZip2BlockListener() {
+
+				public void blockCompressed (final BZip2BlockStatistics statistics) {
+
+					// Not called for a decompressor
+
+				}
+
+				public void blockDecompressed (final BZip2BlockStatistics statistics) {
+
+					BZip2BlockDecompressionTask.this.statistics = statistics;
+
+				}
+
+			};
+
+			final BZip2BlockDecompressor blockDecompressor = new BZip2BlockDecompressor (bitInputStream, this.blockSize, workspace, false, recorder);
+			this.endBitOffset = ((long)startByte << 3) + bitInputStream.getBitsRead();
+
+			byte[] output = new byte[this.blockSize + (this.blockSize >>> 2)];
+			int outputLength = 0;
+			int bytesRead;
+			while ((bytesRead = blockDecompressor.read (output, outputLength, output.length - outputLength)) != -1) {
+				outputLength += bytesRead;
+				if (outputLength == output.length) {
+					output = Arrays.copyOf (output, output.length << 1);
+				}
+			}
+
+			this.blockCRC = blockDecompressor.checkCRC();
+			this.output = output;
+			this.outputLength = outputLength;
+		} catch (EOFException e) {
+			// Running out of data at the end of the buffer only means that more data is needed,
+			// unless the buffer extends to the end of the input
+			if (this.finalData) {
+				throw e;
+			}
+			this.truncated = true;
+		} finally {
+			this.workspacePool.release (workspace);
+		}
+
+		return this;
+
+	}
+
+
+	/**
+	 * @return The bit offset within the buffer of compressed data of the block header marker
+	 */
+	public long getBitOffset() {
+
+		return this.bitOffset;
+
+	}
+
+
+	/**
+	 * Only valid after calling {@link #call()}
+	 * @return {@code true} if the block could not be decoded because it extends beyond the end of the
+	 *         buffer of compressed data, otherwise {@code false}
+	 */
+	public boolean isTruncated() {
+
+		return this.truncated;
+
+	}
+
+
+	/**
+	 * Only valid after calling {@link #call()}
+	 * @return The bit offset within the buffer of compressed data immediately following the block
+	 */
+	public long getEndBitOffset() {
+
+		return this.endBitOffset;
+
+	}
+
+
+	/**
+	 * Only valid after calling {@link #call()}
+	 * @return The verified block CRC
+	 */
+	public int getCRC() {
+
+		return this.blockCRC;
+
+	}
+
+
+	/**
+	 * Only valid after calling {@link #call()}
+	 * @return The figures recorded for the block, or {@code null} if none were recorded
+	 */
+	public BZip2BlockStatistics getStatistics() {
+
+		return this.statistics;
+
+	}
+
+
+	/**
+	 * Reads a byte of decompressed data
+	 * @return The byte read, or -1 if there are no more bytes
+	 */
+	public int read() {
+
+		if (this.outputPosition == this.outputLength) {
+			return -1;
+		}
+
+		return this.output[this.outputPosition++] & 0xff;
+
+	}
+
+
+	/**
+	 * Reads multiple bytes of decompressed data
+	 * @param destination The array to write to
+	 * @param offset The starting position within the array
+	 * @param length The number of bytes to read
+	 * @return The number of bytes actually read, or -1 if there are no bytes left in the block
+	 */
+	public int read (final byte[] destination, final int offset, final int length) {
+
+		final int available = this.outputLength - this.outputPosition;
+		if (available == 0) {
+			return -1;
+		}
+
+		final int bytesRead = Math.min (available, length);
+		System.arraycopy (this.output, this.outputPosition, destination, offset, bytesRead);
+		this.outputPosition += bytesRead;
+
+		return bytesRead;
+
+	}
+
+
+	/**
+	 * Reads decompressed data into the remaining space of a buffer, advancing the buffer's position
+	 * past the bytes read
+	 * @param destination The buffer to write to
+	 * @return The number of bytes actually read, or -1 if there are no bytes left in the block
+	 */
+	public int read (final ByteBuffer destination) {
+
+		final int available = this.outputLength - this.outputPosition;
+		if (available == 0) {
+			return -1;
+		}
+
+		final int bytesRead = Math.min (available, destination.remaining());
+		destination.put (this.output, this.outputPosition, bytesRead);
+		this.outputPosition += bytesRead;
+
+		return bytesRead;
+
+	}
+
+
+	/**
+	 * @param data The buffer of compressed data containing the block
+	 * @param dataLength The length of valid data in the buffer
+	 * @param bitOffset The bit offset within the buffer of the block header marker
+	 * @param blockSize The declared block size of the stream
+	 * @param finalData {@code true} if the buffer extends to the end of the compressed input,
+	 *                  otherwise {@code false}
+	 * @param workspacePool The pool from which to take a workspace for the block
+	 * @param recordStatistics If {@code true}, the block's figures are recorded for
+	 *                         {@link #getStatistics()}
+	 */
+	public BZip2BlockDecompressionTask (final byte[] data, final int dataLength, final long bitOffset, final int blockSize, final boolean finalData, final BZip2WorkspacePool workspacePool,
+			final boolean recordStatistics)
+	{
+
+		this.data = data;
+		this.dataLength = dataLength;
+		this.bitOffset = bitOffset;
+		this.blockSize = blockSize;
+		this.finalData = finalData;
+		this.workspacePool = workspacePool;
+		this.recordStatistics = recordStatistics;
+
+	}
+
+}
@@ -23,6 +23,8 @@
 package org.itadaki.bzip2;
 
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
 
 
 /*
@@ -91,7 +93,7 @@ public class BZip2BlockDecompressor {
 	private final BitInputStream bitInputStream;
 
 	/**
-	 * Calculates the block CRC from the fully decoded bytes of the block
+	 * Calculates the block CRC from the decoded bytes of the block as they are read
 	 */
 	private final CRC32 crc = new CRC32();
 
@@ -105,6 +107,16 @@ public class BZip2BlockDecompressor {
 	 */
 	private final boolean blockRandomised;
 
+	/**
+	 * The maximum decoded size of the block
+	 */
+	private final int blockSize;
+
+	/**
+	 * The workspace providing the block's working arrays
+	 */
+	private final BZip2BlockWorkspace workspace;
+
 	/* Huffman Decoding stage */
 
 	/**
@@ -151,6 +163,27 @@ public class BZip2BlockDecompressor {
 	 */
 	private int bwtCurrentMergedPointer;
 
+	/**
+	 * In low memory mode, the array that first holds the Burrows-Wheeler Transform processed data
+	 * in its first {@link #blockSize} bytes, and then holds each position's 20-bit pointer to its
+	 * successor, packed into 2.5 bytes : the low 8 bits in the first {@link #blockSize} bytes, the
+	 * next 8 bits in the following {@link #blockSize} bytes, and the high 4 bits in a final array of
+	 * nibbles. {@code null} if the block is not decoded in low memory mode
+	 */
+	private byte[] bwtPackedPointers;
+
+	/**
+	 * In low memory mode, the starting position of each byte value within the sorted block, with
+	 * a final entry equal to the block length. The byte value at a position is found by searching
+	 * this table
+	 */
+	private int[] bwtCharacterBase;
+
+	/**
+	 * In low memory mode, the position of the next byte to decode
+	 */
+	private int bwtCurrentPointer;
+
 	/**
 	 * The actual length in bytes of the current block at the Inverse Burrows Wheeler Transform
 	 * stage (before final Run-Length Decoding)
@@ -192,6 +225,32 @@ public class BZip2BlockDecompressor {
 	 */
 	private int randomCount = RNUMS[0] - 1;
 
+	/**
+	 * The listener to which the block's figures are reported, or {@code null}. Stage timings are
+	 * only taken when a listener is present
+	 */
+	private final BZip2BlockListener listener;
+
+	/**
+	 * The length in bits of the block's compressed data, including its header marker
+	 */
+	private long compressedBits;
+
+	/**
+	 * The time in nanoseconds spent in the Huffman and Move To Front decoding stages
+	 */
+	private long huffmanTime;
+
+	/**
+	 * The time in nanoseconds spent in the Inverse Burrows-Wheeler Transform stage
+	 */
+	private long burrowsWheelerTime;
+
+	/**
+	 * The number of bytes read from the block
+	 */
+	private int outputLength = 0;
+
 
 	/**
 	 * Read and decode the block's Huffman tables
@@ -202,7 +261,6 @@ public class BZip2BlockDecompressor {
 
 		final BitInputStream bitInputStream = this.bitInputStream;
 		final byte[] huffmanSymbolMap = this.huffmanSymbolMap;
-		final byte[][] tableCodeLengths = new byte[BZip2Constants.HUFFMAN_MAXIMUM_TABLES][BZip2Constants.HUFFMAN_MAXIMUM_ALPHABET_SIZE];
 
 		/* Read Huffman symbol to output byte map */
 		int huffmanUsedRanges = bitInputStream.readBits (16);
@@ -224,20 +282,32 @@ public class BZip2BlockDecompressor {
 		final int totalTables = bitInputStream.readBits (3);
 		final int totalSelectors = bitInputStream.readBits (15);
 
+		if ((totalTables < 2) || (totalTables > BZip2Constants.HUFFMAN_MAXIMUM_TABLES) || (totalSelectors < 1)) {
+			throw new IOException ("BZip2 block Huffman tables invalid");
+		}
+
 		/* Read and decode MTFed Huffman selector list */
 		final MoveToFront tableMTF = new MoveToFront();
 		final byte[] selectors = new byte[totalSelectors];
 		for (int selector = 0; selector < totalSelectors; selector++) {
-			selectors[selector] = tableMTF.indexToFront (bitInputStream.readUnary());
+			final int tableIndex = bitInputStream.readUnary();
+			if (tableIndex >= totalTables) {
+				throw new IOException ("BZip2 block Huffman tables invalid");
+			}
+			selectors[selector] = tableMTF.indexToFront (tableIndex);
 		}
 
 		/* Read the Canonical Huffman code lengths for each table */
+		final byte[][] tableCodeLengths = new byte[totalTables][BZip2Constants.HUFFMAN_MAXIMUM_ALPHABET_SIZE];
 		for (int table = 0; table < totalTables; table++) {
 			int currentLength = bitInputStream.readBits (5);
 			for (int i = 0; i <= endOfBlockSymbol; i++) {
 				while (bitInputStream.readBoolean()) {
 					currentLength += bitInputStream.readBoolean() ? -1 : 1;
 				}
+				if ((currentLength < 1) || (currentLength > BZip2Constants.HUFFMAN_DECODE_MAXIMUM_CODE_LENGTH)) {
+					throw new IOException ("BZip2 block Huffman tables invalid");
+				}
 				tableCodeLengths[table][i] = (byte)currentLength;
 			}
 		}
@@ -257,7 +327,7 @@ public class BZip2BlockDecompressor {
 
 		final byte[] bwtBlock = this.bwtBlock;
 		final byte[] huffmanSymbolMap = this.huffmanSymbolMap;
-		final int streamBlockSize = this.bwtBlock.length;
+		final int streamBlockSize = this.blockSize;
 		final int huffmanEndOfBlockSymbol = this.huffmanEndOfBlockSymbol;
 		final int[] bwtByteCounts = this.bwtByteCounts;
 		final MoveToFront symbolMTF = new MoveToFront();
@@ -319,7 +389,7 @@ public class BZip2BlockDecompressor {
 	private void initialiseInverseBWT (final int bwtStartPointer) throws IOException {
 
 		final byte[] bwtBlock  = this.bwtBlock;
-		final int[] bwtMergedPointers = new int[this.bwtBlockLength];
+		final int[] bwtMergedPointers = this.workspace.getIntArray (this.bwtBlockLength);
 		final int[] characterBase = new int[256];
 
 		if ((bwtStartPointer < 0) || (bwtStartPointer >= this.bwtBlockLength)) {
@@ -348,6 +418,91 @@ public class BZip2BlockDecompressor {
 	}
 
 
+	/**
+	 * Reads a pointer from the packed pointer array
+	 * @param packedPointers The packed pointer array
+	 * @param blockSize The declared block size
+	 * @param index The index of the pointer
+	 * @return The pointer
+	 */
+	private static int getPackedPointer (final byte[] packedPointers, final int blockSize, final int index) {
+
+		final int highBits = packedPointers[(blockSize << 1) + (index >>> 1)] >>> ((index & 1) << 2);
+
+		return (packedPointers[index] & 0xff) | ((packedPointers[blockSize + index] & 0xff) << 8) | ((highBits & 0x0f) << 16);
+
+	}
+
+
+	/**
+	 * Writes a pointer to the packed pointer array
+	 * @param packedPointers The packed pointer array
+	 * @param blockSize The declared block size
+	 * @param index The index of the pointer
+	 * @param pointer The pointer (maximum 20 bits)
+	 */
+	private static void setPackedPointer (final byte[] packedPointers, final int blockSize, final int index, final int pointer) {
+
+		final int highIndex = (blockSize << 1) + (index >>> 1);
+		final int highShift = (index & 1) << 2;
+
+		packedPointers[index] = (byte)pointer;
+		packedPointers[blockSize + index] = (byte)(pointer >>> 8);
+		packedPointers[highIndex] = (byte)((packedPointers[highIndex] & (0xf0 >>> highShift)) | (((pointer >>> 16) & 0x0f) << highShift));
+
+	}
+
+
+	/**
+	 * Set up the Inverse Burrows-Wheeler Transform in low memory mode. Each position is first
+	 * given a pointer to its predecessor, overwriting the block data in place, and the chain of
+	 * pointers is then reversed to point each position to its successor
+	 * @param bwtStartPointer The Burrows-Wheeler Transform start pointer
+	 * @throws IOException if the given start pointer is invalid
+	 */
+	private void initialisePackedInverseBWT (final int bwtStartPointer) throws IOException {
+
+		final byte[] packedPointers = this.bwtBlock;
+		final int blockSize = this.blockSize;
+		final int bwtBlockLength = this.bwtBlockLength;
+		final int[] characterBase = new int[257];
+		final int[] nextPointer = new int[256];
+
+		if ((bwtStartPointer < 0) || (bwtStartPointer >= bwtBlockLength)) {
+			throw new IOException ("BZip2 start pointer invalid");
+		}
+
+		// Cumulatise character counts
+		for (int i = 0; i < 256; i++) {
+			characterBase[i + 1] = characterBase[i] + this.bwtByteCounts[i];
+		}
+		System.arraycopy (characterBase, 0, nextPointer, 0, 256);
+
+		// Point each position to its predecessor. Each position's byte value is read before the
+		// packed pointer overwrites it
+		for (int i = 0; i < bwtBlockLength; i++) {
+			final int value = packedPointers[i] & 0xff;
+			setPackedPointer (packedPointers, blockSize, i, nextPointer[value]++);
+		}
+
+		// Reverse the chain of pointers, which forms a single cycle through every position
+		int i = bwtStartPointer;
+		int j = getPackedPointer (packedPointers, blockSize, i);
+		do {
+			final int next = getPackedPointer (packedPointers, blockSize, j);
+			setPackedPointer (packedPointers, blockSize, j, i);
+			i = j;
+			j = next;
+		} while (i != bwtStartPointer);
+
+		this.bwtBlock = null;
+		this.bwtPackedPointers = packedPointers;
+		this.bwtCharacterBase = characterBase;
+		this.bwtCurrentPointer = bwtStartPointer;
+
+	}
+
+
 	/**
 	 * Decodes a byte from the Burrows-Wheeler Transform stage. If the block has randomisation
 	 * applied, reverses the randomisation
@@ -355,9 +510,29 @@ public class BZip2BlockDecompressor {
 	 */
 	private int decodeNextBWTByte() {
 
-		int mergedPointer = this.bwtCurrentMergedPointer;
-		int nextDecodedByte =  mergedPointer & 0xff;
-		this.bwtCurrentMergedPointer = this.bwtMergedPointers[mergedPointer >>> 8];
+		int nextDecodedByte;
+
+		if (this.bwtPackedPointers != null) {
+			// Find the byte value whose range of sorted positions contains the current position
+			final int[] characterBase = this.bwtCharacterBase;
+			final int pointer = this.bwtCurrentPointer;
+			int low = 0;
+			int high = 256;
+			while ((high - low) > 1) {
+				final int middle = (low + high) >>> 1;
+				if (pointer >= characterBase[middle]) {
+					low = middle;
+				} else {
+					high = middle;
+				}
+			}
+			nextDecodedByte = low;
+			this.bwtCurrentPointer = getPackedPointer (this.bwtPackedPointers, this.blockSize, pointer);
+		} else {
+			final int mergedPointer = this.bwtCurrentMergedPointer;
+			nextDecodedByte = mergedPointer & 0xff;
+			this.bwtCurrentMergedPointer = this.bwtMergedPointers[mergedPointer >>> 8];
+		}
 
 		if (this.blockRandomised) {
 			if (--this.randomCount == 0) {
@@ -376,10 +551,11 @@ public class BZip2BlockDecompressor {
 
 	/**
 	 * Decodes a byte from the final Run-Length Encoding stage, pulling a new byte from the
-	 * Burrows-Wheeler Transform stage when required
+	 * Burrows-Wheeler Transform stage when required. The block CRC is not updated; this is the
+	 * responsibility of the caller
 	 * @return The decoded byte, or -1 if there are no more bytes
 	 */
-	public int read() {
+	private int decodeNextByte() {
 
 		while (this.rleRepeat < 1) {
 
@@ -394,17 +570,13 @@ public class BZip2BlockDecompressor {
 				this.rleLastDecodedByte = nextByte;
 				this.rleRepeat = 1;
 				this.rleAccumulator = 1;
-				this.crc.updateCRC (nextByte);
 			} else {
-				if (++this.rleAccumulator == 4) {
+				if ((++this.rleAccumulator == 4) && (this.bwtBytesDecoded < this.bwtBlockLength)) {
 					// Accumulation complete, start repetition
-					int rleRepeat = decodeNextBWTByte() + 1;
-					this.rleRepeat = rleRepeat;
+					this.rleRepeat = decodeNextBWTByte() + 1;
 					this.rleAccumulator = 0;
-					this.crc.updateCRC (nextByte, rleRepeat);
 				} else {
 					this.rleRepeat = 1;
-					this.crc.updateCRC (nextByte);
 				}
 			}
 
@@ -417,6 +589,25 @@ public class BZip2BlockDecompressor {
 	}
 
 
+	/**
+	 * Decodes a byte from the final Run-Length Encoding stage, pulling a new byte from the
+	 * Burrows-Wheeler Transform stage when required
+	 * @return The decoded byte, or -1 if there are no more bytes
+	 */
+	public int read() {
+
+		final int decoded = decodeNextByte();
+
+		if (decoded != -1) {
+			this.crc.updateCRC (decoded);
+			this.outputLength++;
+		}
+
+		return decoded;
+
+	}
+
+
 	/**
 	 * Decodes multiple bytes from the final Run-Length Encoding stage, pulling new bytes from the
 	 * Burrows-Wheeler Transform stage when required
@@ -425,24 +616,178 @@ public class BZip2BlockDecompressor {
 	 * @param length The number of bytes to read
 	 * @return The number of bytes actually read, or -1 if there are no bytes left in the block
 	 */
-	public int read (final byte[] destination, int offset, final int length) {
+	public int read (final byte[] destination, final int offset, final int length) {
+
+		final long startTime = (this.listener != null) ? System.nanoTime() : 0;
+
+		final int bytesRead = ((this.bwtMergedPointers == null) || this.blockRandomised) ? decodeBytesIndividually (destination, offset, length) : decodeBytes (destination, offset, length);
+
+		if (this.listener != null) {
+			this.burrowsWheelerTime += System.nanoTime() - startTime;
+		}
+
+		if ((bytesRead == 0) && (length > 0)) {
+			return -1;
+		}
+
+		// The CRC is calculated over the bytes read in a single pass
+		this.crc.updateCRC (destination, offset, bytesRead);
+		this.outputLength += bytesRead;
+
+		return bytesRead;
+
+	}
+
+
+	/**
+	 * Decodes multiple bytes from a block that is not randomised, writing whole runs at once. The
+	 * state of the Inverse Burrows-Wheeler Transform and Run-Length Decoding stages is held in
+	 * local variables for the duration of the call. The block CRC is not updated; this is the
+	 * responsibility of the caller
+	 * @param destination The array to write to
+	 * @param offset The starting position within the array
+	 * @param length The number of bytes to read
+	 * @return The number of bytes actually read
+	 */
+	private int decodeBytes (final byte[] destination, final int offset, final int length) {
+
+		final int[] bwtMergedPointers = this.bwtMergedPointers;
+		final int bwtBlockLength = this.bwtBlockLength;
+		final int limit = offset + length;
+
+		int mergedPointer = this.bwtCurrentMergedPointer;
+		int bwtBytesDecoded = this.bwtBytesDecoded;
+		int rleLastDecodedByte = this.rleLastDecodedByte;
+		int rleAccumulator = this.rleAccumulator;
+		int rleRepeat = this.rleRepeat;
+		int position = offset;
+
+		while (position < limit) {
+
+			if (rleRepeat > 0) {
+				// Write out as much of the current run as fits
+				final int count = Math.min (rleRepeat, limit - position);
+				if (count == 1) {
+					destination[position] = (byte)rleLastDecodedByte;
+				} else {
+					Arrays.fill (destination, position, position + count, (byte)rleLastDecodedByte);
+				}
+				position += count;
+				rleRepeat -= count;
+				continue;
+			}
+
+			if (bwtBytesDecoded == bwtBlockLength) {
+				break;
+			}
+
+			final int nextByte = mergedPointer & 0xff;
+			mergedPointer = bwtMergedPointers[mergedPointer >>> 8];
+			bwtBytesDecoded++;
+
+			if (nextByte != rleLastDecodedByte) {
+				// New byte, restart accumulation
+				rleLastDecodedByte = nextByte;
+				rleAccumulator = 1;
+				destination[position++] = (byte)nextByte;
+			} else if ((++rleAccumulator == 4) && (bwtBytesDecoded < bwtBlockLength)) {
+				// Accumulation complete, start repetition
+				rleRepeat = (mergedPointer & 0xff) + 1;
+				mergedPointer = bwtMergedPointers[mergedPointer >>> 8];
+				bwtBytesDecoded++;
+				rleAccumulator = 0;
+			} else {
+				destination[position++] = (byte)nextByte;
+			}
+
+		}
+
+		this.bwtCurrentMergedPointer = mergedPointer;
+		this.bwtBytesDecoded = bwtBytesDecoded;
+		this.rleLastDecodedByte = rleLastDecodedByte;
+		this.rleAccumulator = rleAccumulator;
+		this.rleRepeat = rleRepeat;
+
+		return position - offset;
+
+	}
+
+
+	/**
+	 * Decodes multiple bytes one at a time, for randomised blocks and blocks decoded in low memory
+	 * mode. The block CRC is not updated; this is the responsibility of the caller
+	 * @param destination The array to write to
+	 * @param offset The starting position within the array
+	 * @param length The number of bytes to read
+	 * @return The number of bytes actually read
+	 */
+	private int decodeBytesIndividually (final byte[] destination, final int offset, final int length) {
 
 		int i;
-		for (i = 0; i < length; i++, offset++) {
-			int decoded = read();
+		for (i = 0; i < length; i++) {
+			int decoded = decodeNextByte();
 			if (decoded == -1) {
-				return (i == 0) ? -1 : i;
+				break;
 			}
-			destination[offset] = (byte)decoded;
+			destination[offset + i] = (byte)decoded;
 		}
+
 		return i;
 
 	}
 
 
+	/**
+	 * Decodes bytes from the final Run-Length Encoding stage into the remaining space of a buffer,
+	 * advancing the buffer's position past the bytes read. Direct buffers are written in place
+	 * @param destination The buffer to write to
+	 * @return The number of bytes actually read, or -1 if there are no bytes left in the block
+	 */
+	public int read (final ByteBuffer destination) {
+
+		final int start = destination.position();
+
+		if (destination.hasArray()) {
+			final int bytesRead = read (destination.array(), destination.arrayOffset() + start, destination.remaining());
+			if (bytesRead > 0) {
+				destination.position (start + bytesRead);
+			}
+			return bytesRead;
+		}
+
+		final long startTime = (this.listener != null) ? System.nanoTime() : 0;
+
+		final int limit = destination.limit();
+		int position;
+		for (position = start; position < limit; position++) {
+			int decoded = decodeNextByte();
+			if (decoded == -1) {
+				break;
+			}
+			destination.put (position, (byte)decoded);
+		}
+
+		if (this.listener != null) {
+			this.burrowsWheelerTime += System.nanoTime() - startTime;
+		}
+
+		if ((position == start) && (limit > start)) {
+			return -1;
+		}
+
+		this.crc.updateCRC (destination, start, position - start);
+		this.outputLength += position - start;
+		destination.position (position);
+
+		return position - start;
+
+	}
+
+
 	/**
 	 * Verify and return the block CRC. This method may only be called after all of the block's
-	 * bytes have been read
+	 * bytes have been read. If a listener is present, the block's figures are reported to it once
+	 * the CRC has been verified
 	 * @return The block CRC
 	 * @throws IOException if the CRC verification failed
 	 */
@@ -452,6 +797,10 @@ public class BZip2BlockDecompressor {
 			throw new IOException ("BZip2 block CRC error");
 		}
 
+		if (this.listener != null) {
+			this.listener.blockDecompressed (new BZip2BlockStatistics (this.outputLength, this.compressedBits, this.burrowsWheelerTime, 0, this.huffmanTime));
+		}
+
 		return this.crc.getCRC();
 
 	}
@@ -464,8 +813,48 @@ public class BZip2BlockDecompressor {
 	 */
 	public BZip2BlockDecompressor (final BitInputStream bitInputStream, final int blockSize) throws IOException {
 
+		this (bitInputStream, blockSize, new BZip2BlockWorkspace(), false, null);
+
+	}
+
+
+	/**
+	 * @param bitInputStream The BitInputStream to read from
+	 * @param blockSize The maximum decoded size of the block
+	 * @param workspace The workspace providing the block's working arrays. The workspace must not be
+	 *                  used for any other block until all of this block's bytes have been read
+	 * @throws IOException If the block could not be decoded
+	 */
+	BZip2BlockDecompressor (final BitInputStream bitInputStream, final int blockSize, final BZip2BlockWorkspace workspace) throws IOException {
+
+		this (bitInputStream, blockSize, workspace, false, null);
+
+	}
+
+
+	/**
+	 * @param bitInputStream The BitInputStream to read from
+	 * @param blockSize The maximum decoded size of the block
+	 * @param workspace The workspace providing the block's working arrays. The workspace must not be
+	 *                  used for any other block until all of this block's bytes have been read
+	 * @param lowMemory If {@code true}, the Inverse Burrows-Wheeler Transform uses 2.5 bytes per
+	 *                  decoded byte in place of 5, at the cost of slower decoding
+	 * @param listener The listener to which the block's figures are reported by
+	 *                 {@link #checkCRC()}, or {@code null}
+	 * @throws IOException If the block could not be decoded
+	 */
+	BZip2BlockDecompressor (final BitInputStream bitInputStream, final int blockSize, final BZip2BlockWorkspace workspace, final boolean lowMemory,
+			final BZip2BlockListener listener) throws IOException
+	{
+
 		this.bitInputStream = bitInputStream;
-		this.bwtBlock = new byte[blockSize];
+		this.blockSize = blockSize;
+		this.workspace = workspace;
+		this.listener = listener;
+		this.bwtBlock = workspace.getByteArray (lowMemory ? ((blockSize << 1) + ((blockSize + 1) >>> 1)) : blockSize);
+
+		final long startBits = (listener != null) ? bitInputStream.getBitsRead() : 0;
+		final long startTime = (listener != null) ? System.nanoTime() : 0;
 
 		// Read block header
 		this.blockCRC = this.bitInputStream.readInteger();
@@ -475,7 +864,21 @@ public class BZip2BlockDecompressor {
 		// Read block data and decode through to the Inverse Burrows Wheeler Transform stage
 		BZip2HuffmanStageDecoder huffmanDecoder = readHuffmanTables();
 		decodeHuffmanData (huffmanDecoder);
-		initialiseInverseBWT (bwtStartPointer);
+
+		final long huffmanEndTime = (listener != null) ? System.nanoTime() : 0;
+
+		if (lowMemory) {
+			initialisePackedInverseBWT (bwtStartPointer);
+		} else {
+			initialiseInverseBWT (bwtStartPointer);
+		}
+
+		if (listener != null) {
+			// The 48 bit block header marker has already been read by the caller
+			this.compressedBits = 48 + bitInputStream.getBitsRead() - startBits;
+			this.huffmanTime = huffmanEndTime - startTime;
+			this.burrowsWheelerTime = System.nanoTime() - huffmanEndTime;
+		}
 
 	}
 
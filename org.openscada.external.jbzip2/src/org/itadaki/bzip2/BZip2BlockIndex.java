@@ -0,0 +1,383 @@
+/*
+ * Copyright (c) 2011 Matthew Francis
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package org.itadaki.bzip2;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Arrays;
+
+
+/**
+ * <p>An index of the blocks of a BZip2 stream, recording the bit offset of each block's header
+ * within the compressed stream against the offset of its first byte within the decompressed data.
+ * An index is built by {@link #build(InputStream)}, which decompresses the whole stream once and
+ * verifies its block and stream CRCs, and is used by {@link BZip2SeekableReader} to begin
+ * decompression at an arbitrary position. Any further streams concatenated to the first are
+ * indexed in turn, as a single continuous output.</p>
+ *
+ * <p>As building an index requires a full decompression pass, an index may be persisted alongside
+ * its compressed file with {@link #write(OutputStream)} and loaded again with
+ * {@link #read(InputStream)}.</p>
+ */
+public final class BZip2BlockIndex {
+
+	/**
+	 * The identifying marker at the start of a persisted index ("BZIX")
+	 */
+	private static final int INDEX_MARKER = 0x425a4958;
+
+	/**
+	 * The version of the persisted index format
+	 */
+	private static final int INDEX_VERSION = 1;
+
+	/**
+	 * The length in bytes of the compressed stream
+	 */
+	private final long compressedLength;
+
+	/**
+	 * The length in bytes of the decompressed data
+	 */
+	private final long uncompressedLength;
+
+
+	/**
+	 * The number of blocks in the stream
+	 */
+	private final int blockCount;
+
+	/**
+	 * For each block, the offset in bits of its block header marker within the compressed stream
+	 */
+	private final long[] blockBitOffsets;
+
+	/**
+	 * For each block, the offset in bytes of its first decompressed byte
+	 */
+	private final long[] blockUncompressedOffsets;
+
+	/**
+	 * For each block, the declared block size in bytes of the stream containing it
+	 */
+	private final int[] blockSizes;
+
+
+	/**
+	 * Builds an index by reading and decompressing a complete BZip2 stream and any streams
+	 * concatenated to it. The block CRCs and stream CRCs are verified as the streams are read
+	 * @param inputStream The stream to read from, positioned at the start of the BZip2 stream. The
+	 *                    stream is read beyond the end of the BZip2 data, and is not closed
+	 * @return The index
+	 * @throws IOException if the stream is not a valid BZip2 stream, or on any I/O error reading it
+	 */
+	public static BZip2BlockIndex build (final InputStream inputStream) throws IOException {
+
+		final BitInputStream bitInputStream = new BitInputStream (inputStream);
+
+		final int marker1 = bitInputStream.readBits (16);
+		final int marker2 = bitInputStream.readBits (8);
+		int blockSize = (bitInputStream.readBits (8) - '0');
+
+		if ((marker1 != BZip2Constants.STREAM_START_MARKER_1) || (marker2 != BZip2Constants.STREAM_START_MARKER_2) || (blockSize < 1) || (blockSize > 9)) {
+			throw new IOException ("Invalid BZip2 header");
+		}
+
+		final BZip2BlockWorkspace workspace = new BZip2BlockWorkspace();
+		final byte[] buffer = new byte[8192];
+
+		long[] blockBitOffsets = new long[16];
+		long[] blockUncompressedOffsets = new long[16];
+		int[] blockSizes = new int[16];
+		int blockCount = 0;
+		long uncompressedLength = 0;
+		int streamCRC = 0;
+
+		while (true) {
+			final long blockBitOffset = bitInputStream.getBitsRead();
+
+			final int blockMarker1 = bitInputStream.readBits (24);
+			final int blockMarker2 = bitInputStream.readBits (24);
+
+			if ((blockMarker1 == BZip2Constants.BLOCK_HEADER_MARKER_1) && (blockMarker2 == BZip2Constants.BLOCK_HEADER_MARKER_2)) {
+				if (blockCount == blockBitOffsets.length) {
+					blockBitOffsets = Arrays.copyOf (blockBitOffsets, blockCount * 2);
+					blockUncompressedOffsets = Arrays.copyOf (blockUncompressedOffsets, blockCount * 2);
+					blockSizes = Arrays.copyOf (blockSizes, blockCount * 2);
+				}
+				blockBitOffsets[blockCount] = blockBitOffset;
+				blockUncompressedOffsets[blockCount] = uncompressedLength;
+				blockSizes[blockCount] = blockSize * 100000;
+				blockCount++;
+
+				final BZip2BlockDecompressor blockDecompressor = new BZip2BlockDecompressor (bitInputStream, blockSize * 100000, workspace);
+				int bytesRead;
+				while ((bytesRead = blockDecompressor.read (buffer, 0, buffer.length)) != -1) {
+					uncompressedLength += bytesRead;
+				}
+
+				final int blockCRC = blockDecompressor.checkCRC();
+				streamCRC = ((streamCRC << 1) | (streamCRC >>> 31)) ^ blockCRC;
+			} else if ((blockMarker1 == BZip2Constants.STREAM_END_MARKER_1) && (blockMarker2 == BZip2Constants.STREAM_END_MARKER_2)) {
+				if (bitInputStream.readInteger() != streamCRC) {
+					throw new IOException ("BZip2 stream CRC error");
+				}
+
+				// Continue with any further stream concatenated at the next byte boundary
+				bitInputStream.alignToByte();
+				final int streamStartMarker = (BZip2Constants.STREAM_START_MARKER_1 << 8) | BZip2Constants.STREAM_START_MARKER_2;
+				if (!bitInputStream.hasBits (32) || (bitInputStream.peekBits (24) != streamStartMarker)) {
+					break;
+				}
+				bitInputStream.readBits (24);
+				blockSize = (bitInputStream.readBits (8) - '0');
+				if ((blockSize < 1) || (blockSize > 9)) {
+					throw new IOException ("Invalid BZip2 header");
+				}
+				streamCRC = 0;
+			} else {
+				throw new IOException ("BZip2 stream format error");
+			}
+		}
+
+		final long compressedLength = (bitInputStream.getBitsRead() + 7) >>> 3;
+
+		return new BZip2BlockIndex (
+				compressedLength,
+				uncompressedLength,
+				blockCount,
+				Arrays.copyOf (blockBitOffsets, blockCount),
+				Arrays.copyOf (blockUncompressedOffsets, blockCount),
+				Arrays.copyOf (blockSizes, blockCount)
+		);
+
+	}
+
+
+	/**
+	 * Reads an index previously written by {@link #write(OutputStream)}
+	 * @param inputStream The stream to read from. The stream is not closed
+	 * @return The index
+	 * @throws IOException if the stream does not contain a valid index, or on any I/O error reading
+	 *                     it
+	 */
+	public static BZip2BlockIndex read (final InputStream inputStream) throws IOException {
+
+		final DataInputStream dataInputStream = new DataInputStream (inputStream);
+
+		if (dataInputStream.readInt() != INDEX_MARKER) {
+			throw new IOException ("Invalid BZip2 block index");
+		}
+
+		if (dataInputStream.readInt() != INDEX_VERSION) {
+			throw new IOException ("Invalid BZip2 block index");
+		}
+
+		final long compressedLength = dataInputStream.readLong();
+		final long uncompressedLength = dataInputStream.readLong();
+		final int blockCount = dataInputStream.readInt();
+
+		if ((compressedLength < 0) || (uncompressedLength < 0) || (blockCount < 0) || (blockCount > compressedLength)) {
+			throw new IOException ("Invalid BZip2 block index");
+		}
+
+		final long[] blockBitOffsets = new long[blockCount];
+		final long[] blockUncompressedOffsets = new long[blockCount];
+		final int[] blockSizes = new int[blockCount];
+
+		long lastBitOffset = -1;
+		long lastUncompressedOffset = -1;
+		for (int i = 0; i < blockCount; i++) {
+			final long blockBitOffset = dataInputStream.readLong();
+			final long blockUncompressedOffset = dataInputStream.readLong();
+			final int blockSize = dataInputStream.readInt();
+			if (
+					   (blockBitOffset <= lastBitOffset) || (blockBitOffset >= (compressedLength << 3))
+					|| (blockUncompressedOffset <= lastUncompressedOffset) || (blockUncompressedOffset >= uncompressedLength)
+					|| (blockSize < 100000) || (blockSize > 900000))
+			{
+				throw new IOException ("Invalid BZip2 block index");
+			}
+			blockBitOffsets[i] = lastBitOffset = blockBitOffset;
+			blockUncompressedOffsets[i] = lastUncompressedOffset = blockUncompressedOffset;
+			blockSizes[i] = blockSize;
+		}
+
+		if ((blockCount == 0) ? (uncompressedLength != 0) : (blockUncompressedOffsets[0] != 0)) {
+			throw new IOException ("Invalid BZip2 block index");
+		}
+
+		return new BZip2BlockIndex (compressedLength, uncompressedLength, blockCount, blockBitOffsets, blockUncompressedOffsets, blockSizes);
+
+	}
+
+
+	/**
+	 * Writes the index in a form that can be read by {@link #read(InputStream)}
+	 * @param outputStream The stream to write to. The stream is flushed but not closed
+	 * @throws IOException on any I/O error writing to the stream
+	 */
+	public void write (final OutputStream outputStream) throws IOException {
+
+		final DataOutputStream dataOutputStream = new DataOutputStream (outputStream);
+
+		dataOutputStream.writeInt (INDEX_MARKER);
+		dataOutputStream.writeInt (INDEX_VERSION);
+		dataOutputStream.writeLong (this.compressedLength);
+		dataOutputStream.writeLong (this.uncompressedLength);
+		dataOutputStream.writeInt (this.blockCount);
+
+		for (int i = 0; i < this.blockCount; i++) {
+			dataOutputStream.writeLong (this.blockBitOffsets[i]);
+			dataOutputStream.writeLong (this.blockUncompressedOffsets[i]);
+			dataOutputStream.writeInt (this.blockSizes[i]);
+		}
+
+		dataOutputStream.flush();
+
+	}
+
+
+	/**
+	 * Finds the block containing a given decompressed position
+	 * @param position The decompressed position. Must be less than the decompressed length
+	 * @return The index of the block
+	 */
+	int findBlock (final long position) {
+
+		int low = 0;
+		int high = this.blockCount - 1;
+
+		while (low < high) {
+			final int middle = (low + high + 1) >>> 1;
+			if (this.blockUncompressedOffsets[middle] <= position) {
+				low = middle;
+			} else {
+				high = middle - 1;
+			}
+		}
+
+		return low;
+
+	}
+
+
+	/**
+	 * @param block The index of the block
+	 * @return The offset in bits of the block's header marker within the compressed stream
+	 */
+	long getBlockBitOffset (final int block) {
+
+		return this.blockBitOffsets[block];
+
+	}
+
+
+	/**
+	 * @param block The index of the block
+	 * @return The offset in bytes of the block's first decompressed byte
+	 */
+	long getBlockUncompressedOffset (final int block) {
+
+		return this.blockUncompressedOffsets[block];
+
+	}
+
+
+	/**
+	 * @param block The index of the block
+	 * @return The offset in bytes of the decompressed byte following the end of the block
+	 */
+	long getBlockUncompressedEnd (final int block) {
+
+		return ((block + 1) < this.blockCount) ? this.blockUncompressedOffsets[block + 1] : this.uncompressedLength;
+
+	}
+
+
+	/**
+	 * @param block The index of the block
+	 * @return The declared block size in bytes of the stream containing the block
+	 */
+	int getBlockSize (final int block) {
+
+		return this.blockSizes[block];
+
+	}
+
+
+	/**
+	 * @return The number of blocks in the stream
+	 */
+	public int getBlockCount() {
+
+		return this.blockCount;
+
+	}
+
+
+	/**
+	 * @return The length in bytes of the compressed stream
+	 */
+	public long getCompressedLength() {
+
+		return this.compressedLength;
+
+	}
+
+
+	/**
+	 * @return The length in bytes of the decompressed data
+	 */
+	public long getUncompressedLength() {
+
+		return this.uncompressedLength;
+
+	}
+
+
+	/**
+	 * @param compressedLength The length in bytes of the compressed stream
+	 * @param uncompressedLength The length in bytes of the decompressed data
+	 * @param blockCount The number of blocks in the stream
+	 * @param blockBitOffsets The bit offset of each block's header marker
+	 * @param blockUncompressedOffsets The decompressed offset of each block's first byte
+	 * @param blockSizes The declared block size of the stream containing each block
+	 */
+	private BZip2BlockIndex (final long compressedLength, final long uncompressedLength, final int blockCount, final long[] blockBitOffsets,
+			final long[] blockUncompressedOffsets, final int[] blockSizes)
+	{
+
+		this.compressedLength = compressedLength;
+		this.uncompressedLength = uncompressedLength;
+		this.blockCount = blockCount;
+		this.blockBitOffsets = blockBitOffsets;
+		this.blockUncompressedOffsets = blockUncompressedOffsets;
+		this.blockSizes = blockSizes;
+
+	}
+
+}
@@ -0,0 +1,52 @@
+/*
+ * Copyright (c) 2011 Matthew Francis
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+
+package org.itadaki.bzip2;
+
+
+/**
+ * <p>Receives the figures recorded for each block compressed by a {@link BZip2OutputStream} or
+ * decompressed by a {@link BZip2InputStream} to which it has been attached</p>
+ *
+ * <p>Blocks are reported as they are decompressed on the reading thread, in stream order. When a
+ * {@link BZip2OutputStream} compresses blocks on an executor, each block is reported on the
+ * executor thread that compressed it, so a listener may be called concurrently and out of block
+ * order. Listeners should return quickly, as the reporting thread is held until they do.</p>
+ *
+ * @see BZip2Statistics
+ */
+public interface BZip2BlockListener {
+
+	/**
+	 * Called once a block has been compressed
+	 * @param statistics The figures recorded for the block
+	 */
+	public void blockCompressed (BZip2BlockStatistics statistics);
+
+	/**
+	 * Called once all of a block's data has been decompressed and its CRC verified
+	 * @param statistics The figures recorded for the block
+	 */
+	public void blockDecompressed (BZip2BlockStatistics statistics);
+
+}
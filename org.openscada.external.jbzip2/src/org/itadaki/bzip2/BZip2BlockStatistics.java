@@ -0,0 +1,160 @@
+/*
+ * Copyright (c) 2011 Matthew Francis
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+
+package org.itadaki.bzip2;
+
+
+/**
+ * <p>The figures recorded for a single BZip2 block as it is compressed or decompressed, as reported
+ * to a {@link BZip2BlockListener}</p>
+ *
+ * <p>Stage times are measured in nanoseconds of elapsed time on the thread that processed the
+ * block. When decompressing, the Move To Front stage is decoded together with the Huffman stage,
+ * and its time is included in {@link #getHuffmanTime()}; the Inverse Burrows Wheeler Transform
+ * time includes the final run-length decoding of the block's bytes as they are read, and covers
+ * only reads of more than one byte at a time.</p>
+ */
+public class BZip2BlockStatistics {
+
+	/**
+	 * The length in bytes of the block's uncompressed data
+	 */
+	private final int uncompressedLength;
+
+	/**
+	 * The length in bits of the block's compressed data, including its header
+	 */
+	private final long compressedBits;
+
+	/**
+	 * The time spent in the (Inverse) Burrows Wheeler Transform stage
+	 */
+	private final long burrowsWheelerTime;
+
+	/**
+	 * The time spent in the Move To Front / Run-Length Encoding stage
+	 */
+	private final long moveToFrontTime;
+
+	/**
+	 * The time spent in the Huffman stage
+	 */
+	private final long huffmanTime;
+
+
+	/**
+	 * @return The length in bytes of the block's uncompressed data
+	 */
+	public int getUncompressedLength() {
+
+		return this.uncompressedLength;
+
+	}
+
+
+	/**
+	 * @return The length in bits of the block's compressed data, including its header
+	 */
+	public long getCompressedBits() {
+
+		return this.compressedBits;
+
+	}
+
+
+	/**
+	 * @return The ratio of the block's uncompressed length to its compressed length, or {@code 0}
+	 *         if the block is empty
+	 */
+	public double getCompressionRatio() {
+
+		return (this.compressedBits == 0) ? 0 : (this.uncompressedLength * 8.0) / this.compressedBits;
+
+	}
+
+
+	/**
+	 * @return The time in nanoseconds spent in the Burrows Wheeler Transform stage when
+	 *         compressing, or in the Inverse Burrows Wheeler Transform stage when decompressing
+	 */
+	public long getBurrowsWheelerTime() {
+
+		return this.burrowsWheelerTime;
+
+	}
+
+
+	/**
+	 * @return The time in nanoseconds spent in the Move To Front / Run-Length Encoding stage when
+	 *         compressing, or {@code 0} when decompressing
+	 */
+	public long getMoveToFrontTime() {
+
+		return this.moveToFrontTime;
+
+	}
+
+
+	/**
+	 * @return The time in nanoseconds spent in the Huffman stage
+	 */
+	public long getHuffmanTime() {
+
+		return this.huffmanTime;
+
+	}
+
+
+	/* (non-Javadoc)
+	 * @see java.lang.Object#toString()
+	 */
+	@Override
+	public String toString() {
+
+		return String.format ("BZip2BlockStatistics [uncompressed=%d, compressedBits=%d, ratio=%.3f, bwt=%dns, mtf=%dns, huffman=%dns]",
+				this.uncompressedLength, this.compressedBits, getCompressionRatio(), this.burrowsWheelerTime, this.moveToFrontTime, this.huffmanTime);
+
+	}
+
+
+	/**
+	 * @param uncompressedLength The length in bytes of the block's uncompressed data
+	 * @param compressedBits The length in bits of the block's compressed data
+	 * @param burrowsWheelerTime The time in nanoseconds spent in the (Inverse) Burrows Wheeler
+	 *                           Transform stage
+	 * @param moveToFrontTime The time in nanoseconds spent in the Move To Front stage
+	 * @param huffmanTime The time in nanoseconds spent in the Huffman stage
+	 */
+	public BZip2BlockStatistics (final int uncompressedLength, final long compressedBits, final long burrowsWheelerTime, final long moveToFrontTime,
+			final long huffmanTime)
+	{
+
+		this.uncompressedLength = uncompressedLength;
+		this.compressedBits = compressedBits;
+		this.burrowsWheelerTime = burrowsWheelerTime;
+		this.moveToFrontTime = moveToFrontTime;
+		this.huffmanTime = huffmanTime;
+
+	}
+
+}
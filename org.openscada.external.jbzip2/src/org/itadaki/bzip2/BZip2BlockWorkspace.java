@@ -0,0 +1,97 @@
+/*
+ * Copyright (c) 2011 Matthew Francis
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package org.itadaki.bzip2;
+
+
+/**
+ * <p>The large working arrays used to compress or decompress a single block. A workspace may be
+ * reused for any number of blocks in turn, in either direction, so that the arrays are allocated
+ * once rather than once per block. Arrays are allocated on first use and enlarged if a larger
+ * block is later processed; their contents are not cleared between uses.</p>
+ *
+ * <p>Instances of this class are not threadsafe, and may only be used for one block at a time.</p>
+ */
+final class BZip2BlockWorkspace {
+
+	/**
+	 * The block data (compression), or Burrows-Wheeler Transform array (decompression)
+	 */
+	private byte[] byteArray;
+
+	/**
+	 * The Burrows-Wheeler Transformed block (compression), or Inverse Burrows-Wheeler Transform
+	 * merged pointers (decompression)
+	 */
+	private int[] intArray;
+
+	/**
+	 * The Move To Front stage output (compression)
+	 */
+	private char[] charArray;
+
+
+	/**
+	 * @param length The minimum length required
+	 * @return A byte array of at least the requested length
+	 */
+	byte[] getByteArray (final int length) {
+
+		if ((this.byteArray == null) || (this.byteArray.length < length)) {
+			this.byteArray = new byte[length];
+		}
+
+		return this.byteArray;
+
+	}
+
+
+	/**
+	 * @param length The minimum length required
+	 * @return An int array of at least the requested length
+	 */
+	int[] getIntArray (final int length) {
+
+		if ((this.intArray == null) || (this.intArray.length < length)) {
+			this.intArray = new int[length];
+		}
+
+		return this.intArray;
+
+	}
+
+
+	/**
+	 * @param length The minimum length required
+	 * @return A char array of at least the requested length
+	 */
+	char[] getCharArray (final int length) {
+
+		if ((this.charArray == null) || (this.charArray.length < length)) {
+			this.charArray = new char[length];
+		}
+
+		return this.charArray;
+
+	}
+
+}
@@ -26,10 +26,19 @@ import java.io.IOException;
 
 
 /**
- * A decoder for the BZip2 Huffman coding stage
+ * <p>A decoder for the BZip2 Huffman coding stage</p>
+ *
+ * <p>Each table is decoded through a lookup table indexed by the next {@link #LOOKUP_BITS} bits
+ * of input, which resolves any code of up to that length in a single step. Longer codes, which
+ * are rare, are decoded a bit at a time from the canonical code limits.</p>
  */
 public class BZip2HuffmanStageDecoder {
 
+	/**
+	 * The number of bits of input used to index the lookup tables
+	 */
+	private static final int LOOKUP_BITS = 10;
+
 	/**
 	 * The BitInputStream from which Huffman codes are read
 	 */
@@ -62,6 +71,13 @@ public class BZip2HuffmanStageDecoder {
 	 */
 	private final int[][] codeSymbols = new int[BZip2Constants.HUFFMAN_MAXIMUM_TABLES][BZip2Constants.HUFFMAN_MAXIMUM_ALPHABET_SIZE];
 
+	/**
+	 * A lookup table for each Huffman table, indexed by the next {@link #LOOKUP_BITS} bits of input.
+	 * Where those bits begin with a complete code, the entry is ((symbol << 5) | code length);
+	 * where they are the prefix of a longer code, the entry is 0
+	 */
+	private final int[][] codeLookup;
+
 	/**
 	 * The Huffman table for the current group
 	 */
@@ -121,14 +137,27 @@ public class BZip2HuffmanStageDecoder {
 				code <<= 1;
 			}
 
-			// Populate the mapping from canonical code index to output symbol
+			// Populate the mapping from canonical code index to output symbol, and the lookup
+			// table entries for each code short enough to appear in it
+			final int[] tableLookup = this.codeLookup[table];
 			int codeIndex = 0;
+			code = 0;
 			for (int bitLength = minimumLength; bitLength <= maximumLength; bitLength++) {
 				for (int symbol = 0; symbol < alphabetSize; symbol++) {
 					if (codeLengths[symbol] == bitLength) {
 						tableSymbols[codeIndex++] = symbol;
+						if (bitLength <= LOOKUP_BITS) {
+							final int lookupStart = code << (LOOKUP_BITS - bitLength);
+							final int lookupEnd = Math.min ((code + 1) << (LOOKUP_BITS - bitLength), tableLookup.length);
+							final int entry = (symbol << 5) | bitLength;
+							for (int i = lookupStart; i < lookupEnd; i++) {
+								tableLookup[i] = entry;
+							}
+						}
+						code++;
 					}
 				}
+				code <<= 1;
 			}
 
 		}
@@ -147,15 +176,26 @@ public class BZip2HuffmanStageDecoder {
 
 		// Move to next group selector if required
 		if (((++this.groupPosition % BZip2Constants.HUFFMAN_GROUP_RUN_LENGTH) == 0)) {
-			this.currentTable = this.selectors[++this.groupIndex] & 0xff;
+			if (++this.groupIndex >= this.selectors.length) {
+				throw new IOException ("Error decoding BZip2 block");
+			}
+			this.currentTable = this.selectors[this.groupIndex] & 0xff;
 		}
 
 		final int currentTable = this.currentTable;
+
+		// Codes of up to LOOKUP_BITS bits are decoded in one step
+		final int entry = this.codeLookup[currentTable][bitInputStream.peekBits (LOOKUP_BITS)];
+		if (entry != 0) {
+			bitInputStream.skipBits (entry & 0x1f);
+			return entry >>> 5;
+		}
+
 		final int[] tableLimits = this.codeLimits[currentTable];
-		int codeLength = this.minimumLengths[currentTable];
+		int codeLength = Math.max (this.minimumLengths[currentTable], LOOKUP_BITS + 1);
 
-		// Starting with the minimum bit length for the table, read additional bits one at a time
-		// until a complete code is recognised
+		// Starting with the shortest length not covered by the lookup table, read additional bits
+		// one at a time until a complete code is recognised
 		int codeBits = bitInputStream.readBits (codeLength);
 		for (; codeLength <= BZip2Constants.HUFFMAN_DECODE_MAXIMUM_CODE_LENGTH; codeLength++) {
 			if (codeBits <= tableLimits[codeLength]) {
@@ -181,6 +221,7 @@ public class BZip2HuffmanStageDecoder {
 		this.bitInputStream = bitInputStream;
 		this.selectors = selectors;
 		this.currentTable = this.selectors[0];
+		this.codeLookup = new int[tableCodeLengths.length][1 << LOOKUP_BITS];
 
 		createHuffmanDecodingTables (alphabetSize, tableCodeLengths);
 
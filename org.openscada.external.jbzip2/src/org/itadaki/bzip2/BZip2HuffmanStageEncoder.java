@@ -36,6 +36,18 @@ class BZip2HuffmanStageEncoder {
 	 */
 	private static final int HUFFMAN_HIGH_SYMBOL_COST = 15;
 
+	/**
+	 * The number of selector and Huffman table optimisation iterations performed at each
+	 * compression effort, starting from {@link BZip2OutputStream#MINIMUM_EFFORT}
+	 */
+	private static final int[] EFFORT_ITERATIONS = { 1, 2, 4 };
+
+	/**
+	 * The maximum number of alternative Huffman tables used at each compression effort, starting
+	 * from {@link BZip2OutputStream#MINIMUM_EFFORT}
+	 */
+	private static final int[] EFFORT_MAXIMUM_TABLES = { 4, 6, 6 };
+
 	/**
 	 * The BitOutputStream from which Huffman codes are written
 	 */
@@ -92,6 +104,11 @@ class BZip2HuffmanStageEncoder {
 	 */
 	private final byte[] selectors = new byte[BZip2Constants.HUFFMAN_MAXIMUM_SELECTORS];
 
+	/**
+	 * The compression effort
+	 */
+	private final int effort;
+
 
 	/**
 	 * Selects an appropriate table count for a given MTF length
@@ -110,9 +127,10 @@ class BZip2HuffmanStageEncoder {
 
 
 	/**
-	 * Performs the Move To Front transform and Run Length Encoding[1] stages
+	 * Performs the Move To Front transform and Run Length Encoding[1] stages. Called separately
+	 * from {@link #encodeHuffmanStage()} only when the two stages are timed individually
 	 */
-	private void moveToFrontAndRunLengthEncode() {
+	void moveToFrontAndRunLengthEncode() {
 
 		final int bwtLength = this.bwtLength;
 		final boolean[] bwtValuesInUse = this.bwtValuesInUse;
@@ -249,7 +267,7 @@ class BZip2HuffmanStageEncoder {
 	 */
 	private int optimiseSelectorsAndHuffmanTables (final int totalTables) {
 
-		final int MAXIMUM_ITERATIONS = 4;
+		final int MAXIMUM_ITERATIONS = EFFORT_ITERATIONS[this.effort - BZip2OutputStream.MINIMUM_EFFORT];
 
 		final char[] mtf = this.mtfBlock;
 		final byte[] selectors = this.selectors;
@@ -494,8 +512,19 @@ class BZip2HuffmanStageEncoder {
 	public void encode() throws IOException {
 
 		moveToFrontAndRunLengthEncode();
+		encodeHuffmanStage();
+
+	}
+
+
+	/**
+	 * Generates the Huffman tables for the Move To Front transformed data and writes the tables and
+	 * the encoded data. Only valid after calling {@link #moveToFrontAndRunLengthEncode()}
+	 * @throws IOException on any I/O error writing the data
+	 */
+	void encodeHuffmanStage() throws IOException {
 
-		final int totalTables = selectTableCount (this.mtfLength);
+		final int totalTables = Math.min (selectTableCount (this.mtfLength), EFFORT_MAXIMUM_TABLES[this.effort - BZip2OutputStream.MINIMUM_EFFORT]);
 		generateInitialHuffmanCodeLengths (totalTables);
 		final int totalSelectors = optimiseSelectorsAndHuffmanTables (totalTables);
 		assignHuffmanCodeSymbols (totalTables);
@@ -513,14 +542,21 @@ class BZip2HuffmanStageEncoder {
 	 * @param bwtValuesInUse The byte values that are actually present within the block
 	 * @param bwtBlock The Burrows Wheeler Transformed data
 	 * @param bwtLength The actual length of the BWT data
+	 * @param mtfBlock An array to hold the output of the Move To Front stage. Must be at least one
+	 *                 longer than the BWT data
+	 * @param effort The compression effort, from {@link BZip2OutputStream#MINIMUM_EFFORT} to
+	 *               {@link BZip2OutputStream#MAXIMUM_EFFORT}
 	 */
-	public BZip2HuffmanStageEncoder (final BitOutputStream bitOutputStream, final boolean[] bwtValuesInUse, final int[] bwtBlock, final int bwtLength) {
+	public BZip2HuffmanStageEncoder (final BitOutputStream bitOutputStream, final boolean[] bwtValuesInUse, final int[] bwtBlock, final int bwtLength, final char[] mtfBlock,
+			final int effort)
+	{
 
 		this.bitOutputStream = bitOutputStream;
-		this.mtfBlock = new char[2 * bwtBlock.length];
+		this.mtfBlock = mtfBlock;
 		this.bwtValuesInUse = bwtValuesInUse;
 		this.bwtBlock = bwtBlock;
 		this.bwtLength = bwtLength;
+		this.effort = effort;
 
 	}
 
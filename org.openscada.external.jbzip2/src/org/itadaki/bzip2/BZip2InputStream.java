@@ -24,6 +24,8 @@ package org.itadaki.bzip2;
 
 import java.io.IOException;
 import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.concurrent.ExecutorService;
 
 
 /**
@@ -43,6 +45,34 @@ import java.io.InputStream;
  * If this possibility is of concern, you should read and store the entire decompressed stream
  * before further processing.</p>
  *
+ * <p>If constructed with an {@link ExecutorService}, blocks are located in advance by searching the
+ * compressed data for block header markers, and are decompressed concurrently by the executor's
+ * threads. In this mode each block is decoded completely and its CRC verified before any of its
+ * data is returned, so an exception is thrown before, rather than after, corrupt data is returned
+ * from a block.</p>
+ *
+ * <p>Compressed data is read from the wrapped stream in chunks, ahead of the decompressed data
+ * returned, so the wrapped stream will usually have been read beyond the end of the BZip2
+ * stream.</p>
+ *
+ * <p>As with "bzip2 -d", any further BZip2 streams concatenated to the first, such as those added
+ * by {@link BZip2OutputStream#append(java.io.File, int)}, are decompressed in turn as a single
+ * continuous output. Each stream's CRC is verified as its end is reached. Any other data following
+ * the end of a stream is ignored.</p>
+ *
+ * <p>The working memory for each block is taken from a {@link BZip2WorkspacePool}. Unless a shared
+ * pool is supplied, each stream uses a private pool, which still avoids reallocating working
+ * memory for every block.</p>
+ *
+ * <p>In low memory mode, equivalent to "bzip2 -s", the working memory needed to decompress a block
+ * is halved, from 5 bytes to 2.5 bytes per byte of block size (from around 4.5MB to around 2.25MB
+ * for a 900,000 byte block size). Measured on 900,000 byte blocks of text, random and highly
+ * repetitive data, decompression in this mode took between 2 and 3 times as long.</p>
+ *
+ * <p>A {@link BZip2BlockListener} may be attached to receive the size, compression ratio and
+ * per-stage timings of each block. It is called on the reading thread as each block is completed,
+ * in either mode. No timings are taken while no listener is attached.</p>
+ *
  * <p>Instances of this class are not threadsafe.</p>
  */
 public class BZip2InputStream extends InputStream {
@@ -63,6 +93,11 @@ public class BZip2InputStream extends InputStream {
 	 */
 	private final boolean headerless;
 
+	/**
+	 * If {@code true}, blocks are decompressed in low memory mode
+	 */
+	private final boolean lowMemory;
+
 	/**
 	 * (@code true} if the end of the compressed stream has been reached, otherwise {@code false}
 	 */
@@ -87,6 +122,32 @@ public class BZip2InputStream extends InputStream {
 	 */
 	private BZip2BlockDecompressor blockDecompressor = null;
 
+	/**
+	 * The reader that decompresses blocks concurrently, or {@code null} to decompress each block on
+	 * the reading thread
+	 */
+	private final BZip2ParallelBlockReader blockReader;
+
+	/**
+	 * The current block when blocks are decompressed concurrently
+	 */
+	private BZip2BlockDecompressionTask decodedBlock = null;
+
+	/**
+	 * The pool from which block workspaces are taken
+	 */
+	private final BZip2WorkspacePool workspacePool;
+
+	/**
+	 * The workspace used for every block when blocks are decompressed on the reading thread
+	 */
+	private BZip2BlockWorkspace workspace = null;
+
+	/**
+	 * The listener to which each block's figures are reported, or {@code null}
+	 */
+	private BZip2BlockListener listener = null;
+
 
 	/* (non-Javadoc)
 	 * @see java.io.InputStream#read()
@@ -95,15 +156,15 @@ public class BZip2InputStream extends InputStream {
 	public int read() throws IOException {
 
 		int nextByte = -1;
-		if (this.blockDecompressor == null) {
+		if ((this.blockDecompressor == null) && (this.decodedBlock == null)) {
 			initialiseStream();
 		} else {
-			nextByte = this.blockDecompressor.read();
+			nextByte = readBlock();
 		}
 
 		if (nextByte == -1) {
 			if (initialiseNextBlock()) {
-				nextByte = this.blockDecompressor.read();
+				nextByte = readBlock();
 			}
 		}
 
@@ -119,15 +180,42 @@ public class BZip2InputStream extends InputStream {
 	public int read (final byte[] destination, final int offset, final int length) throws IOException {
 
 		int bytesRead = -1;
-		if (this.blockDecompressor == null) {
+		if ((this.blockDecompressor == null) && (this.decodedBlock == null)) {
+			initialiseStream();
+		} else {
+			bytesRead = readBlock (destination, offset, length);
+		}
+
+		if (bytesRead == -1) {
+			if (initialiseNextBlock()) {
+				bytesRead = readBlock (destination, offset, length);
+			}
+		}
+
+		return bytesRead;
+
+	}
+
+
+	/**
+	 * Reads decompressed data into the remaining space of a buffer, advancing the buffer's position
+	 * past the bytes read. Direct buffers are written in place without an intermediate array
+	 * @param destination The buffer to write to
+	 * @return The number of bytes actually read, or -1 if the end of the stream has been reached
+	 * @throws IOException on any error decoding the compressed stream
+	 */
+	public int read (final ByteBuffer destination) throws IOException {
+
+		int bytesRead = -1;
+		if ((this.blockDecompressor == null) && (this.decodedBlock == null)) {
 			initialiseStream();
 		} else {
-			bytesRead = this.blockDecompressor.read (destination, offset, length);
+			bytesRead = readBlock (destination);
 		}
 
 		if (bytesRead == -1) {
 			if (initialiseNextBlock()) {
-				bytesRead = this.blockDecompressor.read (destination, offset, length);
+				bytesRead = readBlock (destination);
 			}
 		}
 
@@ -142,10 +230,15 @@ public class BZip2InputStream extends InputStream {
 	@Override
 	public void close() throws IOException {
 
-		if (this.bitInputStream != null) {
+		if (this.inputStream != null) {
 			this.streamComplete = true;
 			this.blockDecompressor = null;
 			this.bitInputStream = null;
+			this.decodedBlock = null;
+			if (this.blockReader != null) {
+				this.blockReader.close();
+			}
+			releaseWorkspace();
 
 			try {
 				this.inputStream.close();
@@ -157,6 +250,108 @@ public class BZip2InputStream extends InputStream {
 	}
 
 
+	/**
+	 * Sets the listener to which the figures for each block are reported once the block has been
+	 * completely read and its CRC verified. The listener applies to blocks begun after it is set
+	 * @param listener The listener, or {@code null} for none
+	 */
+	public void setBlockListener (final BZip2BlockListener listener) {
+
+		this.listener = listener;
+		if (this.blockReader != null) {
+			this.blockReader.setBlockListener (listener);
+		}
+
+	}
+
+
+	/**
+	 * Reads a byte from the current block
+	 * @return The byte read, or -1 if there are no bytes left in the block
+	 */
+	private int readBlock() {
+
+		return (this.decodedBlock != null) ? this.decodedBlock.read() : this.blockDecompressor.read();
+
+	}
+
+
+	/**
+	 * Reads multiple bytes from the current block
+	 * @param destination The array to write to
+	 * @param offset The starting position within the array
+	 * @param length The number of bytes to read
+	 * @return The number of bytes actually read, or -1 if there are no bytes left in the block
+	 */
+	private int readBlock (final byte[] destination, final int offset, final int length) {
+
+		if (this.decodedBlock != null) {
+			return this.decodedBlock.read (destination, offset, length);
+		}
+		return this.blockDecompressor.read (destination, offset, length);
+
+	}
+
+
+	/**
+	 * Reads bytes from the current block into a buffer
+	 * @param destination The buffer to write to
+	 * @return The number of bytes actually read, or -1 if there are no bytes left in the block
+	 */
+	private int readBlock (final ByteBuffer destination) {
+
+		if (this.decodedBlock != null) {
+			return this.decodedBlock.read (destination);
+		}
+		return this.blockDecompressor.read (destination);
+
+	}
+
+
+	/**
+	 * Returns the workspace, if any, to the pool
+	 */
+	private void releaseWorkspace() {
+
+		if (this.workspace != null) {
+			this.workspacePool.release (this.workspace);
+			this.workspace = null;
+		}
+
+	}
+
+
+	/**
+	 * Reads the header of a further stream concatenated to the one just ended, as produced by
+	 * {@link BZip2OutputStream#append(java.io.File, int)} or by concatenating BZip2 files. A
+	 * concatenated stream begins at the byte boundary following the end of the previous stream.
+	 * Any other data following the end of a stream is ignored
+	 * @return {@code true} if a further stream follows, otherwise {@code false}
+	 * @throws IOException if the stream header is not valid
+	 */
+	private boolean readConcatenatedStreamHeader() throws IOException {
+
+		this.bitInputStream.alignToByte();
+
+		final int streamStartMarker = (BZip2Constants.STREAM_START_MARKER_1 << 8) | BZip2Constants.STREAM_START_MARKER_2;
+		if (!this.bitInputStream.hasBits (32) || (this.bitInputStream.peekBits (24) != streamStartMarker)) {
+			return false;
+		}
+
+		this.bitInputStream.readBits (24);
+		final int blockSize = (this.bitInputStream.readBits (8) - '0');
+
+		if ((blockSize < 1) || (blockSize > 9)) {
+			throw new IOException ("Invalid BZip2 header");
+		}
+
+		this.streamBlockSize = blockSize * 100000;
+
+		return true;
+
+	}
+
+
 	/**
 	 * Reads the stream header and checks that the data appears to be a valid BZip2 stream
 	 * @throws IOException if the stream header is not valid
@@ -164,7 +359,7 @@ public class BZip2InputStream extends InputStream {
 	private void initialiseStream() throws IOException {
 
 		/* If the stream has been explicitly closed, throw an exception */
-		if (this.bitInputStream == null) {
+		if (this.inputStream == null) {
 			throw new IOException ("Stream closed");
 		}
 
@@ -175,6 +370,11 @@ public class BZip2InputStream extends InputStream {
 
 		/* Read the stream header */
 		try {
+			if (this.blockReader != null) {
+				this.streamBlockSize = this.blockReader.readStreamHeader (this.headerless);
+				return;
+			}
+
 			int marker1 = this.headerless ? 0 : this.bitInputStream.readBits (16);
 			int marker2 = this.bitInputStream.readBits (8);
 			int blockSize = (this.bitInputStream.readBits (8) - '0');
@@ -215,34 +415,69 @@ public class BZip2InputStream extends InputStream {
 			return false;
 		}
 
+		/* If blocks are decompressed concurrently, their CRCs have already been checked */
+		if (this.blockReader != null) {
+			try {
+				final BZip2BlockDecompressionTask decodedBlock = this.blockReader.nextBlock();
+				if (decodedBlock == null) {
+					this.streamComplete = true;
+					return false;
+				}
+				this.decodedBlock = decodedBlock;
+				return true;
+			} catch (IOException e) {
+				// If the block could not be decoded, stop trying to read more data
+				this.streamComplete = true;
+				throw e;
+			}
+		}
+
 		/* If a block is complete, check the block CRC and integrate it into the stream CRC */
 		if (this.blockDecompressor != null) {
 			int blockCRC = this.blockDecompressor.checkCRC();
 			this.streamCRC = ((this.streamCRC << 1) | (this.streamCRC >>> 31)) ^ blockCRC;
+			this.blockDecompressor = null;
 		}
 
-		/* Read block-header or end-of-stream marker */
-		int marker1 = this.bitInputStream.readBits (24);
-		int marker2 = this.bitInputStream.readBits (24);
-
-		if (marker1 == BZip2Constants.BLOCK_HEADER_MARKER_1 && marker2 == BZip2Constants.BLOCK_HEADER_MARKER_2) {
-			// Initialise a new block
-			try {
-				this.blockDecompressor = new BZip2BlockDecompressor (this.bitInputStream, this.streamBlockSize);
-			} catch (IOException e) {
-				// If the block could not be decoded, stop trying to read more data
+		for (;;) {
+
+			/* Read block-header or end-of-stream marker */
+			int marker1 = this.bitInputStream.readBits (24);
+			int marker2 = this.bitInputStream.readBits (24);
+
+			if (marker1 == BZip2Constants.BLOCK_HEADER_MARKER_1 && marker2 == BZip2Constants.BLOCK_HEADER_MARKER_2) {
+				// Initialise a new block
+				try {
+					if (this.workspace == null) {
+						this.workspace = this.workspacePool.acquire();
+					}
+					this.blockDecompressor = new BZip2BlockDecompressor (this.bitInputStream, this.streamBlockSize, this.workspace, this.lowMemory, this.listener);
+				} catch (IOException e) {
+					// If the block could not be decoded, stop trying to read more data
+					this.streamComplete = true;
+					throw e;
+				}
+				return true;
+			} else if (marker1 == BZip2Constants.STREAM_END_MARKER_1 && marker2 == BZip2Constants.STREAM_END_MARKER_2) {
+				// Read and verify the end-of-stream CRC
 				this.streamComplete = true;
-				throw e;
-			}
-			return true;
-		} else if (marker1 == BZip2Constants.STREAM_END_MARKER_1 && marker2 == BZip2Constants.STREAM_END_MARKER_2) {
-			// Read and verify the end-of-stream CRC
-			this.streamComplete = true;
-			int storedCombinedCRC = this.bitInputStream.readInteger();
-			if (storedCombinedCRC != this.streamCRC) {
-				throw new IOException ("BZip2 stream CRC error");
+				releaseWorkspace();
+				int storedCombinedCRC = this.bitInputStream.readInteger();
+				if (storedCombinedCRC != this.streamCRC) {
+					throw new IOException ("BZip2 stream CRC error");
+				}
+
+				// Continue with any further stream concatenated to this one
+				if (readConcatenatedStreamHeader()) {
+					this.streamComplete = false;
+					this.streamCRC = 0;
+					continue;
+				}
+				return false;
 			}
-			return false;
+
+			break;
+
 		}
 
 		/* If what was read is not a valid block-header or end-of-stream marker, the stream is broken */
@@ -259,13 +494,124 @@ public class BZip2InputStream extends InputStream {
 	 */
 	public BZip2InputStream (final InputStream inputStream, final boolean headerless) {
 
+		this (inputStream, headerless, null, 0, null);
+
+	}
+
+
+	/**
+	 * Constructs a BZip2 stream decompressor that takes its working memory from a shared pool
+	 * @param inputStream The InputStream to wrap
+	 * @param headerless If {@code true}, the caller is assumed to have read away the stream's
+	 *                   leading "BZ" identifier bytes
+	 * @param workspacePool The pool from which block workspaces are taken, or {@code null} to use a
+	 *                      private pool
+	 */
+	public BZip2InputStream (final InputStream inputStream, final boolean headerless, final BZip2WorkspacePool workspacePool) {
+
+		this (inputStream, headerless, null, 0, workspacePool);
+
+	}
+
+
+	/**
+	 * Constructs a BZip2 stream decompressor that may use low memory mode
+	 * @param inputStream The InputStream to wrap
+	 * @param headerless If {@code true}, the caller is assumed to have read away the stream's
+	 *                   leading "BZ" identifier bytes
+	 * @param lowMemory If {@code true}, blocks are decompressed using around half the usual working
+	 *                  memory, at the cost of slower decompression
+	 * @param workspacePool The pool from which block workspaces are taken, or {@code null} to use a
+	 *                      private pool
+	 */
+	public BZip2InputStream (final InputStream inputStream, final boolean headerless, final boolean lowMemory, final BZip2WorkspacePool workspacePool) {
+
+		this (inputStream, headerless, null, 0, workspacePool, lowMemory);
+
+	}
+
+
+	/**
+	 * Constructs a BZip2 stream decompressor that decompresses blocks concurrently. The executor is
+	 * not shut down when the stream is closed, and may be shared between any number of streams
+	 * @param inputStream The InputStream to wrap
+	 * @param headerless If {@code true}, the caller is assumed to have read away the stream's
+	 *                   leading "BZ" identifier bytes
+	 * @param executor The executor on which blocks are decompressed, or {@code null} to decompress
+	 *                 each block on the reading thread
+	 * @param maximumPendingBlocks The maximum number of blocks that may be queued or decompressing
+	 *                             at once. Each pending block holds its own working memory and
+	 *                             decompressed data, so this bounds the memory used by the stream.
+	 *                             Twice the number of threads available to the executor is usually
+	 *                             sufficient to keep them busy
+	 */
+	public BZip2InputStream (final InputStream inputStream, final boolean headerless, final ExecutorService executor, final int maximumPendingBlocks) {
+
+		this (inputStream, headerless, executor, maximumPendingBlocks, null);
+
+	}
+
+
+	/**
+	 * Constructs a BZip2 stream decompressor that decompresses blocks concurrently, taking its
+	 * working memory from a shared pool
+	 * @param inputStream The InputStream to wrap
+	 * @param headerless If {@code true}, the caller is assumed to have read away the stream's
+	 *                   leading "BZ" identifier bytes
+	 * @param executor The executor on which blocks are decompressed, or {@code null} to decompress
+	 *                 each block on the reading thread
+	 * @param maximumPendingBlocks The maximum number of blocks that may be queued or decompressing
+	 *                             at once
+	 * @param workspacePool The pool from which block workspaces are taken, or {@code null} to use a
+	 *                      private pool
+	 */
+	public BZip2InputStream (final InputStream inputStream, final boolean headerless, final ExecutorService executor, final int maximumPendingBlocks, final BZip2WorkspacePool workspacePool) {
+
+		this (inputStream, headerless, executor, maximumPendingBlocks, workspacePool, false);
+
+	}
+
+
+	/**
+	 * @param inputStream The InputStream to wrap
+	 * @param headerless If {@code true}, the caller is assumed to have read away the stream's
+	 *                   leading "BZ" identifier bytes
+	 * @param executor The executor on which blocks are decompressed, or {@code null} to decompress
+	 *                 each block on the reading thread
+	 * @param maximumPendingBlocks The maximum number of blocks that may be queued or decompressing
+	 *                             at once
+	 * @param workspacePool The pool from which block workspaces are taken, or {@code null} to use a
+	 *                      private pool
+	 * @param lowMemory If {@code true}, blocks are decompressed in low memory mode. Only supported
+	 *                  when blocks are decompressed on the reading thread
+	 */
+	private BZip2InputStream (final InputStream inputStream, final boolean headerless, final ExecutorService executor, final int maximumPendingBlocks, final BZip2WorkspacePool workspacePool,
+			final boolean lowMemory)
+	{
+
 		if (inputStream == null) {
 			throw new IllegalArgumentException ("Null input stream");
 		}
 
+		if ((executor != null) && (maximumPendingBlocks < 1)) {
+			throw new IllegalArgumentException ("Invalid maximum pending block count " + maximumPendingBlocks);
+		}
+
 		this.inputStream = inputStream;
-		this.bitInputStream = new BitInputStream (inputStream);
 		this.headerless = headerless;
+		this.lowMemory = lowMemory;
+		if (workspacePool != null) {
+			this.workspacePool = workspacePool;
+		} else {
+			this.workspacePool = new BZip2WorkspacePool ((executor == null) ? 1 : maximumPendingBlocks);
+		}
+
+		if (executor == null) {
+			this.bitInputStream = new BitInputStream (inputStream);
+			this.blockReader = null;
+		} else {
+			this.blockReader = new BZip2ParallelBlockReader (inputStream, executor, maximumPendingBlocks, this.workspacePool);
+		}
 
 	}
 
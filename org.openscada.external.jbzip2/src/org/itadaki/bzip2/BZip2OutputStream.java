@@ -22,17 +22,52 @@
 
 package org.itadaki.bzip2;
 
+import java.io.File;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InterruptedIOException;
 import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
 
 
 /**
  * <p>An OutputStream wrapper that compresses BZip2 data</p>
  *
+ * <p>If constructed with an {@link ExecutorService}, completed blocks are compressed concurrently
+ * by the executor's threads and written out in their original order as each finishes. The
+ * compressed output is identical to that produced without an executor.</p>
+ *
+ * <p>The working memory for each block is taken from a {@link BZip2WorkspacePool}. Unless a shared
+ * pool is supplied, each stream uses a private pool, which still avoids reallocating working
+ * memory for every block.</p>
+ *
+ * <p>The effort spent optimising each block's Huffman tables may be reduced from
+ * {@link #MAXIMUM_EFFORT} towards {@link #MINIMUM_EFFORT}, trading a slightly larger output for
+ * faster compression. Output at any effort is a standard BZip2 stream.</p>
+ *
+ * <p>A {@link BZip2BlockListener} may be attached to receive the size, compression ratio and
+ * per-stage timings of each block. No timings are taken while no listener is attached.</p>
+ *
  * <p>Instances of this class are not threadsafe.</p>
  */
 public class BZip2OutputStream extends OutputStream {
 
+	/**
+	 * The lowest compression effort. Huffman tables are refined in a single pass, and at most four
+	 * alternative tables are used per block
+	 */
+	public static final int MINIMUM_EFFORT = 1;
+
+	/**
+	 * The highest, and default, compression effort. Huffman tables are refined in four passes, and
+	 * up to six alternative tables are used per block
+	 */
+	public static final int MAXIMUM_EFFORT = 3;
+
 	/**
 	 * The stream to which compressed BZip2 data is written
 	 */
@@ -58,11 +93,59 @@ public class BZip2OutputStream extends OutputStream {
 	 */
 	private int streamCRC = 0;
 
+	/**
+	 * The compression effort applied to each block
+	 */
+	private final int effort;
+
 	/**
 	 * The compressor for the current block
 	 */
 	private BZip2BlockCompressor blockCompressor;
 
+	/**
+	 * The executor used to compress blocks concurrently, or {@code null} to compress each block on
+	 * the writing thread
+	 */
+	private final ExecutorService executor;
+
+	/**
+	 * The maximum number of blocks that may be queued or compressing at once when an executor is
+	 * in use
+	 */
+	private final int maximumPendingBlocks;
+
+	/**
+	 * The compression task for the current block when an executor is in use
+	 */
+	private BZip2BlockCompressionTask compressionTask;
+
+	/**
+	 * Blocks submitted to the executor that have not yet been written out, in stream order
+	 */
+	private final ArrayDeque<Future<BZip2BlockCompressionTask>> pendingBlocks = new ArrayDeque<Future<BZip2BlockCompressionTask>>();
+
+	/**
+	 * The tasks of {@link #pendingBlocks}, in the same order, kept so that the workspaces of any
+	 * that never run can be released
+	 */
+	private final ArrayDeque<BZip2BlockCompressionTask> pendingTasks = new ArrayDeque<BZip2BlockCompressionTask>();
+
+	/**
+	 * The pool from which block workspaces are taken
+	 */
+	private final BZip2WorkspacePool workspacePool;
+
+	/**
+	 * The workspace used for every block when no executor is in use
+	 */
+	private BZip2BlockWorkspace workspace;
+
+	/**
+	 * The listener to which each block's figures are reported, or {@code null}
+	 */
+	private BZip2BlockListener listener = null;
+
 
 	/* (non-Javadoc)
 	 * @see java.io.OutputStream#write(int)
@@ -114,6 +197,33 @@ public class BZip2OutputStream extends OutputStream {
 	}
 
 
+	/**
+	 * Writes the remaining bytes of a buffer, advancing the buffer's position to its limit. Direct
+	 * buffers, including memory mapped files, are read in place without an intermediate array
+	 * @param data The buffer to write
+	 * @throws IOException on any I/O error writing the compressed data
+	 */
+	public void write (final ByteBuffer data) throws IOException {
+
+		if (this.outputStream == null) {
+			throw new IOException ("Stream closed");
+		}
+
+		if (this.streamFinished) {
+			throw new IOException ("Write beyond end of stream");
+		}
+
+		while (data.hasRemaining()) {
+			this.blockCompressor.write (data);
+			if (data.hasRemaining()) {
+				closeBlock();
+				initialiseNextBlock();
+			}
+		}
+
+	}
+
+
 	/* (non-Javadoc)
 	 * @see java.io.OutputStream#close()
 	 */
@@ -129,12 +239,34 @@ public class BZip2OutputStream extends OutputStream {
 	}
 
 
+	/**
+	 * Sets the listener to which the figures for each block are reported as it is compressed,
+	 * beginning with the block currently being written. When an executor is in use, the listener is
+	 * called on the executor's threads
+	 * @param listener The listener, or {@code null} for none
+	 */
+	public void setBlockListener (final BZip2BlockListener listener) {
+
+		this.listener = listener;
+		if (this.blockCompressor != null) {
+			this.blockCompressor.setListener (listener);
+		}
+
+	}
+
+
 	/**
 	 * Initialises a new block for compression
 	 */
 	private void initialiseNextBlock() {
 
-		this.blockCompressor = new BZip2BlockCompressor (this.bitOutputStream, this.streamBlockSize);
+		if (this.executor == null) {
+			this.blockCompressor = new BZip2BlockCompressor (this.bitOutputStream, this.streamBlockSize, this.effort, this.workspace);
+		} else {
+			this.compressionTask = new BZip2BlockCompressionTask (this.streamBlockSize, this.effort, this.workspacePool);
+			this.blockCompressor = this.compressionTask.getBlockCompressor();
+		}
+		this.blockCompressor.setListener (this.listener);
 
 	}
 
@@ -150,8 +282,55 @@ public class BZip2OutputStream extends OutputStream {
 			return;
 		}
 
-		this.blockCompressor.close();
-		int blockCRC = this.blockCompressor.getCRC();
+		if (this.executor == null) {
+			this.blockCompressor.close();
+			updateStreamCRC (this.blockCompressor.getCRC());
+		} else if (this.compressionTask != null) {
+			// The task is null if the block was submitted but writing out an earlier one then failed
+			final Future<BZip2BlockCompressionTask> pendingBlock = this.executor.submit (this.compressionTask);
+			this.pendingTasks.add (this.compressionTask);
+			this.pendingBlocks.add (pendingBlock);
+			this.compressionTask = null;
+			if (this.pendingBlocks.size() > this.maximumPendingBlocks) {
+				writePendingBlock();
+			}
+		}
+
+	}
+
+
+	/**
+	 * Waits for the oldest block submitted to the executor to be compressed, then writes it out
+	 * @throws IOException on any error compressing the block or writing to the output stream
+	 */
+	private void writePendingBlock() throws IOException {
+
+		final BZip2BlockCompressionTask task;
+		try {
+			this.pendingTasks.remove();
+			task = this.pendingBlocks.remove().get();
+		} catch (InterruptedException e) {
+			throw new InterruptedIOException ("Interrupted waiting for BZip2 block compression");
+		} catch (ExecutionException e) {
+			final Throwable cause = e.getCause();
+			if (cause instanceof IOException) {
+				throw (IOException)cause;
+			}
+			throw new IOException ("BZip2 block compression failed", cause);
+		}
+
+		task.writeTo (this.bitOutputStream);
+		updateStreamCRC (task.getCRC());
+
+	}
+
+
+	/**
+	 * Merges the CRC of a completed block into the stream CRC. Blocks must be merged in stream order
+	 * @param blockCRC The CRC of the completed block
+	 */
+	private void updateStreamCRC (final int blockCRC) {
+
 		this.streamCRC = ((this.streamCRC << 1) | (this.streamCRC >>> 31)) ^ blockCRC;
 
 	}
@@ -168,19 +347,66 @@ public class BZip2OutputStream extends OutputStream {
 			this.streamFinished = true;
 			try {
 				closeBlock();
+				while (!this.pendingBlocks.isEmpty()) {
+					writePendingBlock();
+				}
 				this.bitOutputStream.writeBits (24, BZip2Constants.STREAM_END_MARKER_1);
 				this.bitOutputStream.writeBits (24, BZip2Constants.STREAM_END_MARKER_2);
 				this.bitOutputStream.writeInteger (this.streamCRC);
 				this.bitOutputStream.flush();
 				this.outputStream.flush();
 			} finally {
+				if (this.workspace != null) {
+					this.workspacePool.release (this.workspace);
+					this.workspace = null;
+				}
 				this.blockCompressor = null;
+				if (this.compressionTask != null) {
+					this.compressionTask.abandon();
+					this.compressionTask = null;
+				}
+				for (Future<BZip2BlockCompressionTask> pendingBlock : this.pendingBlocks) {
+					pendingBlock.cancel (false);
+				}
+				for (BZip2BlockCompressionTask pendingTask : this.pendingTasks) {
+					pendingTask.abandon();
+				}
+				this.pendingBlocks.clear();
+				this.pendingTasks.clear();
 			}
 		}
 
 	}
 
 
+	/**
+	 * Opens a file to which a new BZip2 stream is appended, following any streams it already
+	 * contains, without reading or recompressing its existing contents. The file is created if it
+	 * does not exist. {@link BZip2InputStream} reads the streams of such a file in turn as a single
+	 * continuous output, as does "bzip2 -d". Closing the returned stream closes the file
+	 * @param file The file to append to
+	 * @param blockSizeMultiplier The BZip2 block size as a multiple of 100,000 bytes (minimum 1,
+	 * maximum 9)
+	 * @return A stream that compresses to the end of the file
+	 * @throws IOException on any I/O error opening the file
+	 */
+	public static BZip2OutputStream append (final File file, final int blockSizeMultiplier) throws IOException {
+
+		final FileOutputStream fileOutputStream = new FileOutputStream (file, true);
+
+		try {
+			return new BZip2OutputStream (fileOutputStream, blockSizeMultiplier);
+		} catch (RuntimeException e) {
+			fileOutputStream.close();
+			throw e;
+		} catch (IOException e) {
+			fileOutputStream.close();
+			throw e;
+		}
+
+	}
+
+
 	/**
 	 * @param outputStream The output stream to write to
 	 * @param blockSizeMultiplier The BZip2 block size as a multiple of 100,000 bytes (minimum 1,
@@ -190,6 +416,103 @@ public class BZip2OutputStream extends OutputStream {
 	 */
 	public BZip2OutputStream (final OutputStream outputStream, final int blockSizeMultiplier) throws IOException {
 
+		this (outputStream, blockSizeMultiplier, null, 0, null, MAXIMUM_EFFORT);
+
+	}
+
+
+	/**
+	 * Constructs a BZip2 stream compressor with a given compression effort
+	 * @param outputStream The output stream to write to
+	 * @param blockSizeMultiplier The BZip2 block size as a multiple of 100,000 bytes (minimum 1,
+	 * maximum 9)
+	 * @param effort The compression effort, from {@link #MINIMUM_EFFORT} to {@link #MAXIMUM_EFFORT}.
+	 * Lower efforts compress faster with a slightly lower compression ratio
+	 * @throws IOException on any I/O error writing to the output stream
+	 */
+	public BZip2OutputStream (final OutputStream outputStream, final int blockSizeMultiplier, final int effort) throws IOException {
+
+		this (outputStream, blockSizeMultiplier, null, 0, null, effort);
+
+	}
+
+
+	/**
+	 * Constructs a BZip2 stream compressor that takes its working memory from a shared pool
+	 * @param outputStream The output stream to write to
+	 * @param blockSizeMultiplier The BZip2 block size as a multiple of 100,000 bytes (minimum 1,
+	 * maximum 9)
+	 * @param workspacePool The pool from which block workspaces are taken, or {@code null} to use a
+	 * private pool
+	 * @throws IOException on any I/O error writing to the output stream
+	 */
+	public BZip2OutputStream (final OutputStream outputStream, final int blockSizeMultiplier, final BZip2WorkspacePool workspacePool) throws IOException {
+
+		this (outputStream, blockSizeMultiplier, null, 0, workspacePool, MAXIMUM_EFFORT);
+
+	}
+
+
+	/**
+	 * Constructs a BZip2 stream compressor that compresses blocks concurrently. The executor is not
+	 * shut down when the stream is closed, and may be shared between any number of streams
+	 * @param outputStream The output stream to write to
+	 * @param blockSizeMultiplier The BZip2 block size as a multiple of 100,000 bytes (minimum 1,
+	 * maximum 9)
+	 * @param executor The executor on which blocks are compressed, or {@code null} to compress
+	 * each block on the writing thread
+	 * @param maximumPendingBlocks The maximum number of blocks that may be queued or compressing at
+	 * once before a write blocks to wait for the oldest to finish. Each pending block holds its own
+	 * working memory, so this bounds the memory used by the stream. Twice the number of threads
+	 * available to the executor is usually sufficient to keep them busy
+	 * @throws IOException on any I/O error writing to the output stream
+	 */
+	public BZip2OutputStream (final OutputStream outputStream, final int blockSizeMultiplier, final ExecutorService executor, final int maximumPendingBlocks) throws IOException {
+
+		this (outputStream, blockSizeMultiplier, executor, maximumPendingBlocks, null, MAXIMUM_EFFORT);
+
+	}
+
+
+	/**
+	 * Constructs a BZip2 stream compressor that compresses blocks concurrently, taking its working
+	 * memory from a shared pool
+	 * @param outputStream The output stream to write to
+	 * @param blockSizeMultiplier The BZip2 block size as a multiple of 100,000 bytes (minimum 1,
+	 * maximum 9)
+	 * @param executor The executor on which blocks are compressed, or {@code null} to compress
+	 * each block on the writing thread
+	 * @param maximumPendingBlocks The maximum number of blocks that may be queued or compressing at
+	 * once before a write blocks to wait for the oldest to finish
+	 * @param workspacePool The pool from which block workspaces are taken, or {@code null} to use a
+	 * private pool
+	 * @throws IOException on any I/O error writing to the output stream
+	 */
+	public BZip2OutputStream (final OutputStream outputStream, final int blockSizeMultiplier, final ExecutorService executor, final int maximumPendingBlocks, final BZip2WorkspacePool workspacePool) throws IOException {
+
+		this (outputStream, blockSizeMultiplier, executor, maximumPendingBlocks, workspacePool, MAXIMUM_EFFORT);
+
+	}
+
+
+	/**
+	 * Constructs a BZip2 stream compressor with every option specified
+	 * @param outputStream The output stream to write to
+	 * @param blockSizeMultiplier The BZip2 block size as a multiple of 100,000 bytes (minimum 1,
+	 * maximum 9)
+	 * @param executor The executor on which blocks are compressed, or {@code null} to compress
+	 * each block on the writing thread
+	 * @param maximumPendingBlocks The maximum number of blocks that may be queued or compressing at
+	 * once before a write blocks to wait for the oldest to finish
+	 * @param workspacePool The pool from which block workspaces are taken, or {@code null} to use a
+	 * private pool
+	 * @param effort The compression effort, from {@link #MINIMUM_EFFORT} to {@link #MAXIMUM_EFFORT}
+	 * @throws IOException on any I/O error writing to the output stream
+	 */
+	public BZip2OutputStream (final OutputStream outputStream, final int blockSizeMultiplier, final ExecutorService executor, final int maximumPendingBlocks, final BZip2WorkspacePool workspacePool,
+			final int effort) throws IOException
+	{
+
 		if (outputStream == null) {
 			throw new IllegalArgumentException ("Null output stream");
 		}
@@ -198,6 +521,25 @@ public class BZip2OutputStream extends OutputStream {
 			throw new IllegalArgumentException ("Invalid BZip2 block size" + blockSizeMultiplier);
 		}
 
+		if ((executor != null) && (maximumPendingBlocks < 1)) {
+			throw new IllegalArgumentException ("Invalid maximum pending block count " + maximumPendingBlocks);
+		}
+
+		if ((effort < MINIMUM_EFFORT) || (effort > MAXIMUM_EFFORT)) {
+			throw new IllegalArgumentException ("Invalid compression effort " + effort);
+		}
+
+		this.executor = executor;
+		this.maximumPendingBlocks = maximumPendingBlocks;
+		this.effort = effort;
+		if (workspacePool != null) {
+			this.workspacePool = workspacePool;
+		} else {
+			this.workspacePool = new BZip2WorkspacePool ((executor == null) ? 1 : maximumPendingBlocks + 1);
+		}
+		if (executor == null) {
+			this.workspace = this.workspacePool.acquire();
+		}
 		this.streamBlockSize = blockSizeMultiplier * 100000;
 		this.outputStream = outputStream;
 		this.bitOutputStream = new BitOutputStream (this.outputStream);
@@ -0,0 +1,506 @@
+/*
+ * Copyright (c) 2011 Matthew Francis
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package org.itadaki.bzip2;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.util.ArrayDeque;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+
+/**
+ * <p>Reads a BZip2 stream by decompressing its blocks concurrently</p>
+ *
+ * <p>Compressed data is read into a window, which is searched for the 48-bit block header marker at
+ * every bit offset. A {@link BZip2BlockDecompressionTask} is started on the executor for each match
+ * found, ahead of the position in the stream that has actually been reached. Blocks are then
+ * returned in order by following the chain of real blocks from the stream header, each one
+ * beginning exactly where the previous one ended; tasks started at false matches of the marker
+ * are never reached by the chain and are discarded. The block CRC of every block is verified
+ * before it is returned, and the stream CRC is verified on reaching the end of the stream.</p>
+ *
+ * <p>Any further streams concatenated to the first are read in turn, as described for
+ * {@link BZip2InputStream}.</p>
+ */
+class BZip2ParallelBlockReader {
+
+	/**
+	 * The 48-bit block header marker
+	 */
+	private static final long BLOCK_HEADER_MARKER = ((long)BZip2Constants.BLOCK_HEADER_MARKER_1 << 24) | BZip2Constants.BLOCK_HEADER_MARKER_2;
+
+	/**
+	 * The 48-bit end of stream marker
+	 */
+	private static final long STREAM_END_MARKER = ((long)BZip2Constants.STREAM_END_MARKER_1 << 24) | BZip2Constants.STREAM_END_MARKER_2;
+
+	/**
+	 * The initial size of the window, sufficient to read the stream header
+	 */
+	private static final int INITIAL_WINDOW_SIZE = 4096;
+
+	/**
+	 * The stream from which compressed BZip2 data is read
+	 */
+	private final InputStream inputStream;
+
+	/**
+	 * The executor on which blocks are decompressed
+	 */
+	private final ExecutorService executor;
+
+	/**
+	 * The maximum number of blocks that may be queued or decompressing at once
+	 */
+	private final int maximumPendingBlocks;
+
+	/**
+	 * The pool from which block workspaces are taken
+	 */
+	private final BZip2WorkspacePool workspacePool;
+
+	/**
+	 * The window of compressed data. A new array is allocated each time the window is moved, as
+	 * running tasks may still refer to the previous one
+	 */
+	private byte[] window = new byte[0];
+
+	/**
+	 * The length of valid data in {@link #window}
+	 */
+	private int windowLength = 0;
+
+	/**
+	 * The size of window to allocate when the window is next moved
+	 */
+	private int windowCapacity = INITIAL_WINDOW_SIZE;
+
+	/**
+	 * {@code true} if the end of the input stream has been reached, otherwise {@code false}
+	 */
+	private boolean inputExhausted = false;
+
+	/**
+	 * The declared block size of the stream
+	 */
+	private int streamBlockSize;
+
+	/**
+	 * The bit offset within {@link #window} at which the next block header or end of stream marker
+	 * is expected
+	 */
+	private long nextBitOffset = 0;
+
+	/**
+	 * The bit offsets within {@link #window} of block header markers that have been found but not yet
+	 * submitted for decompression, in ascending order
+	 */
+	private final ArrayDeque<Long> candidateOffsets = new ArrayDeque<Long>();
+
+	/**
+	 * Tasks submitted for decompression, in ascending order of bit offset
+	 */
+	private final ArrayDeque<BZip2BlockDecompressionTask> pendingTasks = new ArrayDeque<BZip2BlockDecompressionTask>();
+
+	/**
+	 * The futures of the tasks in {@link #pendingTasks}, in the same order
+	 */
+	private final ArrayDeque<Future<BZip2BlockDecompressionTask>> pendingFutures = new ArrayDeque<Future<BZip2BlockDecompressionTask>>();
+
+	/**
+	 * The merged CRC of all blocks returned so far
+	 */
+	private int streamCRC = 0;
+
+	/**
+	 * The listener to which each returned block's figures are reported, or {@code null}
+	 */
+	private BZip2BlockListener listener = null;
+
+
+	/**
+	 * Reads up to 56 bits from the window
+	 * @param bitOffset The bit offset within the window to read from
+	 * @param count The number of bits to read (maximum 56)
+	 * @return The bits requested, right-aligned within the long
+	 */
+	private long peekBits (final long bitOffset, final int count) {
+
+		final int firstByte = (int)(bitOffset >>> 3);
+		final int lastByte = (int)((bitOffset + count - 1) >>> 3);
+
+		long bits = 0;
+		for (int i = firstByte; i <= lastByte; i++) {
+			bits = (bits << 8) | (this.window[i] & 0xff);
+		}
+
+		return (bits >>> ((((long)lastByte + 1) << 3) - (bitOffset + count))) & ((1L << count) - 1);
+
+	}
+
+
+	/**
+	 * Ensures that a given number of bits following {@link #nextBitOffset} are present in the
+	 * window, moving the window forward if required
+	 * @param count The number of bits required
+	 * @return {@code true} if the bits are available, or {@code false} if the end of the input was
+	 *         reached first
+	 * @throws IOException on any I/O error reading from the input stream
+	 */
+	private boolean ensureAvailable (final int count) throws IOException {
+
+		while ((((long)this.windowLength << 3) - this.nextBitOffset) < count) {
+			if (this.inputExhausted) {
+				return false;
+			}
+			moveWindow();
+		}
+
+		return true;
+
+	}
+
+
+	/**
+	 * Moves the window forward to begin at {@link #nextBitOffset} and fills it with further input,
+	 * then searches it for block header markers. Any blocks already submitted are discarded
+	 * @throws IOException on any I/O error reading from the input stream
+	 */
+	private void moveWindow() throws IOException {
+
+		cancelPendingBlocks();
+		this.candidateOffsets.clear();
+
+		final int discardedBytes = (int)(this.nextBitOffset >>> 3);
+		final int retainedBytes = this.windowLength - discardedBytes;
+
+		// If a single block fills the whole window, it must be enlarged
+		if (retainedBytes >= this.windowCapacity) {
+			this.windowCapacity <<= 1;
+		}
+
+		final byte[] window = new byte[this.windowCapacity];
+		System.arraycopy (this.window, discardedBytes, window, 0, retainedBytes);
+
+		int windowLength = retainedBytes;
+		while (windowLength < window.length) {
+			final int bytesRead = this.inputStream.read (window, windowLength, window.length - windowLength);
+			if (bytesRead == -1) {
+				this.inputExhausted = true;
+				break;
+			}
+			windowLength += bytesRead;
+		}
+
+		this.window = window;
+		this.windowLength = windowLength;
+		this.nextBitOffset -= (long)discardedBytes << 3;
+
+		findBlockHeaders();
+
+	}
+
+
+	/**
+	 * Searches the window from {@link #nextBitOffset} for block header markers at every bit offset,
+	 * adding them to {@link #candidateOffsets}
+	 */
+	private void findBlockHeaders() {
+
+		final byte[] window = this.window;
+		final int windowLength = this.windowLength;
+		final long startBitOffset = this.nextBitOffset;
+		final int startByte = (int)(startBitOffset >>> 3);
+
+		long bits = 0;
+		for (int i = startByte; i < windowLength; i++) {
+			bits = (bits << 8) | (window[i] & 0xff);
+
+			// Only test the alignments for which 48 bits from the start point have been loaded
+			final int loadedBits = (i - startByte + 1) << 3;
+			if (loadedBits < 48) {
+				continue;
+			}
+			final long endBitOffset = ((long)i + 1) << 3;
+			for (int shift = Math.min (7, loadedBits - 48); shift >= 0; shift--) {
+				if (((bits >>> shift) & 0xffffffffffffL) == BLOCK_HEADER_MARKER) {
+					final long bitOffset = endBitOffset - 48 - shift;
+					if (bitOffset >= startBitOffset) {
+						this.candidateOffsets.add (bitOffset);
+					}
+				}
+			}
+		}
+
+	}
+
+
+	/**
+	 * Submits candidate blocks to the executor until the maximum number of pending blocks is
+	 * reached
+	 */
+	private void submitBlocks() {
+
+		while ((this.pendingTasks.size() < this.maximumPendingBlocks) && !this.candidateOffsets.isEmpty()) {
+			final long bitOffset = this.candidateOffsets.remove();
+			if (bitOffset >= this.nextBitOffset) {
+				final BZip2BlockDecompressionTask task = new BZip2BlockDecompressionTask (this.window, this.windowLength, bitOffset, this.streamBlockSize, this.inputExhausted, this.workspacePool, this.listener != null);
+				this.pendingTasks.add (task);
+				this.pendingFutures.add (this.executor.submit (task));
+			}
+		}
+
+	}
+
+
+	/**
+	 * Cancels and discards all blocks submitted to the executor
+	 */
+	private void cancelPendingBlocks() {
+
+		for (Future<BZip2BlockDecompressionTask> future : this.pendingFutures) {
+			future.cancel (false);
+		}
+		this.pendingFutures.clear();
+		this.pendingTasks.clear();
+
+	}
+
+
+	/**
+	 * Waits for a submitted block to be decompressed
+	 * @param future The future of the block's task
+	 * @return The completed task
+	 * @throws IOException if the block could not be decoded
+	 */
+	private static BZip2BlockDecompressionTask awaitBlock (final Future<BZip2BlockDecompressionTask> future) throws IOException {
+
+		try {
+			return future.get();
+		} catch (InterruptedException e) {
+			throw new InterruptedIOException ("Interrupted waiting for BZip2 block decompression");
+		} catch (ExecutionException e) {
+			final Throwable cause = e.getCause();
+			if (cause instanceof IOException) {
+				throw (IOException)cause;
+			}
+			throw new IOException ("Error decoding BZip2 block", cause);
+		}
+
+	}
+
+
+	/**
+	 * Reads the stream header and checks that the data appears to be a valid BZip2 stream
+	 * @param headerless If {@code true}, the caller is assumed to have read away the stream's
+	 *                   leading "BZ" identifier bytes
+	 * @return The declared block size of the stream
+	 * @throws IOException if the stream header is not valid
+	 */
+	public int readStreamHeader (final boolean headerless) throws IOException {
+
+		final int headerBits = headerless ? 16 : 32;
+		if (!ensureAvailable (headerBits)) {
+			throw new IOException ("Invalid BZip2 header");
+		}
+
+		final int marker1 = headerless ? 0 : (int)peekBits (this.nextBitOffset, 16);
+		final int marker2 = (int)peekBits (this.nextBitOffset + headerBits - 16, 8);
+		final int blockSize = (int)peekBits (this.nextBitOffset + headerBits - 8, 8) - '0';
+
+		if (
+				   (!headerless && (marker1 != BZip2Constants.STREAM_START_MARKER_1))
+				|| (marker2 != BZip2Constants.STREAM_START_MARKER_2)
+				|| (blockSize < 1) || (blockSize > 9))
+		{
+			throw new IOException ("Invalid BZip2 header");
+		}
+
+		this.nextBitOffset += headerBits;
+		setStreamBlockSize (blockSize * 100000);
+
+		return this.streamBlockSize;
+
+	}
+
+
+	/**
+	 * Reads the header of a further stream concatenated to the one just ended, beginning at the
+	 * following byte boundary
+	 * @return {@code true} if a further stream follows, or {@code false} if the input ends or
+	 *         continues with data other than a BZip2 stream
+	 * @throws IOException if the stream header is not valid
+	 */
+	private boolean readConcatenatedStreamHeader() throws IOException {
+
+		this.nextBitOffset = (this.nextBitOffset + 7) & ~7L;
+
+		final long streamStartMarker = (BZip2Constants.STREAM_START_MARKER_1 << 8) | BZip2Constants.STREAM_START_MARKER_2;
+		if (!ensureAvailable (32) || (peekBits (this.nextBitOffset, 24) != streamStartMarker)) {
+			return false;
+		}
+
+		final int blockSize = (int)peekBits (this.nextBitOffset + 24, 8) - '0';
+		if ((blockSize < 1) || (blockSize > 9)) {
+			throw new IOException ("Invalid BZip2 header");
+		}
+
+		this.nextBitOffset += 32;
+		setStreamBlockSize (blockSize * 100000);
+
+		return true;
+
+	}
+
+
+	/**
+	 * Sets the declared block size of the current stream. If it differs from that of the previous
+	 * stream, blocks already submitted with the previous block size are discarded and submitted
+	 * again
+	 * @param streamBlockSize The declared block size
+	 */
+	private void setStreamBlockSize (final int streamBlockSize) {
+
+		if (streamBlockSize != this.streamBlockSize) {
+			this.streamBlockSize = streamBlockSize;
+			this.windowCapacity = Math.max (this.windowCapacity, (this.maximumPendingBlocks + 1) * streamBlockSize);
+			cancelPendingBlocks();
+			this.candidateOffsets.clear();
+			findBlockHeaders();
+		}
+
+	}
+
+
+	/**
+	 * Returns the next decompressed block of the stream. If the end of stream marker is reached
+	 * instead, the stream CRC is verified, and reading continues with any concatenated stream
+	 * @return The decompressed block, or {@code null} if the end of the last stream was reached
+	 * @throws IOException if either the block or stream CRC check failed, if the following data is
+	 *                     not a valid block-header or end-of-file marker, or if the following
+	 *                     block could not be decoded
+	 */
+	public BZip2BlockDecompressionTask nextBlock() throws IOException {
+
+		for (;;) {
+
+			// Discard any blocks begun at false marker matches that have now been passed over
+			while (!this.pendingTasks.isEmpty() && (this.pendingTasks.peek().getBitOffset() < this.nextBitOffset)) {
+				this.pendingTasks.remove();
+				this.pendingFutures.remove().cancel (false);
+			}
+			submitBlocks();
+
+			if (!this.pendingTasks.isEmpty() && (this.pendingTasks.peek().getBitOffset() == this.nextBitOffset)) {
+				this.pendingTasks.remove();
+				final BZip2BlockDecompressionTask task = awaitBlock (this.pendingFutures.remove());
+
+				if (task.isTruncated()) {
+					moveWindow();
+					continue;
+				}
+
+				this.nextBitOffset = task.getEndBitOffset();
+				this.streamCRC = ((this.streamCRC << 1) | (this.streamCRC >>> 31)) ^ task.getCRC();
+				if ((this.listener != null) && (task.getStatistics() != null)) {
+					this.listener.blockDecompressed (task.getStatistics());
+				}
+				submitBlocks();
+
+				return task;
+			}
+
+			// The end of stream marker and stream CRC are the shortest valid data at this point. If
+			// they may extend beyond the window, move it and search again for a block header
+			if (((((long)this.windowLength << 3) - this.nextBitOffset) < 80)) {
+				if (!this.inputExhausted) {
+					moveWindow();
+					continue;
+				}
+				throw new IOException ("BZip2 stream format error");
+			}
+
+			if (peekBits (this.nextBitOffset, 48) == STREAM_END_MARKER) {
+				final int storedCombinedCRC = (int)peekBits (this.nextBitOffset + 48, 32);
+				this.nextBitOffset += 80;
+				if (storedCombinedCRC != this.streamCRC) {
+					throw new IOException ("BZip2 stream CRC error");
+				}
+				if (readConcatenatedStreamHeader()) {
+					this.streamCRC = 0;
+					continue;
+				}
+				return null;
+			}
+
+			throw new IOException ("BZip2 stream format error");
+
+		}
+
+	}
+
+
+	/**
+	 * Sets the listener to which the figures for each block are reported as it is returned by
+	 * {@link #nextBlock()}. Blocks already submitted to the executor when the listener is set are
+	 * not reported
+	 * @param listener The listener, or {@code null} for none
+	 */
+	public void setBlockListener (final BZip2BlockListener listener) {
+
+		this.listener = listener;
+
+	}
+
+
+	/**
+	 * Discards any blocks submitted to the executor. The input stream is not closed
+	 */
+	public void close() {
+
+		cancelPendingBlocks();
+		this.candidateOffsets.clear();
+
+	}
+
+
+	/**
+	 * @param inputStream The stream from which compressed BZip2 data is read
+	 * @param executor The executor on which blocks are decompressed
+	 * @param maximumPendingBlocks The maximum number of blocks that may be queued or decompressing
+	 *                             at once
+	 * @param workspacePool The pool from which block workspaces are taken
+	 */
+	public BZip2ParallelBlockReader (final InputStream inputStream, final ExecutorService executor, final int maximumPendingBlocks, final BZip2WorkspacePool workspacePool) {
+
+		this.inputStream = inputStream;
+		this.executor = executor;
+		this.maximumPendingBlocks = maximumPendingBlocks;
+		this.workspacePool = workspacePool;
+
+	}
+
+}
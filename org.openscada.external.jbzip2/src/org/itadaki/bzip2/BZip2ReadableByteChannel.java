@@ -0,0 +1,118 @@
+/*
+ * Copyright (c) 2011 Matthew Francis
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package org.itadaki.bzip2;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.ReadableByteChannel;
+
+
+/**
+ * <p>A ReadableByteChannel that decompresses BZip2 data through a {@link BZip2InputStream}</p>
+ *
+ * <p>Decompressed data is written directly into the buffers passed to {@link #read(ByteBuffer)},
+ * including direct buffers, without an intermediate array. A source channel must be in blocking
+ * mode.</p>
+ *
+ * <p>Closing the channel closes the input stream and, through it, the source channel.</p>
+ */
+public class BZip2ReadableByteChannel implements ReadableByteChannel {
+
+	/**
+	 * The stream through which data is decompressed
+	 */
+	private final BZip2InputStream inputStream;
+
+	/**
+	 * {@code true} if the channel is open, otherwise {@code false}
+	 */
+	private boolean open = true;
+
+
+	/* (non-Javadoc)
+	 * @see java.nio.channels.ReadableByteChannel#read(java.nio.ByteBuffer)
+	 */
+	public int read (final ByteBuffer destination) throws IOException {
+
+		if (!this.open) {
+			throw new ClosedChannelException();
+		}
+
+		if (!destination.hasRemaining()) {
+			return 0;
+		}
+
+		return this.inputStream.read (destination);
+
+	}
+
+
+	/* (non-Javadoc)
+	 * @see java.nio.channels.Channel#isOpen()
+	 */
+	public boolean isOpen() {
+
+		return this.open;
+
+	}
+
+
+	/* (non-Javadoc)
+	 * @see java.nio.channels.Channel#close()
+	 */
+	public void close() throws IOException {
+
+		if (this.open) {
+			this.open = false;
+			this.inputStream.close();
+		}
+
+	}
+
+
+	/**
+	 * @param inputStream The stream through which to decompress data
+	 */
+	public BZip2ReadableByteChannel (final BZip2InputStream inputStream) {
+
+		if (inputStream == null) {
+			throw new IllegalArgumentException ("Null input stream");
+		}
+
+		this.inputStream = inputStream;
+
+	}
+
+
+	/**
+	 * @param channel The channel from which compressed data is read
+	 */
+	public BZip2ReadableByteChannel (final ReadableByteChannel channel) {
+
+		this (new BZip2InputStream (Channels.newInputStream (channel), false));
+
+	}
+
+}
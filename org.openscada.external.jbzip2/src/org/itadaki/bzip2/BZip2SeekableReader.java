@@ -0,0 +1,417 @@
+/*
+ * Copyright (c) 2011 Matthew Francis
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package org.itadaki.bzip2;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+
+
+/**
+ * <p>An InputStream that decompresses a BZip2 file and supports repositioning within the
+ * decompressed data through {@link #seek(long)}</p>
+ *
+ * <p>Random access is provided by a {@link BZip2BlockIndex}, which is either built when the reader
+ * is constructed, by decompressing the whole file once, or supplied by the caller, for instance
+ * having been persisted in a sidecar file by an earlier reader. On seeking, decompression begins
+ * at the start of the block containing the new position, and the block's data is decoded and
+ * discarded up to that position. A file holding several concatenated streams, as written by
+ * {@link BZip2OutputStream#append(File, int)}, is read as a single continuous stream.</p>
+ *
+ * <p>Each block's CRC is verified once the block has been read to its end. As blocks may be read
+ * in any order, the stream CRC is verified only when the index is built.</p>
+ */
+public class BZip2SeekableReader extends InputStream {
+
+	/**
+	 * The compressed file
+	 */
+	private RandomAccessFile file;
+
+	/**
+	 * The index of the file's blocks
+	 */
+	private final BZip2BlockIndex index;
+
+	/**
+	 * The workspace shared by the blocks decompressed by the reader
+	 */
+	private final BZip2BlockWorkspace workspace = new BZip2BlockWorkspace();
+
+	/**
+	 * A buffer for single byte reads
+	 */
+	private final byte[] byteBuffer = new byte[1];
+
+	/**
+	 * A buffer into which data is discarded when skipping within a block
+	 */
+	private byte[] skipBuffer;
+
+	/**
+	 * The bit stream from which the current block is read
+	 */
+	private BitInputStream bitInputStream;
+
+	/**
+	 * The bit offset within the file at which {@link #bitInputStream} begins
+	 */
+	private long bitInputStreamOffset;
+
+	/**
+	 * The decompressor for the current block, or {@code null} if no block is open
+	 */
+	private BZip2BlockDecompressor blockDecompressor;
+
+	/**
+	 * The index of the current block
+	 */
+	private int block;
+
+	/**
+	 * The decompressed position of the next byte to be returned by the current block decompressor
+	 */
+	private long blockPosition;
+
+	/**
+	 * The decompressed position following the end of the current block
+	 */
+	private long blockEnd;
+
+	/**
+	 * The decompressed position of the next byte to be read
+	 */
+	private long position;
+
+
+	/**
+	 * Adapts the compressed file to an InputStream, reading from its current file pointer
+	 */
+	private static class RandomAccessFileInputStream extends InputStream {
+
+		/**
+		 * The file to read from
+		 */
+		private final RandomAccessFile file;
+
+		/* (non-Javadoc)
+		 * @see java.io.InputStream#read()
+		 */
+		@Override
+		public int read() throws IOException {
+
+			return this.file.read();
+
+		}
+
+		/* (non-Javadoc)
+		 * @see java.io.InputStream#read(byte[], int, int)
+		 */
+		@Override
+		public int read (final byte[] destination, final int offset, final int length) throws IOException {
+
+			return this.file.read (destination, offset, length);
+
+		}
+
+		/**
+		 * @param file The file to read from
+		 */
+		public RandomAccessFileInputStream (final RandomAccessFile file) {
+
+			this.file = file;
+
+		}
+
+	}
+
+
+	/**
+	 * Opens a block by positioning the compressed file at its header marker
+	 * @param block The index of the block
+	 * @throws IOException if the block header is invalid, or on any I/O error reading the file
+	 */
+	private void openBlock (final int block) throws IOException {
+
+		final long bitOffset = this.index.getBlockBitOffset (block);
+
+		this.blockDecompressor = null;
+		this.file.seek (bitOffset >>> 3);
+		this.bitInputStream = new BitInputStream (new RandomAccessFileInputStream (this.file));
+		this.bitInputStreamOffset = bitOffset & ~7L;
+		this.bitInputStream.readBits ((int)(bitOffset & 7));
+
+		openNextBlock (block);
+
+	}
+
+
+	/**
+	 * Opens a block by reading its header marker from the current bit stream
+	 * @param block The index of the block
+	 * @throws IOException if the block header is invalid, or on any I/O error reading the file
+	 */
+	private void openNextBlock (final int block) throws IOException {
+
+		this.blockDecompressor = null;
+
+		final int marker1 = this.bitInputStream.readBits (24);
+		final int marker2 = this.bitInputStream.readBits (24);
+
+		if ((marker1 != BZip2Constants.BLOCK_HEADER_MARKER_1) || (marker2 != BZip2Constants.BLOCK_HEADER_MARKER_2)) {
+			throw new IOException ("BZip2 block index does not match stream");
+		}
+
+		this.blockDecompressor = new BZip2BlockDecompressor (this.bitInputStream, this.index.getBlockSize (block), this.workspace);
+		this.block = block;
+		this.blockPosition = this.index.getBlockUncompressedOffset (block);
+		this.blockEnd = this.index.getBlockUncompressedEnd (block);
+
+	}
+
+
+	/**
+	 * Reads from the current block decompressor, checking the block CRC once the block has been
+	 * read completely
+	 * @param destination The array to write to
+	 * @param offset The starting position within the array
+	 * @param length The number of bytes to read. Must not extend beyond the end of the block
+	 * @throws IOException if the block is shorter than indexed or its CRC is invalid
+	 */
+	private void readBlock (final byte[] destination, final int offset, final int length) throws IOException {
+
+		int bytesRead = 0;
+		while (bytesRead < length) {
+			final int blockBytesRead = this.blockDecompressor.read (destination, offset + bytesRead, length - bytesRead);
+			if (blockBytesRead == -1) {
+				this.blockDecompressor = null;
+				throw new IOException ("BZip2 block index does not match stream");
+			}
+			bytesRead += blockBytesRead;
+		}
+
+		this.blockPosition += length;
+		if (this.blockPosition == this.blockEnd) {
+			this.blockDecompressor.checkCRC();
+		}
+
+	}
+
+
+	/**
+	 * Prepares the current block decompressor to return the byte at the current position, opening
+	 * the block that contains it and discarding data up to it as required
+	 * @return {@code true} if a byte is available, or {@code false} at the end of the data
+	 * @throws IOException on any error opening or reading the block
+	 */
+	private boolean prepareRead() throws IOException {
+
+		if (this.file == null) {
+			throw new IOException ("Stream closed");
+		}
+
+		if (this.position >= this.index.getUncompressedLength()) {
+			return false;
+		}
+
+		if ((this.blockDecompressor == null) || (this.position < this.blockPosition) || (this.position >= this.blockEnd)) {
+			final int block = this.index.findBlock (this.position);
+			final long bitOffset = this.index.getBlockBitOffset (block);
+			if ((this.blockDecompressor != null) && ((this.bitInputStreamOffset + this.bitInputStream.getBitsRead()) == bitOffset)) {
+				// The whole of the current block has already been read from the bit stream, which
+				// can continue directly into the following block
+				openNextBlock (block);
+			} else {
+				openBlock (block);
+			}
+		}
+
+		while (this.blockPosition < this.position) {
+			if (this.skipBuffer == null) {
+				this.skipBuffer = new byte[8192];
+			}
+			readBlock (this.skipBuffer, 0, (int) Math.min (this.skipBuffer.length, this.position - this.blockPosition));
+		}
+
+		return true;
+
+	}
+
+
+	/* (non-Javadoc)
+	 * @see java.io.InputStream#read()
+	 */
+	@Override
+	public int read() throws IOException {
+
+		return (read (this.byteBuffer, 0, 1) == -1) ? -1 : (this.byteBuffer[0] & 0xff);
+
+	}
+
+
+	/* (non-Javadoc)
+	 * @see java.io.InputStream#read(byte[], int, int)
+	 */
+	@Override
+	public int read (final byte[] destination, final int offset, final int length) throws IOException {
+
+		if (!prepareRead()) {
+			return -1;
+		}
+
+		final int bytesRead = (int) Math.min (length, this.blockEnd - this.position);
+		readBlock (destination, offset, bytesRead);
+		this.position += bytesRead;
+
+		return bytesRead;
+
+	}
+
+
+	/* (non-Javadoc)
+	 * @see java.io.InputStream#skip(long)
+	 */
+	@Override
+	public long skip (final long count) throws IOException {
+
+		if (count <= 0) {
+			return 0;
+		}
+
+		final long skipped = Math.max (0, Math.min (count, this.index.getUncompressedLength() - this.position));
+		this.position += skipped;
+
+		return skipped;
+
+	}
+
+
+	/* (non-Javadoc)
+	 * @see java.io.InputStream#close()
+	 */
+	@Override
+	public void close() throws IOException {
+
+		if (this.file != null) {
+			this.blockDecompressor = null;
+			this.bitInputStream = null;
+			this.file.close();
+			this.file = null;
+		}
+
+	}
+
+
+	/**
+	 * Sets the decompressed position from which the next byte will be read. The position may be set
+	 * beyond the end of the data, in which case subsequent reads return {@code -1}. Decompression
+	 * takes place on the next read
+	 * @param position The decompressed position
+	 * @throws IOException if the position is negative or the reader has been closed
+	 */
+	public void seek (final long position) throws IOException {
+
+		if (this.file == null) {
+			throw new IOException ("Stream closed");
+		}
+
+		if (position < 0) {
+			throw new IOException ("Invalid position " + position);
+		}
+
+		this.position = position;
+
+	}
+
+
+	/**
+	 * @return The decompressed position of the next byte to be read
+	 */
+	public long getPosition() {
+
+		return this.position;
+
+	}
+
+
+	/**
+	 * @return The length in bytes of the decompressed data
+	 */
+	public long getLength() {
+
+		return this.index.getUncompressedLength();
+
+	}
+
+
+	/**
+	 * @return The index of the file's blocks, which may be persisted for use by later readers
+	 */
+	public BZip2BlockIndex getIndex() {
+
+		return this.index;
+
+	}
+
+
+	/**
+	 * Opens a file and builds its block index by decompressing it completely
+	 * @param file The BZip2 file to read
+	 * @throws IOException if the file is not a valid BZip2 stream, or on any I/O error reading it
+	 */
+	public BZip2SeekableReader (final File file) throws IOException {
+
+		this.file = new RandomAccessFile (file, "r");
+
+		try {
+			this.index = BZip2BlockIndex.build (new RandomAccessFileInputStream (this.file));
+		} catch (IOException e) {
+			this.file.close();
+			throw e;
+		}
+
+	}
+
+
+	/**
+	 * Opens a file using an existing block index
+	 * @param file The BZip2 file to read
+	 * @param index The file's block index
+	 * @throws IOException if the file is shorter than the stream described by the index, or on any
+	 *                     I/O error opening it
+	 */
+	public BZip2SeekableReader (final File file, final BZip2BlockIndex index) throws IOException {
+
+		this.file = new RandomAccessFile (file, "r");
+		this.index = index;
+
+		// Bytes following the indexed stream are ignored, as they are when the index is built
+		if (this.file.length() < index.getCompressedLength()) {
+			this.file.close();
+			throw new IOException ("BZip2 block index does not match stream");
+		}
+
+	}
+
+}
@@ -0,0 +1,266 @@
+/*
+ * Copyright (c) 2011 Matthew Francis
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+
+package org.itadaki.bzip2;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+
+/**
+ * <p>A {@link BZip2BlockListener} that accumulates the figures for every block reported to it. A
+ * single instance may be shared between any number of streams, compressing and decompressing on
+ * any number of threads.</p>
+ *
+ * <p>The accumulated figures are available through {@link BZip2StatisticsMBean}, so an instance
+ * can be registered directly with a JMX MBean server, for example by an OSGi service that owns it
+ * and attaches it to the streams it creates. Each figure is updated atomically, but a set of
+ * figures read together is not guaranteed to be a consistent snapshot.</p>
+ */
+public class BZip2Statistics implements BZip2BlockListener, BZip2StatisticsMBean {
+
+	/**
+	 * The number of blocks compressed
+	 */
+	private final AtomicLong compressedBlocks = new AtomicLong();
+
+	/**
+	 * The number of uncompressed bytes written to compressed blocks
+	 */
+	private final AtomicLong compressionInputBytes = new AtomicLong();
+
+	/**
+	 * The number of compressed bits produced
+	 */
+	private final AtomicLong compressionOutputBits = new AtomicLong();
+
+	/**
+	 * The total time spent in the Burrows Wheeler Transform stage
+	 */
+	private final AtomicLong compressionBurrowsWheelerTime = new AtomicLong();
+
+	/**
+	 * The total time spent in the Move To Front / Run-Length Encoding stage
+	 */
+	private final AtomicLong compressionMoveToFrontTime = new AtomicLong();
+
+	/**
+	 * The total time spent in the Huffman encoding stage
+	 */
+	private final AtomicLong compressionHuffmanTime = new AtomicLong();
+
+	/**
+	 * The number of blocks decompressed
+	 */
+	private final AtomicLong decompressedBlocks = new AtomicLong();
+
+	/**
+	 * The number of compressed bits read from decompressed blocks
+	 */
+	private final AtomicLong decompressionInputBits = new AtomicLong();
+
+	/**
+	 * The number of decompressed bytes produced
+	 */
+	private final AtomicLong decompressionOutputBytes = new AtomicLong();
+
+	/**
+	 * The total time spent in the Huffman and Move To Front decoding stage
+	 */
+	private final AtomicLong decompressionHuffmanTime = new AtomicLong();
+
+	/**
+	 * The total time spent in the Inverse Burrows Wheeler Transform stage
+	 */
+	private final AtomicLong decompressionBurrowsWheelerTime = new AtomicLong();
+
+
+	/* (non-Javadoc)
+	 * @see org.itadaki.bzip2.BZip2BlockListener#blockCompressed(org.itadaki.bzip2.BZip2BlockStatistics)
+	 */
+	public void blockCompressed (final BZip2BlockStatistics statistics) {
+
+		this.compressedBlocks.incrementAndGet();
+		this.compressionInputBytes.addAndGet (statistics.getUncompressedLength());
+		this.compressionOutputBits.addAndGet (statistics.getCompressedBits());
+		this.compressionBurrowsWheelerTime.addAndGet (statistics.getBurrowsWheelerTime());
+		this.compressionMoveToFrontTime.addAndGet (statistics.getMoveToFrontTime());
+		this.compressionHuffmanTime.addAndGet (statistics.getHuffmanTime());
+
+	}
+
+
+	/* (non-Javadoc)
+	 * @see org.itadaki.bzip2.BZip2BlockListener#blockDecompressed(org.itadaki.bzip2.BZip2BlockStatistics)
+	 */
+	public void blockDecompressed (final BZip2BlockStatistics statistics) {
+
+		this.decompressedBlocks.incrementAndGet();
+		this.decompressionInputBits.addAndGet (statistics.getCompressedBits());
+		this.decompressionOutputBytes.addAndGet (statistics.getUncompressedLength());
+		this.decompressionHuffmanTime.addAndGet (statistics.getHuffmanTime());
+		this.decompressionBurrowsWheelerTime.addAndGet (statistics.getBurrowsWheelerTime());
+
+	}
+
+
+	/* (non-Javadoc)
+	 * @see org.itadaki.bzip2.BZip2StatisticsMBean#getCompressedBlocks()
+	 */
+	public long getCompressedBlocks() {
+
+		return this.compressedBlocks.get();
+
+	}
+
+
+	/* (non-Javadoc)
+	 * @see org.itadaki.bzip2.BZip2StatisticsMBean#getCompressionInputBytes()
+	 */
+	public long getCompressionInputBytes() {
+
+		return this.compressionInputBytes.get();
+
+	}
+
+
+	/* (non-Javadoc)
+	 * @see org.itadaki.bzip2.BZip2StatisticsMBean#getCompressionOutputBytes()
+	 */
+	public long getCompressionOutputBytes() {
+
+		return (this.compressionOutputBits.get() + 7) >>> 3;
+
+	}
+
+
+	/* (non-Javadoc)
+	 * @see org.itadaki.bzip2.BZip2StatisticsMBean#getCompressionRatio()
+	 */
+	public double getCompressionRatio() {
+
+		final long outputBits = this.compressionOutputBits.get();
+		return (outputBits == 0) ? 0 : (this.compressionInputBytes.get() * 8.0) / outputBits;
+
+	}
+
+
+	/* (non-Javadoc)
+	 * @see org.itadaki.bzip2.BZip2StatisticsMBean#getCompressionBurrowsWheelerTime()
+	 */
+	public long getCompressionBurrowsWheelerTime() {
+
+		return this.compressionBurrowsWheelerTime.get();
+
+	}
+
+
+	/* (non-Javadoc)
+	 * @see org.itadaki.bzip2.BZip2StatisticsMBean#getCompressionMoveToFrontTime()
+	 */
+	public long getCompressionMoveToFrontTime() {
+
+		return this.compressionMoveToFrontTime.get();
+
+	}
+
+
+	/* (non-Javadoc)
+	 * @see org.itadaki.bzip2.BZip2StatisticsMBean#getCompressionHuffmanTime()
+	 */
+	public long getCompressionHuffmanTime() {
+
+		return this.compressionHuffmanTime.get();
+
+	}
+
+
+	/* (non-Javadoc)
+	 * @see org.itadaki.bzip2.BZip2StatisticsMBean#getDecompressedBlocks()
+	 */
+	public long getDecompressedBlocks() {
+
+		return this.decompressedBlocks.get();
+
+	}
+
+
+	/* (non-Javadoc)
+	 * @see org.itadaki.bzip2.BZip2StatisticsMBean#getDecompressionInputBytes()
+	 */
+	public long getDecompressionInputBytes() {
+
+		return (this.decompressionInputBits.get() + 7) >>> 3;
+
+	}
+
+
+	/* (non-Javadoc)
+	 * @see org.itadaki.bzip2.BZip2StatisticsMBean#getDecompressionOutputBytes()
+	 */
+	public long getDecompressionOutputBytes() {
+
+		return this.decompressionOutputBytes.get();
+
+	}
+
+
+	/* (non-Javadoc)
+	 * @see org.itadaki.bzip2.BZip2StatisticsMBean#getDecompressionHuffmanTime()
+	 */
+	public long getDecompressionHuffmanTime() {
+
+		return this.decompressionHuffmanTime.get();
+
+	}
+
+
+	/* (non-Javadoc)
+	 * @see org.itadaki.bzip2.BZip2StatisticsMBean#getDecompressionBurrowsWheelerTime()
+	 */
+	public long getDecompressionBurrowsWheelerTime() {
+
+		return this.decompressionBurrowsWheelerTime.get();
+
+	}
+
+
+	/* (non-Javadoc)
+	 * @see org.itadaki.bzip2.BZip2StatisticsMBean#reset()
+	 */
+	public void reset() {
+
+		this.compressedBlocks.set (0);
+		this.compressionInputBytes.set (0);
+		this.compressionOutputBits.set (0);
+		this.compressionBurrowsWheelerTime.set (0);
+		this.compressionMoveToFrontTime.set (0);
+		this.compressionHuffmanTime.set (0);
+		this.decompressedBlocks.set (0);
+		this.decompressionInputBits.set (0);
+		this.decompressionOutputBytes.set (0);
+		this.decompressionHuffmanTime.set (0);
+		this.decompressionBurrowsWheelerTime.set (0);
+
+	}
+
+}
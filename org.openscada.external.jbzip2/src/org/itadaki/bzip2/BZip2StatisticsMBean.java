@@ -0,0 +1,99 @@
+/*
+ * Copyright (c) 2011 Matthew Francis
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+
+package org.itadaki.bzip2;
+
+
+/**
+ * The management interface of {@link BZip2Statistics}, following the standard MBean naming
+ * convention so that it may be registered with a JMX MBean server without further adaptation. All
+ * times are in nanoseconds
+ */
+public interface BZip2StatisticsMBean {
+
+	/**
+	 * @return The number of blocks compressed
+	 */
+	public long getCompressedBlocks();
+
+	/**
+	 * @return The number of uncompressed bytes written to compressed blocks
+	 */
+	public long getCompressionInputBytes();
+
+	/**
+	 * @return The number of compressed bytes produced
+	 */
+	public long getCompressionOutputBytes();
+
+	/**
+	 * @return The overall ratio of uncompressed to compressed bytes when compressing
+	 */
+	public double getCompressionRatio();
+
+	/**
+	 * @return The total time spent in the Burrows Wheeler Transform stage
+	 */
+	public long getCompressionBurrowsWheelerTime();
+
+	/**
+	 * @return The total time spent in the Move To Front / Run-Length Encoding stage
+	 */
+	public long getCompressionMoveToFrontTime();
+
+	/**
+	 * @return The total time spent in the Huffman encoding stage
+	 */
+	public long getCompressionHuffmanTime();
+
+	/**
+	 * @return The number of blocks decompressed
+	 */
+	public long getDecompressedBlocks();
+
+	/**
+	 * @return The number of compressed bytes read from decompressed blocks
+	 */
+	public long getDecompressionInputBytes();
+
+	/**
+	 * @return The number of decompressed bytes produced
+	 */
+	public long getDecompressionOutputBytes();
+
+	/**
+	 * @return The total time spent in the Huffman and Move To Front decoding stage
+	 */
+	public long getDecompressionHuffmanTime();
+
+	/**
+	 * @return The total time spent in the Inverse Burrows Wheeler Transform stage
+	 */
+	public long getDecompressionBurrowsWheelerTime();
+
+	/**
+	 * Resets all figures to zero
+	 */
+	public void reset();
+
+}
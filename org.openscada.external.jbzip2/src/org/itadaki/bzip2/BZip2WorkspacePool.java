@@ -0,0 +1,103 @@
+/*
+ * Copyright (c) 2011 Matthew Francis
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package org.itadaki.bzip2;
+
+import java.util.ArrayDeque;
+
+
+/**
+ * <p>A pool of block workspaces that may be shared between any number of {@link BZip2InputStream}s
+ * and {@link BZip2OutputStream}s. Streams take a workspace from the pool for each block they
+ * compress or decompress and return it afterwards, so that many short-lived streams reuse the same
+ * working memory rather than each allocating their own.</p>
+ *
+ * <p>A workspace used for a block size of 900,000 bytes holds around 8MB when used for compression
+ * and around 4.5MB when used for decompression. Only idle workspaces are retained by the pool, up to
+ * the configured maximum; if more are in use at once, additional workspaces are allocated and
+ * discarded on return.</p>
+ *
+ * <p>Instances of this class are threadsafe.</p>
+ */
+public class BZip2WorkspacePool {
+
+	/**
+	 * The maximum number of idle workspaces to retain
+	 */
+	private final int maximumWorkspaces;
+
+	/**
+	 * The idle workspaces
+	 */
+	private final ArrayDeque<BZip2BlockWorkspace> workspaces = new ArrayDeque<BZip2BlockWorkspace>();
+
+
+	/**
+	 * Takes a workspace from the pool, allocating a new one if none are idle
+	 * @return The workspace
+	 */
+	synchronized BZip2BlockWorkspace acquire() {
+
+		final BZip2BlockWorkspace workspace = this.workspaces.poll();
+
+		return (workspace == null) ? new BZip2BlockWorkspace() : workspace;
+
+	}
+
+
+	/**
+	 * Returns a workspace to the pool. The workspace must not be used again by the caller
+	 * @param workspace The workspace to return
+	 */
+	synchronized void release (final BZip2BlockWorkspace workspace) {
+
+		if (this.workspaces.size() < this.maximumWorkspaces) {
+			this.workspaces.push (workspace);
+		}
+
+	}
+
+
+	/**
+	 * Discards all idle workspaces
+	 */
+	public synchronized void clear() {
+
+		this.workspaces.clear();
+
+	}
+
+
+	/**
+	 * @param maximumWorkspaces The maximum number of idle workspaces to retain
+	 */
+	public BZip2WorkspacePool (final int maximumWorkspaces) {
+
+		if (maximumWorkspaces < 0) {
+			throw new IllegalArgumentException ("Invalid maximum workspace count " + maximumWorkspaces);
+		}
+
+		this.maximumWorkspaces = maximumWorkspaces;
+
+	}
+
+}
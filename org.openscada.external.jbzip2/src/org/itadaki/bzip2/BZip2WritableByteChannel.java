@@ -0,0 +1,125 @@
+/*
+ * Copyright (c) 2011 Matthew Francis
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package org.itadaki.bzip2;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.WritableByteChannel;
+
+
+/**
+ * <p>A WritableByteChannel that compresses data to BZip2 format through a {@link BZip2OutputStream}
+ * </p>
+ *
+ * <p>Data is taken directly from the buffers passed to {@link #write(ByteBuffer)}, so that a memory
+ * mapped file may be compressed without being copied to the heap. The compressed data is written
+ * to the target channel from the output stream's internal buffer. A target channel must be in
+ * blocking mode.</p>
+ *
+ * <p>Closing the channel finishes and closes the output stream and, through it, the target
+ * channel.</p>
+ */
+public class BZip2WritableByteChannel implements WritableByteChannel {
+
+	/**
+	 * The stream through which data is compressed
+	 */
+	private final BZip2OutputStream outputStream;
+
+	/**
+	 * {@code true} if the channel is open, otherwise {@code false}
+	 */
+	private boolean open = true;
+
+
+	/* (non-Javadoc)
+	 * @see java.nio.channels.WritableByteChannel#write(java.nio.ByteBuffer)
+	 */
+	public int write (final ByteBuffer source) throws IOException {
+
+		if (!this.open) {
+			throw new ClosedChannelException();
+		}
+
+		final int length = source.remaining();
+		this.outputStream.write (source);
+
+		return length;
+
+	}
+
+
+	/* (non-Javadoc)
+	 * @see java.nio.channels.Channel#isOpen()
+	 */
+	public boolean isOpen() {
+
+		return this.open;
+
+	}
+
+
+	/* (non-Javadoc)
+	 * @see java.nio.channels.Channel#close()
+	 */
+	public void close() throws IOException {
+
+		if (this.open) {
+			this.open = false;
+			this.outputStream.close();
+		}
+
+	}
+
+
+	/**
+	 * @param outputStream The stream through which to compress data
+	 */
+	public BZip2WritableByteChannel (final BZip2OutputStream outputStream) {
+
+		if (outputStream == null) {
+			throw new IllegalArgumentException ("Null output stream");
+		}
+
+		this.outputStream = outputStream;
+
+	}
+
+
+	/**
+	 * @param channel The channel to which compressed data is written
+	 * @param blockSizeMultiplier The BZip2 block size as a multiple of 100,000 bytes (minimum 1,
+	 *                            maximum 9). Larger block sizes require more memory for both
+	 *                            compression and decompression, but give better compression ratios.
+	 *                            {@code 9} will usually be the best value to use
+	 * @throws IOException on any I/O error writing to the channel
+	 */
+	public BZip2WritableByteChannel (final WritableByteChannel channel, final int blockSizeMultiplier) throws IOException {
+
+		this (new BZip2OutputStream (Channels.newOutputStream (channel), blockSizeMultiplier));
+
+	}
+
+}
@@ -22,26 +22,58 @@
 
 package org.itadaki.bzip2;
 
+import java.io.EOFException;
 import java.io.IOException;
 import java.io.InputStream;
 
 
 /**
  * <p>An InputStream wrapper that allows the reading of single bit booleans, unary numbers, bit
- * strings of arbitrary length (up to 24 bits), and bit aligned 32-bit integers. A single byte at a
- * time is read from the wrapped stream when more bits are required</p>
+ * strings of arbitrary length (up to 24 bits), and bit aligned 32-bit integers. Data is read from
+ * the wrapped stream in chunks into an internal buffer, and from there into a 64-bit bit buffer
+ * several bytes at a time</p>
+ *
+ * <p>As data is read ahead, the wrapped stream will usually have been read beyond the last bit
+ * actually returned.</p>
  */
 public class BitInputStream {
 
 	/**
-	 * The stream from which bits are read
+	 * The size of the internal buffer used when wrapping an InputStream
+	 */
+	private static final int BUFFER_SIZE = 8192;
+
+	/**
+	 * The stream from which bits are read, or {@code null} if reading from a fixed array
 	 */
 	private final InputStream inputStream;
 
 	/**
-	 * A buffer of bits read from the input stream that have not yet been returned
+	 * A buffer of bytes read from the input stream that have not yet been transferred to
+	 * {@link #bitBuffer}
+	 */
+	private final byte[] buffer;
+
+	/**
+	 * The position of the next byte to be transferred from {@link #buffer}
+	 */
+	private int bufferPosition;
+
+	/**
+	 * The end of valid data within {@link #buffer}
+	 */
+	private int bufferLimit;
+
+	/**
+	 * The total number of bytes placed into {@link #buffer} before the current contents
 	 */
-	private int bitBuffer;
+	private long bufferBase = 0;
+
+	/**
+	 * A buffer of bits read from the input stream that have not yet been returned. The valid bits
+	 * are the lowest {@link #bitCount} bits; any higher bits are stale
+	 */
+	private long bitBuffer;
 
 	/**
 	 * The number of bits currently buffered in {@link #bitBuffer}
@@ -50,31 +82,96 @@ public class BitInputStream {
 
 
 	/**
-	 * Reads a single bit from the wrapped input stream
-	 * @return {@code true} if the bit read was {@code 1}, otherwise {@code false}
-	 * @throws IOException if no more bits are available in the input stream
+	 * Refills the internal buffer from the input stream
+	 * @return {@code true} if more data was read, or {@code false} if the end of the input has
+	 *         been reached
+	 * @throws IOException on any I/O error reading from the input stream
 	 */
-	public boolean readBoolean() throws IOException {
+	private boolean fillBuffer() throws IOException {
 
-		int bitBuffer = this.bitBuffer;
-		int bitCount = this.bitCount;
+		if (this.inputStream == null) {
+			return false;
+		}
+
+		int bytesRead;
+		do {
+			bytesRead = this.inputStream.read (this.buffer, 0, this.buffer.length);
+		} while (bytesRead == 0);
+
+		if (bytesRead < 0) {
+			return false;
+		}
+
+		this.bufferBase += this.bufferLimit;
+		this.bufferPosition = 0;
+		this.bufferLimit = bytesRead;
+
+		return true;
+
+	}
+
+
+	/**
+	 * Transfers as many whole bytes as will fit from the internal buffer to the bit buffer
+	 * @throws IOException on any I/O error reading from the input stream
+	 */
+	private void fillBitBuffer() throws IOException {
 
-		if (bitCount > 0) {
-			bitCount--;
-		} else {
-			int byteRead = this.inputStream.read();
+		final byte[] buffer = this.buffer;
+		long bitBuffer = this.bitBuffer;
+		int bitCount = this.bitCount;
 
-			if (byteRead < 0) {
-				throw new IOException ("Unexpected end of stream");
+		while (bitCount <= 56) {
+			if ((this.bufferPosition == this.bufferLimit) && !fillBuffer()) {
+				break;
 			}
+			int bufferPosition = this.bufferPosition;
+			final int bytes = Math.min ((64 - bitCount) >>> 3, this.bufferLimit - bufferPosition);
+			for (int i = 0; i < bytes; i++) {
+				bitBuffer = (bitBuffer << 8) | (buffer[bufferPosition++] & 0xff);
+			}
+			bitCount += bytes << 3;
+			this.bufferPosition = bufferPosition;
+		}
+
+		this.bitBuffer = bitBuffer;
+		this.bitCount = bitCount;
+
+	}
 
-			bitBuffer = (bitBuffer << 8) | byteRead;
-			bitCount += 7;
-			this.bitBuffer = bitBuffer;
+
+	/**
+	 * Fills the bit buffer, ensuring that at least the given number of bits are available
+	 * @param count The minimum number of bits required in the bit buffer (maximum 32)
+	 * @throws IOException if fewer than the required number of bits are available in the input
+	 *                     stream
+	 */
+	private void requireBits (final int count) throws IOException {
+
+		fillBitBuffer();
+
+		if (this.bitCount < count) {
+			throw new EOFException ("Unexpected end of stream");
 		}
 
+	}
+
+
+	/**
+	 * Reads a single bit from the wrapped input stream
+	 * @return {@code true} if the bit read was {@code 1}, otherwise {@code false}
+	 * @throws IOException if no more bits are available in the input stream
+	 */
+	public boolean readBoolean() throws IOException {
+
+		if (this.bitCount == 0) {
+			requireBits (1);
+		}
+
+		final int bitCount = this.bitCount - 1;
 		this.bitCount = bitCount;
-		return ((bitBuffer & (1 << bitCount))) != 0;
+
+		return ((this.bitBuffer >>> bitCount) & 1) != 0;
 
 	}
 
@@ -86,30 +183,26 @@ public class BitInputStream {
 	 */
 	public int readUnary() throws IOException {
 
-		int bitBuffer = this.bitBuffer;
-		int bitCount = this.bitCount;
 		int unaryCount = 0;
 
 		for (;;) {
-			if (bitCount > 0) {
-				bitCount--;
-			} else  {
-				int byteRead = this.inputStream.read();
+			if (this.bitCount == 0) {
+				requireBits (1);
+			}
 
-				if (byteRead < 0) {
-					throw new IOException ("Unexpected end of stream");
-				}
+			final long bitBuffer = this.bitBuffer;
+			int bitCount = this.bitCount;
 
-				bitBuffer = (bitBuffer << 8) | byteRead;
-				bitCount += 7;
+			while (bitCount > 0) {
+				bitCount--;
+				if (((bitBuffer >>> bitCount) & 1) == 0) {
+					this.bitCount = bitCount;
+					return unaryCount;
+				}
+				unaryCount++;
 			}
 
-			if (((bitBuffer & (1 << bitCount))) == 0) {
-				this.bitBuffer = bitBuffer;
-				this.bitCount = bitCount;
-				return unaryCount;
-			}
-			unaryCount++;
+			this.bitCount = 0;
 		}
 
 	}
@@ -123,28 +216,54 @@ public class BitInputStream {
 	 */
 	public int readBits (final int count) throws IOException {
 
-		int bitBuffer = this.bitBuffer;
-		int bitCount = this.bitCount;
+		if (this.bitCount < count) {
+			requireBits (count);
+		}
 
-		if (bitCount < count) {
-			while (bitCount < count) {
-				int byteRead = this.inputStream.read();
+		final int bitCount = this.bitCount - count;
+		this.bitCount = bitCount;
 
-				if (byteRead < 0) {
-					throw new IOException ("Unexpected end of stream");
-				}
+		return (int)(this.bitBuffer >>> bitCount) & ((1 << count) - 1);
 
-				bitBuffer = (bitBuffer << 8) | byteRead;
-				bitCount += 8;
-			}
+	}
+
+
+	/**
+	 * Returns up to 24 bits from the wrapped input stream without consuming them. If fewer bits
+	 * than requested remain before the end of the input, the available bits are padded with zeroes
+	 * @param count The number of bits to return (maximum 24)
+	 * @return The bits requested, right-aligned within the integer
+	 * @throws IOException on any I/O error reading from the input stream
+	 */
+	public int peekBits (final int count) throws IOException {
 
-			this.bitBuffer = bitBuffer;
+		if (this.bitCount < count) {
+			fillBitBuffer();
 		}
 
-		bitCount -= count;
-		this.bitCount = bitCount;
+		final int bitCount = this.bitCount;
+		if (bitCount < count) {
+			return (int)(this.bitBuffer << (count - bitCount)) & ((1 << count) - 1);
+		}
 
-		return (bitBuffer >>> bitCount) & ((1 << count) - 1);
+		return (int)(this.bitBuffer >>> (bitCount - count)) & ((1 << count) - 1);
+
+	}
+
+
+	/**
+	 * Consumes bits from the wrapped input stream, usually after examining them with
+	 * {@link #peekBits(int)}
+	 * @param count The number of bits to consume (maximum 24)
+	 * @throws IOException if more bits are requested than are available in the input stream
+	 */
+	public void skipBits (final int count) throws IOException {
+
+		if (this.bitCount < count) {
+			requireBits (count);
+		}
+
+		this.bitCount -= count;
 
 	}
 
@@ -156,7 +275,53 @@ public class BitInputStream {
 	 */
 	public int readInteger() throws IOException {
 
-		return (readBits (16) << 16) | (readBits (16));
+		if (this.bitCount < 32) {
+			requireBits (32);
+		}
+
+		final int bitCount = this.bitCount - 32;
+		this.bitCount = bitCount;
+
+		return (int)(this.bitBuffer >>> bitCount);
+
+	}
+
+
+	/**
+	 * Determines whether a given number of bits remain to be read before the end of the input
+	 * @param count The number of bits required (maximum 32)
+	 * @return {@code true} if at least the given number of bits remain, otherwise {@code false}
+	 * @throws IOException on any I/O error reading from the input stream
+	 */
+	boolean hasBits (final int count) throws IOException {
+
+		if (this.bitCount < count) {
+			fillBitBuffer();
+		}
+
+		return this.bitCount >= count;
+
+	}
+
+
+	/**
+	 * Discards any bits remaining before the next byte boundary of the input
+	 */
+	void alignToByte() {
+
+		// Whole bytes are transferred to the bit buffer, so the bits before the next byte
+		// boundary are those in excess of a whole number of bytes
+		this.bitCount &= ~7;
+
+	}
+
+
+	/**
+	 * @return The number of bits that have been returned from the input
+	 */
+	long getBitsRead() {
+
+		return ((this.bufferBase + this.bufferPosition) << 3) - this.bitCount;
 
 	}
 
@@ -167,6 +332,26 @@ public class BitInputStream {
 	public BitInputStream (final InputStream inputStream) {
 
 		this.inputStream = inputStream;
+		this.buffer = new byte[BUFFER_SIZE];
+		this.bufferPosition = 0;
+		this.bufferLimit = 0;
+
+	}
+
+
+	/**
+	 * Reads bits directly from an array, without copying
+	 * @param data The array to read from
+	 * @param offset The offset within the array to start reading at
+	 * @param length The number of bytes of the array that may be read
+	 */
+	BitInputStream (final byte[] data, final int offset, final int length) {
+
+		this.inputStream = null;
+		this.buffer = data;
+		this.bufferPosition = offset;
+		this.bufferLimit = offset + length;
+		this.bufferBase = -offset;
 
 	}
 
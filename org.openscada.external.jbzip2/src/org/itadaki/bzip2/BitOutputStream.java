@@ -28,45 +28,91 @@ import java.io.OutputStream;
 
 /**
  * <p>An OutputStream wrapper that allows the writing of single bit booleans, unary numbers, bit
- * strings of arbitrary length (up to 24 bits), and bit aligned 32-bit integers. A single byte at a
- * time is written to the wrapped stream when sufficient bits have been accumulated
+ * strings of arbitrary length (up to 24 bits), and bit aligned 32-bit integers. Bits are
+ * accumulated in a 64-bit bit buffer and transferred a whole 32-bit word at a time to an internal
+ * buffer, which is written to the wrapped stream when full or on {@link #flush()}
  */
 public class BitOutputStream {
 
+	/**
+	 * The size of the internal buffer
+	 */
+	private static final int BUFFER_SIZE = 8192;
+
 	/**
 	 * The stream to which bits are written
 	 */
 	private final OutputStream outputStream;
 
 	/**
-	 * A buffer of bits waiting to be written to the output stream
+	 * A buffer of whole bytes waiting to be written to the output stream
 	 */
-	private int bitBuffer;
+	private final byte[] buffer = new byte[BUFFER_SIZE];
 
 	/**
-	 * The number of bits currently buffered in {@link #bitBuffer}
+	 * The number of bytes currently held in {@link #buffer}
+	 */
+	private int bufferPosition = 0;
+
+	/**
+	 * The total number of bytes written to the output stream
+	 */
+	private long bytesWritten = 0;
+
+	/**
+	 * A buffer of bits waiting to be written to the output stream. The valid bits are the lowest
+	 * {@link #bitCount} bits
+	 */
+	private long bitBuffer;
+
+	/**
+	 * The number of bits currently buffered in {@link #bitBuffer} (always less than 32 between
+	 * calls)
 	 */
 	private int bitCount;
 
 
 	/**
-	 * Writes a single bit to the wrapped output stream
-	 * @param value The bit to write
+	 * Writes the contents of the internal buffer to the output stream
 	 * @throws IOException if an error occurs writing to the stream
 	 */
-	public void writeBoolean (final boolean value) throws IOException {
+	private void flushBuffer() throws IOException {
 
-		int bitCount = this.bitCount + 1;
-		int bitBuffer = this.bitBuffer | ((value ? 1 : 0) << (32 - bitCount));
+		if (this.bufferPosition > 0) {
+			this.outputStream.write (this.buffer, 0, this.bufferPosition);
+			this.bytesWritten += this.bufferPosition;
+			this.bufferPosition = 0;
+		}
 
-		if (bitCount == 8) {
-			this.outputStream.write (bitBuffer >>> 24);
-			bitBuffer = 0;
-			bitCount = 0;
+	}
+
+
+	/**
+	 * Transfers whole bytes from the bit buffer to the internal buffer
+	 * @param bitCount The number of bits to leave in the bit buffer
+	 * @throws IOException if an error occurs writing to the stream
+	 */
+	private void drainBitBuffer (final int bitCount) throws IOException {
+
+		while (this.bitCount - bitCount >= 8) {
+			if (this.bufferPosition == this.buffer.length) {
+				flushBuffer();
+			}
+			this.bitCount -= 8;
+			this.buffer[this.bufferPosition++] = (byte)(this.bitBuffer >>> this.bitCount);
 		}
 
-		this.bitBuffer = bitBuffer;
-		this.bitCount = bitCount;
+	}
+
+
+	/**
+	 * Writes a single bit to the wrapped output stream
+	 * @param value The bit to write
+	 * @throws IOException if an error occurs writing to the stream
+	 */
+	public void writeBoolean (final boolean value) throws IOException {
+
+		writeBits (1, value ? 1 : 0);
 
 	}
 
@@ -78,10 +124,11 @@ public class BitOutputStream {
 	 */
 	public void writeUnary (int value) throws IOException {
 
-		while (value-- > 0) {
-			writeBoolean (true); 
+		while (value > 23) {
+			writeBits (23, 0x7fffff);
+			value -= 23;
 		}
-		writeBoolean (false);
+		writeBits (value + 1, ((1 << value) - 1) << 1);
 
 	}
 
@@ -94,14 +141,22 @@ public class BitOutputStream {
 	 */
 	public void writeBits (final int count, final int value) throws IOException {
 
-		int bitCount = this.bitCount;
-		int bitBuffer = this.bitBuffer | ((value << (32 - count)) >>> bitCount);
-		bitCount += count;
-
-		while (bitCount >= 8) {
-			this.outputStream.write (bitBuffer >>> 24);
-			bitBuffer <<= 8;
-			bitCount -= 8;
+		final long bitBuffer = (this.bitBuffer << count) | (value & ((1 << count) - 1));
+		int bitCount = this.bitCount + count;
+
+		if (bitCount >= 32) {
+			if (this.bufferPosition > this.buffer.length - 4) {
+				flushBuffer();
+			}
+			bitCount -= 32;
+			final int word = (int)(bitBuffer >>> bitCount);
+			final byte[] buffer = this.buffer;
+			final int bufferPosition = this.bufferPosition;
+			buffer[bufferPosition] = (byte)(word >>> 24);
+			buffer[bufferPosition + 1] = (byte)(word >>> 16);
+			buffer[bufferPosition + 2] = (byte)(word >>> 8);
+			buffer[bufferPosition + 3] = (byte)word;
+			this.bufferPosition = bufferPosition + 4;
 		}
 
 		this.bitBuffer = bitBuffer;
@@ -123,15 +178,68 @@ public class BitOutputStream {
 	}
 
 
+	/**
+	 * Writes a string of bits of arbitrary length to the wrapped output stream. Bits are taken from
+	 * the source array most significant bit first
+	 * @param bits The array containing the bits to write
+	 * @param count The number of bits to write
+	 * @throws IOException if an error occurs writing to the stream
+	 */
+	public void writeBitString (final byte[] bits, final long count) throws IOException {
+
+		final int wholeBytes = (int)(count >>> 3);
+		final int remainingBits = (int)(count & 7);
+
+		if ((this.bitCount & 7) == 0) {
+			// Byte aligned; the bytes can be copied without shifting
+			drainBitBuffer (0);
+			if (wholeBytes > this.buffer.length - this.bufferPosition) {
+				flushBuffer();
+				this.outputStream.write (bits, 0, wholeBytes);
+				this.bytesWritten += wholeBytes;
+			} else {
+				System.arraycopy (bits, 0, this.buffer, this.bufferPosition, wholeBytes);
+				this.bufferPosition += wholeBytes;
+			}
+		} else {
+			int i = 0;
+			for (; i + 3 <= wholeBytes; i += 3) {
+				writeBits (24, ((bits[i] & 0xff) << 16) | ((bits[i + 1] & 0xff) << 8) | (bits[i + 2] & 0xff));
+			}
+			for (; i < wholeBytes; i++) {
+				writeBits (8, bits[i] & 0xff);
+			}
+		}
+
+		if (remainingBits > 0) {
+			writeBits (remainingBits, (bits[wholeBytes] & 0xff) >>> (8 - remainingBits));
+		}
+
+	}
+
+
+	/**
+	 * @return The total number of bits written, including any not yet passed to the wrapped output
+	 *         stream
+	 */
+	long getBitsWritten() {
+
+		return ((this.bytesWritten + this.bufferPosition) << 3) + this.bitCount;
+
+	}
+
+
 	/**
 	 * Writes any remaining bits to the output stream, zero padding to a whole byte as required
 	 * @throws IOException if an error occurs writing to the stream
 	 */
 	public void flush() throws IOException {
 
-		if (this.bitCount > 0) {
-			writeBits (8 - this.bitCount, 0);
+		if ((this.bitCount & 7) != 0) {
+			writeBits (8 - (this.bitCount & 7), 0);
 		}
+		drainBitBuffer (0);
+		flushBuffer();
 
 	}
 
@@ -22,9 +22,15 @@
 
 package org.itadaki.bzip2;
 
+import java.nio.ByteBuffer;
+
 
 /**
- * A CRC32 calculator
+ * <p>A CRC32 calculator</p>
+ *
+ * <p>Arrays and runs of bytes are processed eight bytes at a time using the "slicing-by-8"
+ * technique, in which eight lookup tables give the effect of each of the next eight bytes on the
+ * CRC independently.</p>
  */
 public final class CRC32 {
 
@@ -68,6 +74,24 @@ public final class CRC32 {
 
 	};
 
+	/**
+	 * Slicing-by-8 lookup tables. The value at [k][i] is the CRC contribution of byte value i
+	 * followed by k zero bytes; table 0 is identical to {@link #crc32Lookup}
+	 */
+	private static final int crc32SliceLookup[][] = new int[8][256];
+
+	static {
+
+		System.arraycopy (crc32Lookup, 0, crc32SliceLookup[0], 0, 256);
+		for (int k = 1; k < 8; k++) {
+			for (int i = 0; i < 256; i++) {
+				final int previous = crc32SliceLookup[k - 1][i];
+				crc32SliceLookup[k][i] = (previous << 8) ^ crc32Lookup[previous >>> 24];
+			}
+		}
+
+	}
+
 
 	/**
 	 * The current CRC
@@ -107,6 +131,22 @@ public final class CRC32 {
 
 		int crc = this.crc;
 
+		if (count >= 8) {
+			final int[] table0 = crc32SliceLookup[0], table1 = crc32SliceLookup[1], table2 = crc32SliceLookup[2], table3 = crc32SliceLookup[3];
+			final int[] table4 = crc32SliceLookup[4], table5 = crc32SliceLookup[5], table6 = crc32SliceLookup[6], table7 = crc32SliceLookup[7];
+
+			// The last four bytes of every group of eight are the same, so their contribution is
+			// constant
+			final int byteValue = value & 0xff;
+			final int word = byteValue * 0x01010101;
+			final int lowContribution = table3[byteValue] ^ table2[byteValue] ^ table1[byteValue] ^ table0[byteValue];
+
+			for (; count >= 8; count -= 8) {
+				final int high = crc ^ word;
+				crc = table7[high >>> 24] ^ table6[(high >>> 16) & 0xff] ^ table5[(high >>> 8) & 0xff] ^ table4[high & 0xff] ^ lowContribution;
+			}
+		}
+
 		while (count-- > 0) {
 			crc = (crc << 8) ^ crc32Lookup[((crc >> 24) ^ value) & 0xff];
 		}
@@ -115,5 +155,70 @@ public final class CRC32 {
 
 	}
 
+
+	/**
+	 * Update the CRC with an array of bytes
+	 * @param data The array containing the bytes
+	 * @param offset The offset of the first byte within the array
+	 * @param length The number of bytes
+	 */
+	public void updateCRC (final byte[] data, int offset, int length) {
+
+		int crc = this.crc;
+
+		if (length >= 8) {
+			final int[] table0 = crc32SliceLookup[0], table1 = crc32SliceLookup[1], table2 = crc32SliceLookup[2], table3 = crc32SliceLookup[3];
+			final int[] table4 = crc32SliceLookup[4], table5 = crc32SliceLookup[5], table6 = crc32SliceLookup[6], table7 = crc32SliceLookup[7];
+
+			for (; length >= 8; length -= 8, offset += 8) {
+				final int high = crc ^ (((data[offset] & 0xff) << 24) | ((data[offset + 1] & 0xff) << 16) | ((data[offset + 2] & 0xff) << 8) | (data[offset + 3] & 0xff));
+				crc = table7[high >>> 24] ^ table6[(high >>> 16) & 0xff] ^ table5[(high >>> 8) & 0xff] ^ table4[high & 0xff]
+				    ^ table3[data[offset + 4] & 0xff] ^ table2[data[offset + 5] & 0xff] ^ table1[data[offset + 6] & 0xff] ^ table0[data[offset + 7] & 0xff];
+			}
+		}
+
+		while (length-- > 0) {
+			crc = (crc << 8) ^ crc32Lookup[((crc >> 24) ^ data[offset++]) & 0xff];
+		}
+
+		this.crc = crc;
+
+	}
+
+
+	/**
+	 * Update the CRC with a range of bytes from a buffer. The buffer's position is not changed
+	 * @param data The buffer containing the bytes
+	 * @param index The absolute index of the first byte within the buffer
+	 * @param length The number of bytes
+	 */
+	public void updateCRC (final ByteBuffer data, int index, int length) {
+
+		if (data.hasArray()) {
+			updateCRC (data.array(), data.arrayOffset() + index, length);
+			return;
+		}
+
+		int crc = this.crc;
+
+		if (length >= 8) {
+			final int[] table0 = crc32SliceLookup[0], table1 = crc32SliceLookup[1], table2 = crc32SliceLookup[2], table3 = crc32SliceLookup[3];
+			final int[] table4 = crc32SliceLookup[4], table5 = crc32SliceLookup[5], table6 = crc32SliceLookup[6], table7 = crc32SliceLookup[7];
+
+			for (; length >= 8; length -= 8, index += 8) {
+				final int high = crc ^ (((data.get (index) & 0xff) << 24) | ((data.get (index + 1) & 0xff) << 16) | ((data.get (index + 2) & 0xff) << 8) | (data.get (index + 3) & 0xff));
+				crc = table7[high >>> 24] ^ table6[(high >>> 16) & 0xff] ^ table5[(high >>> 8) & 0xff] ^ table4[high & 0xff]
+				    ^ table3[data.get (index + 4) & 0xff] ^ table2[data.get (index + 5) & 0xff] ^ table1[data.get (index + 6) & 0xff] ^ table0[data.get (index + 7) & 0xff];
+			}
+		}
+
+		while (length-- > 0) {
+			crc = (crc << 8) ^ crc32Lookup[((crc >> 24) ^ data.get (index++)) & 0xff];
+		}
+
+		this.crc = crc;
+
+	}
+
 }
 
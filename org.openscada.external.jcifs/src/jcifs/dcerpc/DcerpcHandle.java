@@ -118,7 +118,7 @@ public abstract class DcerpcHandle implements DcerpcConstants {
     }
 
     public void sendrecv(DcerpcMessage msg) throws DcerpcException, IOException {
-        byte[] stub, frag;
+        byte[] cached, stub, frag;
         NdrBuffer buf, fbuf;
         boolean isLast, isDirect;
         DcerpcException de;
@@ -136,6 +136,7 @@ public abstract class DcerpcHandle implements DcerpcConstants {
         } catch (InterruptedException ie) {
             throw new IOException(ie.getMessage());
         }
+        cached = stub; /* stub may be replaced by a larger array below */
         try {
             int off, tot, n;
 
@@ -206,7 +207,7 @@ public abstract class DcerpcHandle implements DcerpcConstants {
             buf = new NdrBuffer(stub, 0);
             msg.decode(buf);
         } finally {
-            jcifs.smb.BufferCache.releaseBuffer(stub);
+            jcifs.smb.BufferCache.releaseBuffer(cached);
         }
 
         if ((de = msg.getResult()) != null)
@@ -0,0 +1,275 @@
+/* jcifs smb client library in Java
+ * Copyright (C) 2000  "Michael B. Allen" <jcifs at samba dot org>
+ * 
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ * 
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+
+package jcifs.smb;
+
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import jcifs.Config;
+
+/* File attributes shared by all SmbFile instances, so that a new SmbFile
+ * for a path recently queried or listed need not query it again. Entries
+ * are keyed by server, port, share and path, compared without regard to
+ * case as SmbFile.equals does, and then by the domain and user that read
+ * them, as different users may see different files. Each holds the
+ * attributes and the size separately, with the expiration time the
+ * SmbFile that read it gave it. Once there are more than
+ * jcifs.smb.client.attrCacheSize entries, which is 0, disabling the
+ * cache, by default, the least recently used are dropped in a batch.
+ * Entries are removed for every user when the file is written, renamed or
+ * deleted through this client. Lookups and updates take no lock.
+ */
+
+public class AttributeCache {
+
+    private static final int SIZE = Config.getInt( "jcifs.smb.client.attrCacheSize", 0 );
+
+    /* Separates the path of a key from the user that read the entry. It
+     * can appear in neither a file name nor a user name.
+     */
+    static final char USER_SEPARATOR = '|';
+
+    static class Entry {
+        boolean isExists;
+        int attributes;
+        long createTime, lastModified, attrExpiration;
+        long size, sizeExpiration;
+        /* When the entry was last read or written, for eviction */
+        volatile long used = System.nanoTime();
+    }
+
+    private static final AtomicLong hits = new AtomicLong();
+    private static final AtomicLong misses = new AtomicLong();
+    private static final AtomicLong evictions = new AtomicLong();
+
+    private static final ConcurrentHashMap map = new ConcurrentHashMap();
+    /* The user part of every key added so far, usually only one */
+    private static final ConcurrentHashMap users = new ConcurrentHashMap();
+    private static final AtomicBoolean evicting = new AtomicBoolean();
+
+    static boolean isEnabled() {
+        return SIZE > 0;
+    }
+
+    /* Returns the entry for key if its attributes, or its size, have not
+     * expired, or null.
+     */
+    static Entry get( String key, boolean size ) {
+        if (key == null) {
+            return null;
+        }
+        Entry e = (Entry)map.get( key );
+        if (e != null && (size ? e.sizeExpiration : e.attrExpiration) > System.currentTimeMillis()) {
+            e.used = System.nanoTime();
+            hits.incrementAndGet();
+            return e;
+        }
+        misses.incrementAndGet();
+        return null;
+    }
+    /* Entries are replaced rather than changed so that one returned by get
+     * is never seen half updated.
+     */
+    private static Entry copy( Entry o ) {
+        Entry e = new Entry();
+        if (o != null) {
+            e.isExists = o.isExists;
+            e.attributes = o.attributes;
+            e.createTime = o.createTime;
+            e.lastModified = o.lastModified;
+            e.attrExpiration = o.attrExpiration;
+            e.size = o.size;
+            e.sizeExpiration = o.sizeExpiration;
+        }
+        return e;
+    }
+    /* Store e in place of o, which is null if there was no entry. Returns
+     * false if another thread changed the entry first.
+     */
+    private static boolean replace( String key, Entry o, Entry e ) {
+        if (o == null ? map.putIfAbsent( key, e ) != null : map.replace( key, o, e ) == false) {
+            return false;
+        }
+        if (o == null) {
+            added( key );
+        }
+        return true;
+    }
+    static void putAttributes( String key, boolean isExists, int attributes,
+                long createTime, long lastModified, long expiration ) {
+        if (key == null) {
+            return;
+        }
+        Entry o, e;
+        do {
+            o = (Entry)map.get( key );
+            e = copy( o );
+            e.isExists = isExists;
+            e.attributes = attributes;
+            e.createTime = createTime;
+            e.lastModified = lastModified;
+            e.attrExpiration = expiration;
+            if (isExists == false) {
+                e.sizeExpiration = 0L;
+            }
+        } while (replace( key, o, e ) == false);
+    }
+    static void putSize( String key, long size, long expiration ) {
+        if (key == null) {
+            return;
+        }
+        Entry o, e;
+        do {
+            o = (Entry)map.get( key );
+            e = copy( o );
+            e.size = size;
+            e.sizeExpiration = expiration;
+        } while (replace( key, o, e ) == false);
+    }
+    static void put( String key, int attributes, long createTime,
+                long lastModified, long size, long expiration ) {
+        if (key == null) {
+            return;
+        }
+        Entry e = new Entry();
+        e.isExists = true;
+        e.attributes = attributes;
+        e.createTime = createTime;
+        e.lastModified = lastModified;
+        e.size = size;
+        e.attrExpiration = e.sizeExpiration = expiration;
+        if (map.put( key, e ) == null) {
+            added( key );
+        }
+    }
+    private static void added( String key ) {
+        String user = key.substring( key.lastIndexOf( USER_SEPARATOR ) + 1 );
+        if (users.containsKey( user ) == false) {
+            users.putIfAbsent( user, user );
+        }
+        if (map.size() > SIZE) {
+            evict();
+        }
+    }
+    /* Drops the least recently used entries, an eighth of the cache at a
+     * time so that the entries are not sorted again for every one added.
+     * Only one thread evicts at once; others carry on meanwhile.
+     */
+    private static void evict() {
+        if (evicting.compareAndSet( false, true ) == false) {
+            return;
+        }
+        try {
+            int n = Math.max( map.size() - SIZE, SIZE / 8 );
+            if (n <= 0) {
+                return;
+            }
+            long[] used = new long[map.size()];
+            int count = 0;
+            Iterator it = map.values().iterator();
+            while (it.hasNext() && count < used.length) {
+                used[count++] = ((Entry)it.next()).used;
+            }
+            if (count == 0) {
+                return;
+            }
+            Arrays.sort( used, 0, count );
+            long cutoff = used[Math.min( n, count ) - 1];
+
+            it = map.entrySet().iterator();
+            while (it.hasNext() && n > 0) {
+                Map.Entry me = (Map.Entry)it.next();
+                Entry e = (Entry)me.getValue();
+                if (e.used <= cutoff && map.remove( me.getKey(), e )) {
+                    evictions.incrementAndGet();
+                    n--;
+                }
+            }
+        } finally {
+            evicting.set( false );
+        }
+    }
+    /* Removes the entries of every user for the path of key, returning
+     * true if none of them showed it to be a file rather than a directory.
+     */
+    private static boolean remove( String key ) {
+        String path = key.substring( 0, key.lastIndexOf( USER_SEPARATOR ) + 1 );
+        boolean directory = true;
+        Iterator it = users.keySet().iterator();
+        while (it.hasNext()) {
+            Entry e = (Entry)map.remove( path + it.next() );
+            if (e != null && e.isExists && (e.attributes & SmbFile.ATTR_DIRECTORY) == 0) {
+                directory = false;
+            }
+        }
+        return directory;
+    }
+    static void invalidate( String key ) {
+        if (key == null) {
+            return;
+        }
+        remove( key );
+    }
+    /* Removes the entries for key and, unless it is known to be a file,
+     * those for any files beneath it.
+     */
+    static void invalidateTree( String key ) {
+        if (key == null) {
+            return;
+        }
+        if (remove( key ) == false) {
+            return;
+        }
+        String prefix = key.substring( 0, key.lastIndexOf( USER_SEPARATOR )) + '/';
+        Iterator it = map.keySet().iterator();
+        while (it.hasNext()) {
+            if (((String)it.next()).startsWith( prefix )) {
+                it.remove();
+            }
+        }
+    }
+
+    /* Removes all entries */
+    static public void clear() {
+        map.clear();
+    }
+
+    /* Statistics */
+
+    /* Lookups answered from the cache */
+    static public long getHitCount() {
+        return hits.get();
+    }
+    /* Lookups that found no entry or an expired one */
+    static public long getMissCount() {
+        return misses.get();
+    }
+    /* Entries dropped to keep within jcifs.smb.client.attrCacheSize */
+    static public long getEvictionCount() {
+        return evictions.get();
+    }
+    /* Entries currently held, some of which may have expired */
+    static public int getSize() {
+        return map.size();
+    }
+}
@@ -18,64 +18,174 @@
 
 package jcifs.smb;
 
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
 import jcifs.Config;
 
+/* A pool of byte buffers in a small number of size classes. Buffers
+ * released are kept on a lock free stack per class, up to
+ * jcifs.smb.maxBuffers each. Callers never wait for a buffer; if none is
+ * free a new one is allocated, and buffers released while the stack is
+ * full are left to the garbage collector. Arrays that are not the size of
+ * a class are ignored; otherwise the cache trusts its callers to release
+ * only buffers it handed out, and each of those once.
+ */
+
 public class BufferCache {
 
     private static final int MAX_BUFFERS = Config.getInt( "jcifs.smb.maxBuffers", 16 );
 
-    static Object[] cache = new Object[MAX_BUFFERS];
-    private static int numBuffers = 0;
-    private static int freeBuffers = 0;
+    /* The buffer size of each class. The largest is the transaction buffer
+     * size, which is the size of every buffer taken without a size.
+     */
+    private static final int[] SIZES = {
+        0x400, 0x800, 0x1000, 0x2000, 0x4000, 0x8000,
+        SmbComTransaction.TRANSACTION_BUF_SIZE
+    };
 
-    private static byte[] getBuffer0() {
+    static class Node {
         byte[] buf;
+        Node next;
+
+        Node( byte[] buf ) {
+            this.buf = buf;
+        }
+    }
 
-        if (freeBuffers > 0) {
-            for (int i = 0; i < MAX_BUFFERS; i++) {
-                if( cache[i] != null ) {
-                    buf = (byte[])cache[i];
-                    cache[i] = null;
-                    freeBuffers--;
-                    return buf;
+    static class SizeClass {
+        final AtomicReference top = new AtomicReference();
+        final AtomicInteger count = new AtomicInteger();
+
+        byte[] pop() {
+            Node node;
+            do {
+                node = (Node)top.get();
+                if (node == null) {
+                    return null;
                 }
+            } while (top.compareAndSet( node, node.next ) == false);
+            count.decrementAndGet();
+            return node.buf;
+        }
+        boolean push( byte[] buf ) {
+            if (count.incrementAndGet() > MAX_BUFFERS) {
+                count.decrementAndGet();
+                return false;
             }
+            Node node = new Node( buf );
+            do {
+                node.next = (Node)top.get();
+            } while (top.compareAndSet( node.next, node ) == false);
+            return true;
         }
+    }
 
-        buf = new byte[SmbComTransaction.TRANSACTION_BUF_SIZE];
-        numBuffers++;
+    private static final SizeClass[] classes = new SizeClass[SIZES.length];
+    static {
+        for (int i = 0; i < SIZES.length; i++) {
+            classes[i] = new SizeClass();
+        }
+    }
 
-        return buf;
+    private static final AtomicInteger outstanding = new AtomicInteger();
+    private static final AtomicLong hits = new AtomicLong();
+    private static final AtomicLong misses = new AtomicLong();
+    private static final AtomicLong overflows = new AtomicLong();
+
+    private static int sizeClass( int size ) {
+        for (int i = 0; i < SIZES.length; i++) {
+            if (size <= SIZES[i]) {
+                return i;
+            }
+        }
+        return -1;
     }
 
     static void getBuffers( SmbComTransaction req,
                     SmbComTransactionResponse rsp ) throws InterruptedException {
-        synchronized( cache ) {
-            while ((freeBuffers + (MAX_BUFFERS - numBuffers)) < 2) {
-                cache.wait();
-            }
-            req.txn_buf = getBuffer0();
-            rsp.txn_buf = getBuffer0();
+        req.txn_buf = getBuffer();
+        rsp.txn_buf = getBuffer();
+    }
+    /* Release the buffers taken by getBuffers, or by a transaction that was
+     * posted, at most once. A posted transaction may be failed by its
+     * listener and by the thread that posted it.
+     */
+    static void releaseBuffers( SmbComTransaction req,
+                    SmbComTransactionResponse rsp ) {
+        byte[] b1, b2;
+        synchronized (req) {
+            b1 = req.txn_buf;
+            b2 = rsp.txn_buf;
+            req.txn_buf = null;
+            rsp.txn_buf = null;
         }
+        releaseBuffer( b1 );
+        releaseBuffer( b2 );
     }
+    /* The InterruptedException is retained for compatibility with callers
+     * of the earlier blocking implementation; it is never thrown.
+     */
     static public byte[] getBuffer() throws InterruptedException {
-        synchronized( cache ) {
-            while ((freeBuffers + (MAX_BUFFERS - numBuffers)) < 1) {
-                cache.wait();
+        return getBuffer( SmbComTransaction.TRANSACTION_BUF_SIZE );
+    }
+    /* Returns a buffer of at least the given size. Sizes larger than the
+     * largest size class are allocated exactly and are not pooled.
+     */
+    static public byte[] getBuffer( int size ) {
+        int c = sizeClass( size );
+        if (c < 0) {
+            misses.incrementAndGet();
+            return new byte[size];
+        }
+
+        byte[] buf = classes[c].pop();
+        if (buf != null) {
+            hits.incrementAndGet();
+        } else {
+            misses.incrementAndGet();
+            if (outstanding.get() >= MAX_BUFFERS) {
+                /* the earlier implementation would have waited here */
+                overflows.incrementAndGet();
             }
-            return getBuffer0();
+            buf = new byte[SIZES[c]];
         }
+        outstanding.incrementAndGet();
+
+        return buf;
     }
     static public void releaseBuffer( byte[] buf ) {
-        synchronized( cache ) {
-            for (int i = 0; i < MAX_BUFFERS; i++) {
-                if (cache[i] == null) {
-                    cache[i] = buf;
-                    freeBuffers++;
-                    cache.notify();
-                    return;
-                }
-            }
+        if (buf == null) {
+            return;
         }
+        int c = sizeClass( buf.length );
+        if (c < 0 || SIZES[c] != buf.length) {
+            return; /* not one of ours */
+        }
+        outstanding.decrementAndGet();
+
+        classes[c].push( buf );
+    }
+
+    /* Statistics */
+
+    /* Buffers taken from a stack */
+    static public long getHitCount() {
+        return hits.get();
+    }
+    /* Buffers that had to be allocated */
+    static public long getMissCount() {
+        return misses.get();
+    }
+    /* Allocations made while jcifs.smb.maxBuffers or more buffers were
+     * checked out, where callers previously blocked waiting for a buffer.
+     */
+    static public long getOverflowCount() {
+        return overflows.get();
+    }
+    /* Buffers handed out by the cache and not yet released */
+    static public int getOutstandingCount() {
+        return outstanding.get();
     }
 }
@@ -94,12 +94,14 @@ public class SigningDigest implements SmbConstants {
      * The signature field of the SMB is overwritted with the sequence number;
      * The MD5 digest of the MAC signing key + the entire SMB is taken;
      * The first 8 bytes of this are placed in the signature field.
+     * Synchronized with verify(), which shares the same MessageDigest, as
+     * a transport may sign a request while verifying a response.
      *
      * @param data The data.
      * @param offset The starting offset at which the SMB header begins.
      * @param length The length of the SMB data starting at offset. 
      */
-    void sign(byte[] data, int offset, int length,
+    synchronized void sign(byte[] data, int offset, int length,
                 ServerMessageBlock request, ServerMessageBlock response) {
         request.signSeq = signSequence;
         if( response != null ) {
@@ -130,7 +132,7 @@ public class SigningDigest implements SmbConstants {
      * @param offset The starting offset at which the SMB header begins.
      * @param length The length of the SMB data starting at offset. 
      */
-    boolean verify(byte[] data, int offset, ServerMessageBlock response) {
+    synchronized boolean verify(byte[] data, int offset, ServerMessageBlock response) {
         update(macSigningKey, 0, macSigningKey.length);
         int index = offset;
         update(data, index, ServerMessageBlock.SIGNATURE_OFFSET); 
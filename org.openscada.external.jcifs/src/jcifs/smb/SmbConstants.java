@@ -21,6 +21,10 @@ interface SmbConstants {
     static final int MAX_MPX_COUNT = Config.getInt( "jcifs.smb.client.maxMpxCount", DEFAULT_MAX_MPX_COUNT );
     static final int SND_BUF_SIZE = Config.getInt( "jcifs.smb.client.snd_buf_size", DEFAULT_SND_BUF_SIZE );
     static final int RCV_BUF_SIZE = Config.getInt( "jcifs.smb.client.rcv_buf_size", DEFAULT_RCV_BUF_SIZE );
+    static final int READ_AHEAD = Config.getInt( "jcifs.smb.client.readAhead", 0 );
+    static final int WRITE_BEHIND = Config.getInt( "jcifs.smb.client.writeBehind", 0 );
+    static final int RAF_CACHE_PAGES = Config.getInt( "jcifs.smb.client.rafCachePages", 0 );
+    static final int RAF_PAGE_SIZE = Config.getInt( "jcifs.smb.client.rafPageSize", 4096 );
     static final boolean USE_UNICODE = Config.getBoolean( "jcifs.smb.client.useUnicode", true );
     static final boolean FORCE_UNICODE = Config.getBoolean( "jcifs.smb.client.useUnicode", false );
     static final boolean USE_NTSTATUS = Config.getBoolean( "jcifs.smb.client.useNtStatus", true );
@@ -150,6 +154,9 @@ interface SmbConstants {
             Config.getInt( "jcifs.smb.client.ssnLimit", DEFAULT_SSN_LIMIT );
     static final int SO_TIMEOUT =
             Config.getInt( "jcifs.smb.client.soTimeout", DEFAULT_SO_TIMEOUT );
+    static final boolean USE_NIO = Config.getBoolean( "jcifs.smb.client.useNio", false );
+    static final int SELECTORS = Config.getInt( "jcifs.smb.client.selectors", 2 );
+    static final int WORKERS = Config.getInt( "jcifs.smb.client.workers", 8 );
     static final String NATIVE_OS =
             Config.getProperty( "jcifs.smb.client.nativeOs", System.getProperty( "os.name" ));
     static final String NATIVE_LANMAN =
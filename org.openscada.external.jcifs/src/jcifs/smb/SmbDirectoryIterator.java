@@ -0,0 +1,169 @@
+/* jcifs smb client library in Java
+ * Copyright (C) 2000  "Michael B. Allen" <jcifs at samba dot org>
+ * 
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ * 
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+
+package jcifs.smb;
+
+import java.net.MalformedURLException;
+import java.net.UnknownHostException;
+import java.util.NoSuchElementException;
+
+/**
+ * Iterates over the contents of a directory without listing it all first.
+ * Each page of entries is requested from the server only when the previous
+ * one has been consumed, so the first entries are available as soon as the
+ * first page arrives and a directory of any size is walked in the memory
+ * of one page. Entries are returned as lightweight {@link FileEntry}
+ * objects; {@link #getFile(FileEntry)} constructs the <tt>SmbFile</tt> for
+ * one when it is needed. The search stays open on the server until the
+ * last entry has been returned or {@link #close()} is called, which a
+ * caller that stops early must do.
+ *
+ * @see SmbFile#listEntries(String, int, int)
+ */
+
+public class SmbDirectoryIterator {
+
+    private SmbFile dir;
+    private Trans2FindNext2 req = null;
+    private Trans2FindFirst2Response resp;
+    private int sid, index, pageCount, pageSize;
+    private FileEntry next = null;
+    private boolean closed = false;
+
+    SmbDirectoryIterator( SmbFile dir, String wildcard, int searchAttributes,
+                int pageCount, int pageSize ) throws SmbException {
+        this.dir = dir;
+        this.pageCount = pageCount;
+        this.pageSize = pageSize;
+
+        String p = dir.getURL().getPath();
+        if( p.lastIndexOf( '/' ) != ( p.length() - 1 )) {
+            throw new SmbException( dir.getURL().toString() + " directory must end with '/'" );
+        }
+
+        SmbComTransaction first = new Trans2FindFirst2( dir.getUncPath0(),
+                    wildcard, searchAttributes, pageCount, pageSize );
+        resp = new Trans2FindFirst2Response();
+
+        if( SmbFile.log.level >= 3 )
+            SmbFile.log.println( "SmbDirectoryIterator: " + first.path );
+
+        dir.send( first, resp );
+        sid = resp.sid;
+        index = 0;
+    }
+
+/**
+ * Returns <tt>true</tt> if there is another entry, requesting the next page
+ * from the server if the current one has been consumed. The entries "."
+ * and ".." are skipped. Once there are no more the search is closed.
+ */
+
+    public boolean hasNext() throws SmbException {
+        while( next == null ) {
+            if( closed ) {
+                return false;
+            }
+            if( index < resp.numEntries ) {
+                FileEntry e = resp.results[index++];
+                String name = e.getName();
+                if( name.length() > 0 && name.equals( "." ) == false && name.equals( ".." ) == false ) {
+                    next = e;
+                }
+            } else if( resp.isEndOfSearch || resp.numEntries == 0 ) {
+                close();
+            } else {
+                nextPage();
+            }
+        }
+        return true;
+    }
+    private void nextPage() throws SmbException {
+        if( req == null ) {
+            req = new Trans2FindNext2( sid, resp.resumeKey, resp.lastName, pageCount, pageSize );
+
+            /* The only difference between first2 and next2 responses is
+             * subCommand so the response object is recycled.
+             */
+            resp.subCommand = SmbComTransaction.TRANS2_FIND_NEXT2;
+        } else {
+            req.reset( resp.resumeKey, resp.lastName );
+            resp.reset();
+        }
+        index = 0;
+        try {
+            dir.send( req, resp );
+        } catch( SmbException se ) {
+            close();
+            throw se;
+        }
+    }
+
+/**
+ * Returns the next entry.
+ *
+ * @throws NoSuchElementException if there are no more entries
+ */
+
+    public FileEntry next() throws SmbException {
+        if( hasNext() == false ) {
+            throw new NoSuchElementException();
+        }
+        FileEntry e = next;
+        next = null;
+        return e;
+    }
+
+/**
+ * Constructs the <tt>SmbFile</tt> for an entry returned by this iterator.
+ * Its attributes are those listed, which are not queried again until they
+ * expire.
+ */
+
+    public SmbFile getFile( FileEntry entry ) throws SmbException {
+        try {
+            return new SmbFile( dir, entry.getName(), SmbFile.TYPE_FILESYSTEM,
+                        entry.getAttributes(), entry.createTime(),
+                        entry.lastModified(), entry.length() );
+        } catch( UnknownHostException uhe ) {
+            throw new SmbException( dir.getURL().toString(), uhe );
+        } catch( MalformedURLException mue ) {
+            throw new SmbException( dir.getURL().toString(), mue );
+        }
+    }
+
+/**
+ * Closes the search on the server. Entries not yet returned are discarded.
+ * This is done automatically when the last entry has been returned and
+ * has no effect if the search is already closed.
+ */
+
+    public void close() {
+        if( closed ) {
+            return;
+        }
+        closed = true;
+        next = null;
+        try {
+            dir.send( new SmbComFindClose2( sid ), new SmbComBlankResponse() );
+        } catch( SmbException se ) {
+            if( SmbFile.log.level >= 4 )
+                se.printStackTrace( SmbFile.log );
+        }
+    }
+}
@@ -417,6 +417,7 @@ public class SmbFile extends URLConnection implements SmbConstants {
     private long size;
     private long sizeExpiration;
     private boolean isExists;
+    private boolean attrWrite;       // Opened for writing; close invalidates the AttributeCache entry
     private int shareAccess = FILE_SHARE_READ | FILE_SHARE_WRITE | FILE_SHARE_DELETE;
     private SmbComBlankResponse blank_resp = null;
     private DfsReferral dfsReferral = null;  // For getDfsPath() and getServerWithDfs()
@@ -653,6 +654,10 @@ public class SmbFile extends URLConnection implements SmbConstants {
 
         attrExpiration = sizeExpiration =
                 System.currentTimeMillis() + attrExpirationPeriod;
+        if( type == TYPE_FILESYSTEM ) {
+            AttributeCache.put( attrKey(), attributes,
+                        createTime, lastModified, size, attrExpiration );
+        }
     }
 
     private SmbComBlankResponse blank_resp() {
@@ -934,6 +939,11 @@ if (this instanceof SmbNamedPipe) {
             f = response.fid;
         }
 
+        if(( flags & ( O_WRONLY | O_RDWR | O_APPEND | O_CREAT | O_TRUNC )) != 0 ) {
+            attrWrite = true;
+            AttributeCache.invalidate( attrKey() );
+        }
+
         return f;
     }
     void open( int flags, int access, int attrs, int options ) throws SmbException {
@@ -958,6 +968,10 @@ if (this instanceof SmbNamedPipe) {
          */
 
         send( new SmbComClose( f, lastWriteTime ), blank_resp() );
+
+        if( attrWrite ) {
+            AttributeCache.invalidate( attrKey() );
+        }
     }
     void close( long lastWriteTime ) throws SmbException {
         if( isOpen() == false ) {
@@ -1138,6 +1152,25 @@ if (this instanceof SmbNamedPipe) {
         }
         return unc;
     }
+    /* The key of this file in the AttributeCache, or null if the cache is
+     * disabled or this is not a file or directory within a share. The user
+     * comes last so that the keys of files beneath a directory share its
+     * key's path as a prefix.
+     */
+    String attrKey() {
+        if( AttributeCache.isEnabled() == false ) {
+            return null;
+        }
+        getUncPath0();
+        if( share == null || unc.length() == 1 || share.equalsIgnoreCase( "IPC$" )) {
+            return null;
+        }
+        int end = canon.endsWith( "/" ) ? canon.length() - 1 : canon.length();
+        return url.getHost().toLowerCase() + ':' + url.getPort() +
+                canon.substring( 0, end ).toUpperCase() +
+                AttributeCache.USER_SEPARATOR +
+                (auth.getDomain() + '\\' + auth.getUsername()).toLowerCase();
+    }
 /**
  * Retuns the Windows UNC style path with backslashs intead of forward slashes.
  *
@@ -1334,6 +1367,16 @@ if (this instanceof SmbNamedPipe) {
             return isExists;
         }
 
+        AttributeCache.Entry e = AttributeCache.get( attrKey(), false );
+        if( e != null ) {
+            isExists = e.isExists;
+            attributes = e.attributes;
+            createTime = e.createTime;
+            lastModified = e.lastModified;
+            attrExpiration = e.attrExpiration;
+            return isExists;
+        }
+
         attributes = ATTR_READONLY | ATTR_DIRECTORY;
         createTime = 0L;
         lastModified = 0L;
@@ -1377,10 +1420,118 @@ if (this instanceof SmbNamedPipe) {
         }
 
         attrExpiration = System.currentTimeMillis() + attrExpirationPeriod;
+        AttributeCache.putAttributes( attrKey(), isExists,
+                    attributes, createTime, lastModified, attrExpiration );
 
         return isExists;
     }
 
+/**
+ * Asynchronous form of <code>exists</code> that also reads the size of
+ * the file. The result of the returned future is this <code>SmbFile</code>
+ * whose <code>exists</code>, <code>getAttributes</code>,
+ * <code>lastModified</code>, <code>length</code> and similar methods then
+ * return the information read without further requests until it expires.
+ * Only the connection to the server is established synchronously. The
+ * attributes of servers, workgroups and shares are read synchronously
+ * and returned as a completed future.
+ *
+ * @return a future completed with this <code>SmbFile</code>
+ */
+
+    public SmbFuture statAsync() throws SmbException {
+        SmbFuture future = new SmbFuture( this ) {
+            boolean basic = true;
+
+            void step( ServerMessageBlock request,
+                        ServerMessageBlock response ) throws SmbException {
+                Info info;
+                if (response instanceof SmbComQueryInformationResponse) {
+                    info = (Info)response;
+                } else {
+                    info = ((Trans2QueryPathInformationResponse)response).info;
+                }
+                if (basic) {
+                    attributes = info.getAttributes();
+                    createTime = info.getCreateTime();
+                    lastModified = info.getLastWriteTime();
+                }
+                if (basic && response instanceof Trans2QueryPathInformationResponse) {
+                    basic = false;
+                    int level = Trans2QueryPathInformationResponse.SMB_QUERY_FILE_STANDARD_INFO;
+                    post( request,
+                            new Trans2QueryPathInformation( request.path, level ),
+                            new Trans2QueryPathInformationResponse( level ),
+                            this );
+                    return;
+                }
+                size = info.getSize();
+                isExists = true;
+                attrExpiration = sizeExpiration =
+                        System.currentTimeMillis() + attrExpirationPeriod;
+                AttributeCache.put( attrKey(), attributes,
+                            createTime, lastModified, size, attrExpiration );
+                complete( file );
+            }
+            void error( ServerMessageBlock request, SmbException se ) {
+                switch (se.getNtStatus()) {
+                    case NtStatus.NT_STATUS_NO_SUCH_FILE:
+                    case NtStatus.NT_STATUS_OBJECT_NAME_INVALID:
+                    case NtStatus.NT_STATUS_OBJECT_NAME_NOT_FOUND:
+                    case NtStatus.NT_STATUS_OBJECT_PATH_NOT_FOUND:
+                        attributes = ATTR_READONLY | ATTR_DIRECTORY;
+                        createTime = 0L;
+                        lastModified = 0L;
+                        size = 0L;
+                        isExists = false;
+                        attrExpiration = sizeExpiration =
+                                System.currentTimeMillis() + attrExpirationPeriod;
+                        AttributeCache.putAttributes( attrKey(), false,
+                                    attributes, createTime, lastModified, attrExpiration );
+                        complete( file );
+                        break;
+                    default:
+                        fail( se );
+                }
+            }
+        };
+
+        if (url.getHost().length() == 0 || share == null ||
+                    getUncPath0().length() == 1 || share.equalsIgnoreCase( "IPC$" )) {
+            exists();
+            length();
+            future.complete( this );
+            return future;
+        }
+
+        AttributeCache.Entry e = AttributeCache.get( attrKey(), true );
+        if( e != null && e.attrExpiration > System.currentTimeMillis() ) {
+            isExists = e.isExists;
+            attributes = e.attributes;
+            createTime = e.createTime;
+            lastModified = e.lastModified;
+            attrExpiration = e.attrExpiration;
+            size = e.size;
+            sizeExpiration = e.sizeExpiration;
+            future.complete( this );
+            return future;
+        }
+
+        connect0();
+
+        if (tree.session.transport.hasCapability( ServerMessageBlock.CAP_NT_SMBS )) {
+            int level = Trans2QueryPathInformationResponse.SMB_QUERY_FILE_BASIC_INFO;
+            future.post( new Trans2QueryPathInformation( getUncPath0(), level ),
+                        new Trans2QueryPathInformationResponse( level ));
+        } else {
+            future.post( new SmbComQueryInformation( getUncPath0() ),
+                        new SmbComQueryInformationResponse(
+                        tree.session.transport.server.serverTimeZone * 1000 * 60L ));
+        }
+
+        return future;
+    }
+
 /**
  * Tests to see if the file this <code>SmbFile</code> represents can be
  * read. Because any file, directory, or other resource can be read if it
@@ -1640,6 +1791,176 @@ if (this instanceof SmbNamedPipe) {
     public SmbFile[] listFiles( SmbFileFilter filter ) throws SmbException {
         return listFiles( "*", ATTR_DIRECTORY | ATTR_HIDDEN | ATTR_SYSTEM, null, filter );
     }
+
+/**
+ * Lists the contents of this directory one entry at a time. Unlike
+ * <code>listFiles()</code> no array is built; entries are requested from
+ * the server in pages as they are consumed. The iterator must be closed
+ * if it is not read to the end.
+ *
+ * @return an iterator over the files and directories in this directory
+ * @throws SmbException
+ */
+
+    public SmbDirectoryIterator listEntries() throws SmbException {
+        return listEntries( "*", Trans2FindFirst2.LIST_COUNT, Trans2FindFirst2.LIST_SIZE );
+    }
+
+/**
+ * Lists the entries of this directory that match a wildcard expression
+ * one at a time.
+ *
+ * @param wildcard a wildcard expression
+ * @return an iterator over the matching files and directories
+ * @throws SmbException
+ * @see #listEntries(String, int, int)
+ */
+
+    public SmbDirectoryIterator listEntries( String wildcard ) throws SmbException {
+        return listEntries( wildcard, Trans2FindFirst2.LIST_COUNT, Trans2FindFirst2.LIST_SIZE );
+    }
+
+/**
+ * Lists the entries of this directory that match a wildcard expression
+ * one at a time, requesting at most <tt>pageCount</tt> entries and
+ * <tt>pageSize</tt> bytes of them from the server at once, rather than the
+ * <tt>jcifs.smb.client.listCount</tt> and
+ * <tt>jcifs.smb.client.listSize</tt> used by <code>listFiles</code>.
+ * Smaller pages return the first entries sooner; larger ones need fewer
+ * round trips. Neither may exceed 65535. Only directories within a share
+ * can be listed this way.
+ *
+ * @param wildcard a wildcard expression
+ * @param pageCount the maximum number of entries in a page
+ * @param pageSize the maximum size of a page in bytes
+ * @return an iterator over the matching files and directories
+ * @throws SmbException
+ */
+
+    public SmbDirectoryIterator listEntries( String wildcard,
+                int pageCount, int pageSize ) throws SmbException {
+        if( pageCount <= 0 || pageSize <= 0 ) {
+            throw new IllegalArgumentException( "Invalid page size" );
+        }
+        getUncPath0();
+        if( url.getHost().length() == 0 || share == null ) {
+            throw new SmbException( "Invalid operation for workgroups or servers" );
+        }
+        return new SmbDirectoryIterator( this, wildcard,
+                    ATTR_DIRECTORY | ATTR_HIDDEN | ATTR_SYSTEM,
+                    Math.min( pageCount, 0xFFFF ),
+                    Math.min( pageSize, SmbComTransaction.TRANSACTION_BUF_SIZE ));
+    }
+
+/**
+ * Asynchronous form of <code>listFiles()</code>. The result of the
+ * returned future is an <code>SmbFile[]</code>.
+ *
+ * @return a future completed with the files and directories in this
+ * directory
+ */
+
+    public SmbFuture listAsync() throws SmbException {
+        return listAsync( "*" );
+    }
+
+/**
+ * Asynchronous form of <code>listFiles( String wildcard )</code>. The
+ * result of the returned future is an <code>SmbFile[]</code>. Only the
+ * connection to the server is established synchronously; each page of
+ * the directory is requested from the transport's worker pool once the
+ * previous one arrives. The search is closed on the server however the
+ * listing ends, including when the future is cancelled. Servers,
+ * workgroups and shares are listed synchronously and returned as a
+ * completed future.
+ *
+ * @param wildcard a wildcard expression
+ * @return a future completed with the matching files and directories
+ */
+
+    public SmbFuture listAsync( String wildcard ) throws SmbException {
+        final ArrayList list = new ArrayList();
+        int searchAttributes = ATTR_DIRECTORY | ATTR_HIDDEN | ATTR_SYSTEM;
+        SmbFuture future = new SmbFuture( this ) {
+            int sid = -1;
+            ServerMessageBlock last;
+            boolean closed;
+
+            void step( ServerMessageBlock request,
+                        ServerMessageBlock response ) throws SmbException {
+                Trans2FindFirst2Response resp = (Trans2FindFirst2Response)response;
+
+                synchronized (this) {
+                    if (sid == -1)
+                        sid = resp.sid;
+                    last = request;
+                }
+                try {
+                    addEntries( list, true, resp, null, null );
+                } catch (UnknownHostException uhe) {
+                    throw new SmbException(url.toString(), uhe);
+                } catch (MalformedURLException mue) {
+                    throw new SmbException(url.toString(), mue);
+                }
+
+                if (resp.isEndOfSearch || resp.numEntries == 0) {
+                    complete( list.toArray( new SmbFile[list.size()] ));
+                    close();
+                } else {
+                    resp.subCommand = SmbComTransaction.TRANS2_FIND_NEXT2;
+                    post( request,
+                            new Trans2FindNext2( sid, resp.resumeKey, resp.lastName ),
+                            resp,
+                            this );
+                }
+            }
+            void error( ServerMessageBlock request, SmbException se ) {
+                super.error( request, se );
+                close();
+            }
+            public boolean cancel( boolean mayInterruptIfRunning ) {
+                if (!super.cancel( mayInterruptIfRunning ))
+                    return false;
+                close();
+                return true;
+            }
+
+            /* Close the search handle once the server has returned one,
+             * however the listing ends.
+             */
+
+            void close() {
+                ServerMessageBlock request;
+                synchronized (this) {
+                    if (sid == -1 || closed)
+                        return;
+                    closed = true;
+                    request = last;
+                }
+                try {
+                    post( request, new SmbComFindClose2( sid ), new SmbComBlankResponse(), IGNORE );
+                } catch( SmbException se ) {
+                    if (log.level >= 3)
+                        se.printStackTrace( log );
+                }
+            }
+        };
+
+        if (url.getHost().length() == 0 || share == null) {
+            future.complete( listFiles( wildcard, searchAttributes, null, null ));
+            return future;
+        }
+
+        String p = url.getPath();
+        if (p.lastIndexOf( '/' ) != ( p.length() - 1 )) {
+            throw new SmbException( url.toString() + " directory must end with '/'" );
+        }
+
+        future.post( new Trans2FindFirst2( getUncPath0(), wildcard, searchAttributes ),
+                    new Trans2FindFirst2Response() );
+
+        return future;
+    }
     String[] list( String wildcard, int searchAttributes,
                 SmbFilenameFilter fnf, SmbFileFilter ff ) throws SmbException {
         ArrayList list = new ArrayList();
@@ -1931,32 +2252,7 @@ if (this instanceof SmbNamedPipe) {
         resp.subCommand = SmbComTransaction.TRANS2_FIND_NEXT2;
 
         for( ;; ) {
-            for( int i = 0; i < resp.numEntries; i++ ) {
-                FileEntry e = resp.results[i];
-                String name = e.getName();
-                if( name.length() < 3 ) {
-                    int h = name.hashCode();
-                    if( h == HASH_DOT || h == HASH_DOT_DOT ) {
-                        if (name.equals(".") || name.equals(".."))
-                            continue;
-                    }
-                }
-                if( fnf != null && fnf.accept( this, name ) == false ) {
-                    continue;
-                }
-                if( name.length() > 0 ) {
-                    SmbFile f = new SmbFile( this, name, TYPE_FILESYSTEM,
-                            e.getAttributes(), e.createTime(), e.lastModified(), e.length() );
-                    if( ff != null && ff.accept( f ) == false ) {
-                        continue;
-                    }
-                    if( files ) {
-                        list.add( f );
-                    } else {
-                        list.add( name );
-                    }
-                }
-            }
+            addEntries( list, files, resp, fnf, ff );
 
             if( resp.isEndOfSearch || resp.numEntries == 0 ) {
                 break;
@@ -1974,6 +2270,38 @@ if (this instanceof SmbNamedPipe) {
                 se.printStackTrace( log );
         }
     }
+    void addEntries( ArrayList list,
+                boolean files,
+                Trans2FindFirst2Response resp,
+                SmbFilenameFilter fnf,
+                SmbFileFilter ff ) throws SmbException, UnknownHostException, MalformedURLException {
+        for( int i = 0; i < resp.numEntries; i++ ) {
+            FileEntry e = resp.results[i];
+            String name = e.getName();
+            if( name.length() < 3 ) {
+                int h = name.hashCode();
+                if( h == HASH_DOT || h == HASH_DOT_DOT ) {
+                    if (name.equals(".") || name.equals(".."))
+                        continue;
+                }
+            }
+            if( fnf != null && fnf.accept( this, name ) == false ) {
+                continue;
+            }
+            if( name.length() > 0 ) {
+                SmbFile f = new SmbFile( this, name, TYPE_FILESYSTEM,
+                        e.getAttributes(), e.createTime(), e.lastModified(), e.length() );
+                if( ff != null && ff.accept( f ) == false ) {
+                    continue;
+                }
+                if( files ) {
+                    list.add( f );
+                } else {
+                    list.add( name );
+                }
+            }
+        }
+    }
 
 /**
  * Changes the name of the file this <code>SmbFile</code> represents to the name
@@ -2012,6 +2340,9 @@ if (this instanceof SmbNamedPipe) {
          */
 
         send( new SmbComRename( unc, dest.unc ), blank_resp() );
+
+        AttributeCache.invalidateTree( attrKey() );
+        AttributeCache.invalidateTree( dest.attrKey() );
     }
 
     class WriterThread extends Thread {
@@ -2354,6 +2685,7 @@ if (this instanceof SmbNamedPipe) {
         }
 
         attrExpiration = sizeExpiration = 0;
+        AttributeCache.invalidateTree( attrKey() );
     }
 
 /**
@@ -2372,6 +2704,13 @@ if (this instanceof SmbNamedPipe) {
             return size;
         }
 
+        AttributeCache.Entry e = AttributeCache.get( attrKey(), true );
+        if( e != null ) {
+            size = e.size;
+            sizeExpiration = e.sizeExpiration;
+            return size;
+        }
+
         if( getType() == TYPE_SHARE ) {
             Trans2QueryFSInformationResponse response;
             int level = Trans2QueryFSInformationResponse.SMB_INFO_ALLOCATION;
@@ -2388,6 +2727,7 @@ if (this instanceof SmbNamedPipe) {
             size = 0L;
         }
         sizeExpiration = System.currentTimeMillis() + attrExpirationPeriod;
+        AttributeCache.putSize( attrKey(), size, sizeExpiration );
         return size;
     }
 
@@ -2461,6 +2801,7 @@ if (this instanceof SmbNamedPipe) {
         send( new SmbComCreateDirectory( path ), blank_resp() );
 
         attrExpiration = sizeExpiration = 0;
+        AttributeCache.invalidate( attrKey() );
     }
 
 /**
@@ -2512,6 +2853,7 @@ if (this instanceof SmbNamedPipe) {
         close( f, 0L );
 
         attrExpiration = 0;
+        AttributeCache.invalidate( attrKey() );
     }
 
 /**
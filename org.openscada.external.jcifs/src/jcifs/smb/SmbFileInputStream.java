@@ -37,6 +37,19 @@ public class SmbFileInputStream extends InputStream {
     private int readSize, openFlags, access;
     private byte[] tmp = new byte[1];
 
+    /* Read-ahead state. Reads of readSize bytes are posted at aheadFp and
+     * collected in order from a ring of window slots; the data of the last
+     * one collected is consumed from buf[bufPos..bufEnd), which always
+     * corresponds to the file at fp. The number of reads kept in flight
+     * starts at one and doubles up to window so that short files and
+     * reads at the end of file do not fire a full window at the server.
+     */
+    private int window, inFlight, aheadHead, aheadCount, bufPos, bufEnd;
+    private long aheadFp;
+    private SmbComReadAndX[] aheadReq;
+    private SmbComReadAndXResponse[] aheadRsp;
+    private byte[] buf;
+
     SmbFile file;
 
 /**
@@ -77,6 +90,165 @@ public class SmbFileInputStream extends InputStream {
         }
         readSize = Math.min( file.tree.session.transport.rcv_buf_size - 70,
                             file.tree.session.transport.server.maxBufferSize - 70 );
+        setReadAhead( SmbConstants.READ_AHEAD );
+    }
+
+/**
+ * Sets the number of reads this stream keeps outstanding with the server
+ * while data is read sequentially. Each read returns at most about 64K, so
+ * over a link with a long round trip a larger window allows a
+ * correspondingly higher throughput, at the cost of a buffer of that size
+ * per read. The window is limited by the maximum number of outstanding
+ * requests negotiated with the server, which the transport enforces across
+ * every stream and operation sharing the connection, so reads may wait
+ * for requests of other streams to complete. A value of 0 or 1 disables
+ * read-ahead so that each read waits for the reply before the next is
+ * sent. The initial value is taken from the
+ * <tt>jcifs.smb.client.readAhead</tt> property, which defaults to 0.
+ * Read-ahead is never used with named pipes.
+ *
+ * @param window the number of reads to keep in flight
+ */
+
+    public void setReadAhead( int window ) {
+        cancelReadAhead();
+        if( file.type == SmbFile.TYPE_NAMED_PIPE ) {
+            window = 0;
+        }
+        window = Math.min( window, file.tree.session.transport.maxMpxCount );
+        if( window > 1 ) {
+            this.window = window;
+            aheadReq = new SmbComReadAndX[window];
+            aheadRsp = new SmbComReadAndXResponse[window];
+        } else {
+            this.window = 0;
+            aheadReq = null;
+            aheadRsp = null;
+        }
+    }
+/**
+ * Returns the number of reads this stream keeps outstanding, or 0 if
+ * read-ahead is disabled.
+ */
+
+    public int getReadAhead() {
+        return window;
+    }
+
+    /* Abandon any reads in flight and any data not yet consumed. The
+     * transport skips the responses of reads cancelled before they arrive.
+     */
+
+    private void cancelReadAhead() {
+        cancelPending();
+        BufferCache.releaseBuffer( buf );
+        buf = null;
+        bufPos = bufEnd = 0;
+    }
+    private void cancelPending() {
+        if( aheadCount > 0 ) {
+            SmbTransport transport = file.tree.session.transport;
+            while( aheadCount > 0 ) {
+                transport.cancel( aheadReq[aheadHead] );
+                BufferCache.releaseBuffer( aheadRsp[aheadHead].b );
+                aheadReq[aheadHead] = null;
+                aheadRsp[aheadHead] = null;
+                aheadHead = (aheadHead + 1) % window;
+                aheadCount--;
+            }
+        }
+        aheadHead = 0;
+        inFlight = 1;
+    }
+
+    /* Refill buf with the next read in sequence, first posting as many
+     * reads as the current window allows. Returns false at end of file.
+     * A short read ends the sequence, as it does for readDirect.
+     */
+
+    private boolean fillReadAhead() throws IOException {
+        try {
+            if( aheadCount == 0 ) {
+                aheadFp = fp + (bufEnd - bufPos);
+            }
+            while( aheadCount < inFlight ) {
+                SmbComReadAndX request = new SmbComReadAndX( file.fid, aheadFp, readSize, null );
+                SmbComReadAndXResponse response =
+                        new SmbComReadAndXResponse( BufferCache.getBuffer( readSize ), 0 );
+                int i = (aheadHead + aheadCount) % window;
+                try {
+                    file.tree.post( request, response );
+                } catch( SmbException se ) {
+                    BufferCache.releaseBuffer( response.b );
+                    throw se;
+                }
+                aheadReq[i] = request;
+                aheadRsp[i] = response;
+                aheadCount++;
+                aheadFp += readSize;
+            }
+
+            SmbComReadAndX request = aheadReq[aheadHead];
+            SmbComReadAndXResponse response = aheadRsp[aheadHead];
+            aheadReq[aheadHead] = null;
+            aheadRsp[aheadHead] = null;
+            aheadHead = (aheadHead + 1) % window;
+            aheadCount--;
+
+            BufferCache.releaseBuffer( buf );
+            buf = response.b;
+            bufPos = 0;
+            bufEnd = 0;
+            file.tree.collect( request, response );
+            bufEnd = response.dataLength > 0 ? response.dataLength : 0;
+
+            if( bufEnd < readSize ) {
+                cancelPending();
+            } else if( inFlight < window ) {
+                inFlight = Math.min( inFlight * 2, window );
+            }
+        } catch( SmbException se ) {
+            cancelReadAhead();
+            throw seToIoe(se);
+        }
+
+        return bufEnd > 0;
+    }
+    private int readAhead( byte[] b, int off, int len ) throws IOException {
+        if( len <= 0 ) {
+            return 0;
+        }
+        long start = fp;
+
+        if( tmp == null ) {
+            throw new IOException( "Bad file descriptor" );
+        }
+
+        if( bufPos == bufEnd && aheadCount == 0 ) {
+            // ensure file is open
+            file.open( openFlags, access, SmbFile.ATTR_NORMAL, 0 );
+        }
+
+        if( file.log.level >= 4 )
+            file.log.println( "read: fid=" + file.fid + ",off=" + off + ",len=" + len + ",fp=" + fp );
+
+        boolean partial = false;
+        while( len > 0 ) {
+            if( bufPos == bufEnd ) {
+                if( partial || fillReadAhead() == false ) {
+                    break;
+                }
+                partial = bufEnd < readSize;
+            }
+            int n = len < bufEnd - bufPos ? len : bufEnd - bufPos;
+            System.arraycopy( buf, bufPos, b, off, n );
+            bufPos += n;
+            fp += n;
+            off += n;
+            len -= n;
+        }
+
+        return (int)((fp - start) > 0L ? fp - start : -1);
     }
 
     protected IOException seToIoe(SmbException se) {
@@ -101,6 +273,7 @@ public class SmbFileInputStream extends InputStream {
 
     public void close() throws IOException {
         try {
+            cancelReadAhead();
             file.close();
             tmp = null;
         } catch (SmbException se) {
@@ -139,12 +312,18 @@ public class SmbFileInputStream extends InputStream {
  */
 
     public int read( byte[] b, int off, int len ) throws IOException {
+        if( window > 1 ) {
+            return readAhead(b, off, len);
+        }
         return readDirect(b, off, len);
     }
     public int readDirect( byte[] b, int off, int len ) throws IOException {
         if( len <= 0 ) {
             return 0;
         }
+        if( bufPos < bufEnd || aheadCount > 0 ) {
+            cancelReadAhead();
+        }
         long start = fp;
 
         if( tmp == null ) {
@@ -238,6 +417,11 @@ if( file.type == SmbFile.TYPE_NAMED_PIPE ) {
  */
     public long skip( long n ) throws IOException {
         if (n > 0) {
+            if (n <= bufEnd - bufPos) {
+                bufPos += (int)n;
+            } else {
+                cancelReadAhead();
+            }
             fp += n;
             return n;
         }
@@ -41,6 +41,23 @@ public class SmbFileOutputStream extends OutputStream {
     private SmbComWrite req;
     private SmbComWriteResponse rsp;
 
+    /* Write-behind state. Written data is coalesced in buf, which always
+     * holds the bufLen bytes of the file preceding fp, and is posted once
+     * writeSize bytes are present. Up to window posted writes are kept in
+     * a ring and collected in order, the oldest whenever the ring is full.
+     */
+    private int window, behindHead, behindCount, bufLen;
+    private byte[] buf;
+    private PendingWrite[] behind;
+
+    static class PendingWrite {
+        SmbComWriteAndX req;
+        SmbComWriteAndXResponse rsp;
+        byte[] b;
+        long offset;
+        int len;
+    }
+
 /**
  * Creates an {@link java.io.OutputStream} for writing to a file
  * on an SMB server addressed by the URL parameter. See {@link
@@ -151,6 +168,170 @@ write, and/or delete the file while the jCIFS user has the file open.
             req = new SmbComWrite();
             rsp = new SmbComWriteResponse();    
         }
+        initWriteBehind( SmbConstants.WRITE_BEHIND );
+    }
+
+/**
+ * Sets the number of writes this stream may keep outstanding with the
+ * server. If the window is greater than 0, data written to the stream is
+ * coalesced into chunks of the largest size the server accepts, and each
+ * chunk is sent without waiting for the reply to the previous one, so
+ * small writes no longer cost a round trip each. A failed write is then
+ * reported by a later call to <tt>write</tt>, <tt>flush</tt> or
+ * <tt>close</tt>; <tt>flush</tt> waits until all data written so far has
+ * been acknowledged. The window is limited by the maximum number of
+ * outstanding requests negotiated with the server. That limit is shared
+ * with everything else using the connection, so a chunk may also wait
+ * until another stream's request completes. A value of 0 disables
+ * write-behind so that each write waits for the server. The initial value
+ * is taken from the <tt>jcifs.smb.client.writeBehind</tt> property, which
+ * defaults to 0. Write-behind is never used with named pipes or servers
+ * that do not support NT SMBs.
+ *
+ * @param window the number of writes to keep in flight
+ * @throws IOException if data already written could not be flushed
+ */
+
+    public void setWriteBehind( int window ) throws IOException {
+        flush();
+        initWriteBehind( window );
+    }
+/**
+ * Returns the number of writes this stream may keep outstanding, or 0 if
+ * write-behind is disabled.
+ */
+
+    public int getWriteBehind() {
+        return window;
+    }
+
+    private void initWriteBehind( int window ) {
+        if( useNTSmbs == false || file instanceof SmbNamedPipe ) {
+            window = 0;
+        }
+        window = Math.min( window, file.tree.session.transport.maxMpxCount );
+        if( window > 0 ) {
+            this.window = window;
+            behind = new PendingWrite[window];
+        } else {
+            this.window = 0;
+            behind = null;
+        }
+    }
+
+    /* Abandon any writes in flight and any data not yet sent, after an
+     * error that is about to be reported to the caller.
+     */
+
+    private void cancelWriteBehind() {
+        if( behindCount > 0 ) {
+            SmbTransport transport = file.tree.session.transport;
+            while( behindCount > 0 ) {
+                transport.cancel( behind[behindHead].req );
+                BufferCache.releaseBuffer( behind[behindHead].b );
+                behind[behindHead] = null;
+                behindHead = (behindHead + 1) % window;
+                behindCount--;
+            }
+        }
+        behindHead = 0;
+        BufferCache.releaseBuffer( buf );
+        buf = null;
+        bufLen = 0;
+    }
+    private void postWriteBehind() throws IOException {
+        if( behindCount == window ) {
+            collectWriteBehind();
+        }
+
+        PendingWrite w = new PendingWrite();
+        w.b = buf;
+        w.len = bufLen;
+        w.offset = fp - bufLen;
+        w.req = new SmbComWriteAndX( file.fid, w.offset, 0, w.b, 0, w.len, null );
+        w.rsp = new SmbComWriteAndXResponse();
+        try {
+            file.tree.post( w.req, w.rsp );
+        } catch( SmbException se ) {
+            cancelWriteBehind();
+            throw se;
+        }
+        behind[(behindHead + behindCount) % window] = w;
+        behindCount++;
+        buf = null;
+        bufLen = 0;
+    }
+    private void collectWriteBehind() throws IOException {
+        PendingWrite w = behind[behindHead];
+        behind[behindHead] = null;
+        behindHead = (behindHead + 1) % window;
+        behindCount--;
+
+        try {
+            file.tree.collect( w.req, w.rsp );
+            long n = w.rsp.count;
+            while( n < w.len ) {
+                /* Short write; send the rest synchronously
+                 */
+                reqx.setParam( file.fid, w.offset + n, 0, w.b, (int)n, w.len - (int)n );
+                reqx.writeMode = 0;
+                file.send( reqx, rspx );
+                n += rspx.count;
+            }
+        } catch( SmbException se ) {
+            BufferCache.releaseBuffer( w.b );
+            cancelWriteBehind();
+            throw se;
+        }
+        BufferCache.releaseBuffer( w.b );
+    }
+    private void writeBehind( byte[] b, int off, int len ) throws IOException {
+        if( len <= 0 ) {
+            return;
+        }
+
+        if( tmp == null ) {
+            throw new IOException( "Bad file descriptor" );
+        }
+        if( bufLen == 0 && behindCount == 0 ) {
+            ensureOpen();
+        }
+
+        if( file.log.level >= 4 )
+            file.log.println( "write: fid=" + file.fid + ",off=" + off + ",len=" + len + ",fp=" + fp );
+
+        while( len > 0 ) {
+            if( buf == null ) {
+                buf = BufferCache.getBuffer( writeSize );
+            }
+            int n = len < writeSize - bufLen ? len : writeSize - bufLen;
+            System.arraycopy( b, off, buf, bufLen, n );
+            bufLen += n;
+            fp += n;
+            off += n;
+            len -= n;
+            if( bufLen == writeSize ) {
+                postWriteBehind();
+            }
+        }
+    }
+
+/**
+ * Sends any data held by write-behind and waits until the server has
+ * acknowledged all data written to this stream. Without write-behind
+ * every write is already complete when it returns and this method does
+ * nothing.
+ *
+ * @throws IOException if a network error occurs or any write failed
+ */
+
+    public void flush() throws IOException {
+        if( bufLen > 0 ) {
+            postWriteBehind();
+        }
+        while( behindCount > 0 ) {
+            collectWriteBehind();
+        }
     }
 
 /**
@@ -161,8 +342,13 @@ write, and/or delete the file while the jCIFS user has the file open.
  */
 
     public void close() throws IOException {
-        file.close();
-        tmp = null;
+        try {
+            flush();
+        } finally {
+            cancelWriteBehind();
+            file.close();
+            tmp = null;
+        }
     }
 
 /**
@@ -209,6 +395,10 @@ write, and/or delete the file while the jCIFS user has the file open.
             file.send( new TransWaitNamedPipe( "\\pipe" + file.unc ),
                                     new TransWaitNamedPipeResponse() );
         }
+        if( window > 0 ) {
+            writeBehind( b, off, len );
+            return;
+        }
         writeDirect( b, off, len, 0 );
     }
 /**
@@ -222,6 +412,7 @@ write, and/or delete the file while the jCIFS user has the file open.
         if( tmp == null ) {
             throw new IOException( "Bad file descriptor" );
         }
+        flush();
         ensureOpen();
 
         if( file.log.level >= 4 )
@@ -0,0 +1,248 @@
+/* jcifs smb client library in Java
+ * Copyright (C) 2000  "Michael B. Allen" <jcifs at samba dot org>
+ * 
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ * 
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+
+package jcifs.smb;
+
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import jcifs.util.LogStream;
+import jcifs.util.transport.Request;
+import jcifs.util.transport.Response;
+import jcifs.util.transport.ResponseListener;
+import jcifs.util.transport.TransportException;
+import jcifs.util.transport.TransportFuture;
+
+/**
+ * The pending result of an asynchronous operation such as
+ * {@link SmbFile#listAsync()} or
+ * {@link SmbRandomAccessFile#readAsync(long, java.nio.ByteBuffer)}.
+ * Requests are multiplexed over the connection to the server so a single
+ * thread may have any number of operations outstanding; each is advanced
+ * and completed on the transport's pool of worker threads as its
+ * responses arrive. Failures are reported by {@link #get()} as an
+ * <tt>ExecutionException</tt> whose cause is an <tt>SmbException</tt>.
+ */
+
+public class SmbFuture implements Future, ResponseListener {
+
+/**
+ * Notified once when an <tt>SmbFuture</tt> completes. Listeners are called
+ * on one of the transport's worker threads, of which there are only
+ * <tt>jcifs.smb.client.workers</tt>, and so must not block. A listener set
+ * on a completed future, or on one that is cancelled, is called by the
+ * thread that sets it or cancels the future.
+ */
+
+    public interface Listener {
+        public void completed( SmbFuture future );
+    }
+
+    static LogStream log = LogStream.getInstance();
+
+    static final ResponseListener IGNORE = new ResponseListener() {
+        public void responseReceived( Request request, Response response ) {
+        }
+        public void requestFailed( Request request, TransportException te ) {
+        }
+    };
+
+    SmbFile file;
+    SmbTransport transport;
+    TransportFuture pending;
+    Listener listener;
+    Object result;
+    SmbException se;
+    boolean done, cancelled;
+
+    SmbFuture( SmbFile file ) {
+        this.file = file;
+    }
+
+    /* Post the first request of the operation. This may block while the
+     * connection, session and tree are established.
+     */
+
+    void post( ServerMessageBlock request,
+                ServerMessageBlock response ) throws SmbException {
+        file.resolveDfs( request );
+        transport = file.tree.session.transport;
+        pending = file.tree.post( request, response, this );
+    }
+
+    /* Post a further request from within step, reusing the session and
+     * tree of the previous request. If the listener is IGNORE the response
+     * is not waited for.
+     */
+
+    void post( ServerMessageBlock prev,
+                ServerMessageBlock request,
+                ServerMessageBlock response,
+                ResponseListener listener ) throws SmbException {
+        request.tid = prev.tid;
+        request.uid = prev.uid;
+        request.auth = prev.auth;
+        request.flags2 |= prev.flags2 & ServerMessageBlock.FLAGS2_RESOLVE_PATHS_IN_DFS;
+        TransportFuture f = transport.post0( request, response, listener );
+        if (listener == this)
+            pending = f;
+    }
+
+    /* Called with each successful response. The default completes the
+     * operation with the response itself.
+     */
+
+    void step( ServerMessageBlock request,
+                ServerMessageBlock response ) throws SmbException {
+        complete( response );
+    }
+
+    /* Called if a request fails. The default fails the operation.
+     */
+
+    void error( ServerMessageBlock request, SmbException se ) {
+        fail( se );
+    }
+
+    public void responseReceived( Request req, Response rsp ) {
+        ServerMessageBlock request = (ServerMessageBlock)req;
+        ServerMessageBlock response = (ServerMessageBlock)rsp;
+
+        releaseBuffers( request, response );
+        if (isDone())
+            return;
+        try {
+            /* A referral cannot be resolved here as that would block a
+             * worker thread waiting for the replies.
+             */
+            if (SmbException.getStatusByCode( response.errorCode ) ==
+                        NtStatus.NT_STATUS_PATH_NOT_COVERED)
+                throw new SmbException( NtStatus.NT_STATUS_PATH_NOT_COVERED, null );
+            transport.checkStatus( request, response );
+            step( request, response );
+        } catch( SmbException se ) {
+            error( request, se );
+        } catch( RuntimeException re ) {
+            error( request, new SmbException( "Failed to complete " + request, re ));
+        }
+    }
+    public void requestFailed( Request request, TransportException te ) {
+        ServerMessageBlock req = (ServerMessageBlock)request;
+
+        releaseBuffers( req, req.response );
+        error( req, new SmbException( te.getMessage(), te ));
+    }
+
+    /* The buffers of a transaction are given back however its request
+     * ends.
+     */
+
+    static void releaseBuffers( ServerMessageBlock request,
+                ServerMessageBlock response ) {
+        if (request instanceof SmbComTransaction) {
+            BufferCache.releaseBuffers( (SmbComTransaction)request,
+                        (SmbComTransactionResponse)response );
+        }
+    }
+
+    void complete( Object result ) {
+        finish( result, null, false );
+    }
+    void fail( SmbException se ) {
+        finish( null, se, false );
+    }
+    boolean finish( Object result, SmbException se, boolean cancelled ) {
+        Listener l;
+        synchronized (this) {
+            if (done)
+                return false;
+            done = true;
+            this.result = result;
+            this.se = se;
+            this.cancelled = cancelled;
+            l = listener;
+            notifyAll();
+        }
+        if (l != null) {
+            try {
+                l.completed( this );
+            } catch( RuntimeException re ) {
+                if (log.level >= 2)
+                    re.printStackTrace( log );
+            }
+        }
+        return true;
+    }
+
+/**
+ * Set the listener to be notified when this operation completes. If it
+ * has already completed the listener is called at once.
+ */
+
+    public void setListener( Listener listener ) {
+        synchronized (this) {
+            this.listener = listener;
+            if (!done)
+                return;
+        }
+        listener.completed( this );
+    }
+
+    public boolean cancel( boolean mayInterruptIfRunning ) {
+        if (!finish( null, new SmbException( "Operation cancelled" ), true ))
+            return false;
+        TransportFuture p = pending;
+        if (p != null)
+            p.cancel( false );
+        return true;
+    }
+    public synchronized boolean isCancelled() {
+        return cancelled;
+    }
+    public synchronized boolean isDone() {
+        return done;
+    }
+    public synchronized Object get() throws InterruptedException, ExecutionException {
+        while (!done)
+            wait();
+        return result();
+    }
+    public synchronized Object get( long timeout, TimeUnit unit )
+                throws InterruptedException, ExecutionException, TimeoutException {
+        long t = unit.toMillis( timeout );
+        long expiration = System.currentTimeMillis() + t;
+        while (!done) {
+            if (t <= 0)
+                throw new TimeoutException();
+            wait( t );
+            t = expiration - System.currentTimeMillis();
+        }
+        return result();
+    }
+
+    private Object result() throws ExecutionException {
+        if (cancelled)
+            throw new CancellationException();
+        if (se != null)
+            throw new ExecutionException( se );
+        return result;
+    }
+}
@@ -25,6 +25,11 @@ import java.io.DataOutputStream;
 import java.io.IOException;
 import java.net.MalformedURLException;
 import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.nio.ReadOnlyBufferException;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import jcifs.util.Encdec;
 
 public class SmbRandomAccessFile implements DataOutput, DataInput {
@@ -37,6 +42,29 @@ public class SmbRandomAccessFile implements DataOutput, DataInput {
     private byte[] tmp = new byte[8];
     private SmbComWriteAndXResponse write_andx_resp = null;
 
+    /* Page cache. Pages are kept in access order so that the least recently
+     * used one is evicted first. A page's len is the number of bytes read
+     * from the server or written since, which is less than pageSize only at
+     * the end of the file; bytes dirtyStart..dirtyEnd have been written but
+     * not yet sent. Writes may extend the file beyond pages cached short
+     * earlier, so extent, the end of the furthest write, counts as well.
+     */
+
+    static class Page {
+        long index;
+        byte[] b;
+        int len, dirtyStart, dirtyEnd;
+
+        Page( long index, int pageSize ) {
+            this.index = index;
+            b = new byte[pageSize];
+        }
+    }
+
+    private LinkedHashMap pages = null;
+    private int pageSize, maxPages, maxAhead, ahead;
+    private long lastMiss = -2L, extent = 0L;
+
     public SmbRandomAccessFile( String url, String mode, int shareAccess )
             throws SmbException, MalformedURLException, UnknownHostException {
         this( new SmbFile( url, "", null, shareAccess ), mode );
@@ -58,6 +86,42 @@ public class SmbRandomAccessFile implements DataOutput, DataInput {
         readSize = file.tree.session.transport.rcv_buf_size - 70;
         writeSize = file.tree.session.transport.snd_buf_size - 70;
         fp = 0L;
+        setPageCache( SmbConstants.RAF_CACHE_PAGES, SmbConstants.RAF_PAGE_SIZE );
+    }
+
+/**
+ * Caches up to <tt>pages</tt> pages of <tt>pageSize</tt> bytes of the file
+ * so that small reads and writes, such as those of the <tt>DataInput</tt>
+ * and <tt>DataOutput</tt> methods, do not each cost a round trip to the
+ * server. When a read misses the page following the previous miss, a
+ * growing run of pages is read ahead with pipelined requests. Written data
+ * stays in the cache until its page is evicted or {@link #flush()} or
+ * {@link #close()} is called. A page is at most one negotiated buffer in
+ * size. Any data already cached is flushed and discarded first. A
+ * <tt>pages</tt> value of 0 disables the cache, which is the default
+ * unless the <tt>jcifs.smb.client.rafCachePages</tt> property is set.
+ */
+
+    public void setPageCache( int pages, int pageSize ) throws SmbException {
+        flush();
+        if( file.type == SmbFile.TYPE_NAMED_PIPE ) {
+            pages = 0;
+        }
+        if( pages > 0 ) {
+            if( pageSize <= 0 ) {
+                throw new IllegalArgumentException( "Invalid page size" );
+            }
+            this.pages = new LinkedHashMap( 16, 0.75f, true );
+            this.pageSize = Math.min( pageSize, readSize );
+            maxPages = pages;
+            maxAhead = Math.max( 1, Math.min( pages / 2,
+                    file.tree.session.transport.maxMpxCount ));
+        } else {
+            this.pages = null;
+        }
+        ahead = 1;
+        lastMiss = -2L;
+        extent = 0L;
     }
 
     public int read() throws SmbException {
@@ -80,6 +144,10 @@ public class SmbRandomAccessFile implements DataOutput, DataInput {
             file.open( openFlags, 0, SmbFile.ATTR_NORMAL, options );
         }
 
+        if( pages != null ) {
+            return readCached( b, off, len );
+        }
+
         int r, n;
         SmbComReadAndXResponse response = new SmbComReadAndXResponse( b, off );
         do {
@@ -95,6 +163,175 @@ public class SmbRandomAccessFile implements DataOutput, DataInput {
 
         return (int)(fp - start);
     }
+    private int readCached( byte b[], int off, int len ) throws SmbException {
+        long start = fp;
+
+        while( len > 0 ) {
+            long index = fp / pageSize;
+            Page p = (Page)pages.get( new Long( index ));
+            if( p == null ) {
+                ahead = index == lastMiss + 1 ? Math.min( ahead * 2, maxAhead ) : 1;
+                p = loadPages( index, ahead );
+            }
+            long pos = index * pageSize;
+            int valid = p.len;
+            if( extent > pos + valid ) {
+                valid = (int)Math.min( pageSize, extent - pos );
+            }
+            int po = (int)(fp - pos);
+            if( po >= valid ) {
+                break;
+            }
+            int n = len > valid - po ? valid - po : len;
+            System.arraycopy( p.b, po, b, off, n );
+            fp += n;
+            off += n;
+            len -= n;
+            if( valid < pageSize ) {
+                break;
+            }
+        }
+
+        return (int)((fp - start) > 0L ? fp - start : -1);
+    }
+
+    /* Read up to count uncached pages starting at index, the first of which
+     * is returned. Reads past the first are posted together and collected
+     * in order; a short read marks the end of the file and the rest are
+     * cancelled. The run is sized by maxAhead, but each read also takes
+     * one of the connection's request slots, so posting may wait while
+     * other users of the connection have maxMpxCount requests outstanding.
+     */
+
+    private Page loadPages( long index, int count ) throws SmbException {
+        int n = 1;
+        while( n < count && pages.containsKey( new Long( index + n )) == false ) {
+            n++;
+        }
+        evict( n );
+
+        SmbComReadAndX[] req = new SmbComReadAndX[n];
+        SmbComReadAndXResponse[] rsp = new SmbComReadAndXResponse[n];
+        Page[] run = new Page[n];
+        for( int i = 0; i < n; i++ ) {
+            run[i] = new Page( index + i, pageSize );
+            req[i] = new SmbComReadAndX( file.fid, (index + i) * pageSize, pageSize, null );
+            rsp[i] = new SmbComReadAndXResponse( run[i].b, 0 );
+        }
+
+        if( n == 1 ) {
+            file.send( req[0], rsp[0] );
+            run[0].len = rsp[0].dataLength > 0 ? rsp[0].dataLength : 0;
+            pages.put( new Long( index ), run[0] );
+        } else {
+            int posted = 0, i = 0;
+            try {
+                for( ; posted < n; posted++ ) {
+                    file.tree.post( req[posted], rsp[posted] );
+                }
+                for( ; i < n; i++ ) {
+                    file.tree.collect( req[i], rsp[i] );
+                    run[i].len = rsp[i].dataLength > 0 ? rsp[i].dataLength : 0;
+                    pages.put( new Long( index + i ), run[i] );
+                    if( run[i].len < pageSize ) {
+                        i++;
+                        break;
+                    }
+                }
+            } finally {
+                SmbTransport transport = file.tree.session.transport;
+                for( ; i < posted; i++ ) {
+                    transport.cancel( req[i] );
+                }
+            }
+        }
+        lastMiss = index + n - 1;
+
+        return run[0];
+    }
+
+    /* Make room for count more pages, writing back any dirty page evicted.
+     */
+
+    private void evict( int count ) throws SmbException {
+        while( pages.size() > 0 && pages.size() + count > maxPages ) {
+            Iterator it = pages.values().iterator();
+            Page p = (Page)it.next();
+            if( p.dirtyEnd > p.dirtyStart ) {
+                writePage( p );
+            }
+            it.remove();
+        }
+    }
+    private void writePage( Page p ) throws SmbException {
+        long pos = p.index * pageSize;
+        int off = p.dirtyStart;
+        while( off < p.dirtyEnd ) {
+            int w = p.dirtyEnd - off > writeSize ? writeSize : p.dirtyEnd - off;
+            file.send( new SmbComWriteAndX( file.fid, pos + off,
+                    p.dirtyEnd - off - w, p.b, off, w, null ), write_andx_resp );
+            off += (int)write_andx_resp.count;
+        }
+        p.dirtyStart = p.dirtyEnd = 0;
+    }
+
+/**
+ * Reads up to <tt>dst.remaining()</tt> bytes at <tt>offset</tt> without
+ * waiting for them, so that one thread may have many reads outstanding.
+ * At most one negotiated buffer's worth is read by one call. When the
+ * returned future completes the bytes have been put into <tt>dst</tt>,
+ * which must not be used meanwhile, and its result is an <tt>Integer</tt>
+ * count of the bytes read or -1 at the end of the file. The file pointer
+ * is neither used nor changed.
+ */
+
+    public SmbFuture readAsync( long offset, final ByteBuffer dst ) throws SmbException {
+        if( dst.isReadOnly() ) {
+            throw new ReadOnlyBufferException();
+        }
+
+        /* the server must see what has been written through the cache */
+        flush();
+
+        // ensure file is open
+        if( file.isOpen() == false ) {
+            file.open( openFlags, 0, SmbFile.ATTR_NORMAL, options );
+        }
+
+        int len = dst.remaining() > readSize ? readSize : dst.remaining();
+        final byte[] b;
+        int off;
+        if( dst.hasArray() ) {
+            b = dst.array();
+            off = dst.arrayOffset() + dst.position();
+        } else {
+            b = new byte[len];
+            off = 0;
+        }
+
+        SmbFuture future = new SmbFuture( file ) {
+            void step( ServerMessageBlock request, ServerMessageBlock response ) {
+                int n = ((SmbComReadAndXResponse)response).dataLength;
+                if( n <= 0 ) {
+                    complete( new Integer( -1 ));
+                    return;
+                }
+                if( dst.hasArray() ) {
+                    dst.position( dst.position() + n );
+                } else {
+                    dst.put( b, 0, n );
+                }
+                complete( new Integer( n ));
+            }
+        };
+        if( len == 0 ) {
+            future.complete( new Integer( 0 ));
+            return future;
+        }
+        future.post( new SmbComReadAndX( file.fid, offset, len, null ),
+                    new SmbComReadAndXResponse( b, off ));
+        return future;
+    }
     public final void readFully( byte b[] ) throws SmbException {
         readFully( b, 0, b.length );
     }
@@ -133,6 +370,11 @@ public class SmbRandomAccessFile implements DataOutput, DataInput {
             file.open( openFlags, 0, SmbFile.ATTR_NORMAL, options );
         }
 
+        if( pages != null ) {
+            writeCached( b, off, len );
+            return;
+        }
+
         int w;
         do {
             w = len > writeSize ? writeSize : len;
@@ -142,6 +384,125 @@ public class SmbRandomAccessFile implements DataOutput, DataInput {
             off += write_andx_resp.count;
         } while( len > 0 );
     }
+    private void writeCached( byte b[], int off, int len ) throws SmbException {
+        if( write_andx_resp == null ) {
+            throw new SmbException( "File not opened for writing" );
+        }
+
+        while( len > 0 ) {
+            long index = fp / pageSize;
+            int po = (int)(fp - index * pageSize);
+            int n = len > pageSize - po ? pageSize - po : len;
+            Long key = new Long( index );
+            Page p = (Page)pages.get( key );
+            if( p == null ) {
+                if( n == pageSize ) {
+                    /* the whole page is overwritten, no need to read it */
+                    evict( 1 );
+                    p = new Page( index, pageSize );
+                    pages.put( key, p );
+                } else {
+                    p = loadPages( index, 1 );
+                }
+            }
+            System.arraycopy( b, off, p.b, po, n );
+            if( p.dirtyEnd > p.dirtyStart ) {
+                p.dirtyStart = Math.min( p.dirtyStart, po );
+                p.dirtyEnd = Math.max( p.dirtyEnd, po + n );
+            } else {
+                p.dirtyStart = po;
+                p.dirtyEnd = po + n;
+            }
+            if( po + n > p.len ) {
+                p.len = po + n;
+            }
+            fp += n;
+            off += n;
+            len -= n;
+            if( fp > extent ) {
+                extent = fp;
+            }
+        }
+    }
+
+/**
+ * Writes any data held in the page cache to the server, in file order.
+ */
+
+    public void flush() throws SmbException {
+        if( pages == null ) {
+            return;
+        }
+        long[] dirty = new long[pages.size()];
+        int n = 0;
+        Iterator it = pages.values().iterator();
+        while( it.hasNext() ) {
+            Page p = (Page)it.next();
+            if( p.dirtyEnd > p.dirtyStart ) {
+                dirty[n++] = p.index;
+            }
+        }
+        Arrays.sort( dirty, 0, n );
+        for( int i = 0; i < n; i++ ) {
+            writePage( (Page)pages.get( new Long( dirty[i] )));
+        }
+    }
+
+/**
+ * Writes up to <tt>src.remaining()</tt> bytes at <tt>offset</tt> without
+ * waiting for the server to acknowledge them, so that one thread may have
+ * many writes outstanding. At most one negotiated buffer's worth is
+ * written by one call. The bytes have been sent by the time this method
+ * returns. When the returned future completes the position of
+ * <tt>src</tt> has been advanced by the number of bytes written, which is
+ * also its result as an <tt>Integer</tt>. The file pointer is neither used
+ * nor changed.
+ */
+
+    public SmbFuture writeAsync( long offset, final ByteBuffer src ) throws SmbException {
+        if( write_andx_resp == null ) {
+            throw new SmbException( "File not opened for writing" );
+        }
+
+        /* the write may change or extend any cached page */
+        if( pages != null ) {
+            flush();
+            pages.clear();
+            extent = 0L;
+        }
+
+        // ensure file is open
+        if( file.isOpen() == false ) {
+            file.open( openFlags, 0, SmbFile.ATTR_NORMAL, options );
+        }
+
+        int len = src.remaining() > writeSize ? writeSize : src.remaining();
+        byte[] b;
+        int off;
+        if( src.hasArray() ) {
+            b = src.array();
+            off = src.arrayOffset() + src.position();
+        } else {
+            b = new byte[len];
+            src.duplicate().get( b );
+            off = 0;
+        }
+
+        SmbFuture future = new SmbFuture( file ) {
+            void step( ServerMessageBlock request, ServerMessageBlock response ) {
+                int n = (int)((SmbComWriteAndXResponse)response).count;
+                src.position( src.position() + n );
+                complete( new Integer( n ));
+            }
+        };
+        if( len == 0 ) {
+            future.complete( new Integer( 0 ));
+            return future;
+        }
+        future.post( new SmbComWriteAndX( file.fid, offset, 0, b, off, len, null ),
+                    new SmbComWriteAndXResponse() );
+        return future;
+    }
     public long getFilePointer() throws SmbException {
         return fp;
     }
@@ -149,9 +510,17 @@ public class SmbRandomAccessFile implements DataOutput, DataInput {
         fp = pos;
     }
     public long length() throws SmbException {
+        if( pages != null ) {
+            return Math.max( file.length(), extent );
+        }
         return file.length();
     }
     public void setLength( long newLength ) throws SmbException {
+        if( pages != null ) {
+            flush();
+            pages.clear();
+            extent = 0L;
+        }
         // ensure file is open
         if( file.isOpen() == false ) {
             file.open( openFlags, 0, SmbFile.ATTR_NORMAL, options );
@@ -160,7 +529,16 @@ public class SmbRandomAccessFile implements DataOutput, DataInput {
         file.send( new SmbComWrite( file.fid, (int)(newLength & 0xFFFFFFFFL), 0, tmp, 0, 0 ), rsp );
     }
     public void close() throws SmbException {
-        file.close();
+        try {
+            flush();
+        } finally {
+            if( pages != null ) {
+                pages.clear();
+                lastMiss = -2L;
+                extent = 0L;
+            }
+            file.close();
+        }
     }
 
     public final boolean readBoolean() throws SmbException {
@@ -0,0 +1,167 @@
+/* jcifs smb client library in Java
+ * Copyright (C) 2000  "Michael B. Allen" <jcifs at samba dot org>
+ * 
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ * 
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+
+package jcifs.smb;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+import java.util.LinkedList;
+
+import jcifs.util.LogStream;
+
+/* Reads responses for transports connected with jcifs.smb.client.useNio.
+ * Rather than each connection having a thread blocked reading its socket,
+ * a fixed number of selector threads (jcifs.smb.client.selectors) each
+ * wait on the channels of any number of connections and dispatch each
+ * message as soon as it has been read completely. Connections are spread
+ * over the selectors in turn. Anything that may block, such as response
+ * listeners and the requests they send in turn, or a disconnect, is
+ * handed to the SmbTransport worker threads so that one slow connection cannot hold
+ * up the others on its selector.
+ */
+
+class SmbSelector implements Runnable, SmbConstants {
+
+    static LogStream log = LogStream.getInstance();
+
+    private static final SmbSelector[] selectors = new SmbSelector[SELECTORS < 1 ? 1 : SELECTORS];
+    private static int next = 0;
+
+    static void register( SmbTransport trans ) throws IOException {
+        SmbSelector sel;
+
+        synchronized( selectors ) {
+            if( selectors[next] == null ) {
+                selectors[next] = new SmbSelector( next );
+            }
+            sel = selectors[next];
+            next = (next + 1) % selectors.length;
+        }
+
+        synchronized( sel.added ) {
+            sel.added.add( trans );
+        }
+        sel.selector.wakeup();
+    }
+
+    Selector selector;
+    LinkedList added = new LinkedList();
+    Thread thread;
+
+    SmbSelector( int i ) throws IOException {
+        selector = Selector.open();
+        thread = new Thread( this, "SmbSelector" + i );
+        thread.setDaemon( true );
+        thread.start();
+    }
+
+    public void run() {
+        for( ;; ) {
+            try {
+                selector.select( 1000 );
+
+                synchronized( added ) {
+                    while( added.size() > 0 ) {
+                        SmbTransport trans = (SmbTransport)added.removeFirst();
+                        try {
+                            trans.lastRead = System.currentTimeMillis();
+                            trans.channel.register( selector, SelectionKey.OP_READ, trans );
+                        } catch( ClosedChannelException cce ) {
+                            /* disconnected before it could be registered */
+                        }
+                    }
+                }
+
+                Iterator iter = selector.selectedKeys().iterator();
+                while( iter.hasNext() ) {
+                    SelectionKey key = (SelectionKey)iter.next();
+                    iter.remove();
+                    if( key.isValid() == false ) {
+                        continue;
+                    }
+                    SmbTransport trans = (SmbTransport)key.attachment();
+                    try {
+                        trans.channelRead();
+                    } catch( Exception ex ) {
+                        key.cancel();
+                        trans.channelFailed( ex );
+                    }
+                }
+
+                long now = System.currentTimeMillis();
+                iter = selector.keys().iterator();
+                while( iter.hasNext() ) {
+                    SelectionKey key = (SelectionKey)iter.next();
+                    if( key.isValid() ) {
+                        ((SmbTransport)key.attachment()).checkIdle( now );
+                    }
+                }
+            } catch( Exception ex ) {
+                if( log.level >= 1 )
+                    ex.printStackTrace( log );
+            }
+        }
+    }
+
+    /* Writes to a non-blocking channel on behalf of the sending thread,
+     * waiting on a private selector whenever the socket buffer is full.
+     * Writes are serialized by SmbTransport.doSend.
+     */
+
+    static class ChannelOutputStream extends OutputStream {
+
+        SocketChannel channel;
+        Selector selector;
+
+        ChannelOutputStream( SocketChannel channel ) {
+            this.channel = channel;
+        }
+
+        public void write( int b ) throws IOException {
+            write( new byte[] { (byte)b }, 0, 1 );
+        }
+        public void write( byte[] b, int off, int len ) throws IOException {
+            ByteBuffer buf = ByteBuffer.wrap( b, off, len );
+            while( buf.hasRemaining() ) {
+                if( channel.write( buf ) == 0 ) {
+                    if( selector == null ) {
+                        selector = Selector.open();
+                        channel.register( selector, SelectionKey.OP_WRITE );
+                    }
+                    if( selector.select( SO_TIMEOUT ) == 0 ) {
+                        throw new SocketTimeoutException( "Write timed out" );
+                    }
+                    selector.selectedKeys().clear();
+                }
+            }
+        }
+        public void close() throws IOException {
+            if( selector != null ) {
+                selector.close();
+            }
+            channel.close();
+        }
+    }
+}
@@ -25,6 +25,8 @@ import java.net.UnknownHostException;
 import jcifs.Config;
 import jcifs.UniAddress;
 import jcifs.netbios.NbtAddress;
+import jcifs.util.transport.ResponseListener;
+import jcifs.util.transport.TransportFuture;
 
 /**
  * The class represents a user's session established with an SMB/CIFS
@@ -247,6 +249,25 @@ do {
             }
         }
     }
+    void post( ServerMessageBlock request,
+                            ServerMessageBlock response ) throws SmbException {
+        post( request, response, null );
+    }
+    TransportFuture post( ServerMessageBlock request,
+                            ServerMessageBlock response,
+                            ResponseListener listener ) throws SmbException {
+        synchronized(transport.setupDiscoLock) {
+            expiration = System.currentTimeMillis() + SmbTransport.SO_TIMEOUT;
+            sessionSetup( null, null );
+            request.uid = uid;
+            request.auth = auth;
+            return transport.post( request, response, listener );
+        }
+    }
+    void collect( ServerMessageBlock request,
+                            ServerMessageBlock response ) throws SmbException {
+        transport.collect( request, response );
+    }
     void sessionSetup( ServerMessageBlock andx,
                             ServerMessageBlock andxResponse ) throws SmbException {
         SmbException ex = null;
@@ -21,7 +21,14 @@ package jcifs.smb;
 
 import java.io.*;
 import java.net.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
 import java.util.*;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 
 import jcifs.*;
 import jcifs.netbios.*;
@@ -32,11 +39,30 @@ import jcifs.dcerpc.msrpc.*;
 
 public class SmbTransport extends Transport implements SmbConstants {
 
-    static final byte[] BUF = new byte[0xFFFF];
     static final SmbComNegotiate NEGOTIATE_REQUEST = new SmbComNegotiate();
     static LogStream log = LogStream.getInstance();
     static HashMap dfsRoots = null;
 
+    /* Runs response listeners, requests that waited for a slot, and
+     * disconnects, none of which may block the thread that receives
+     * responses or the timer that expires them. A listener never waits for
+     * a slot, as the requests it posts are queued instead, so at most
+     * jcifs.smb.client.workers daemon threads are needed. They are started
+     * as work arrives and end after a minute idle.
+     */
+    static final ThreadPoolExecutor workers = new ThreadPoolExecutor( WORKERS, WORKERS,
+                60L, TimeUnit.SECONDS, new LinkedBlockingQueue(), new ThreadFactory() {
+        private int n = 0;
+        public synchronized Thread newThread( Runnable r ) {
+            Thread t = new Thread( r, "SmbTransportWorker" + n++ );
+            t.setDaemon( true );
+            return t;
+        }
+    } );
+    static {
+        workers.allowCoreThreadTimeOut( true );
+    }
+
     static synchronized SmbTransport getSmbTransport( UniAddress address, int port ) {
         return getSmbTransport( address, port, LADDR, LPORT );
     }
@@ -88,10 +114,25 @@ public class SmbTransport extends Transport implements SmbConstants {
     int localPort;
     UniAddress address;
     Socket socket;
+    /* With jcifs.smb.client.useNio the socket belongs to this channel and,
+     * once negotiated, responses are read by an SmbSelector rather than the
+     * transport thread. A message is gathered in frame as it arrives and
+     * then decoded from in, which reads the completed frame.
+     */
+    SocketChannel channel;
+    ByteBuffer frameHeader = ByteBuffer.allocate( 4 );
+    ByteBuffer frame;
+    long lastRead;
     int port, mid;
     OutputStream out;
     InputStream in;
     byte[] sbuf = new byte[255]; /* small local buffer */
+    /* Each transport encodes and decodes messages in its own buffers so that
+     * traffic on independent connections is not serialized behind one lock.
+     * Sends may come from any thread; receives only from the transport thread.
+     */
+    byte[] snd_buf = new byte[0xFFFF];
+    byte[] rcv_buf = new byte[0xFFFF];
     SmbComBlankResponse key = new SmbComBlankResponse();
     long sessionExpiration = System.currentTimeMillis() + SO_TIMEOUT;
     LinkedList referrals = new LinkedList();
@@ -174,14 +215,29 @@ public class SmbTransport extends Transport implements SmbConstants {
                 NtlmPasswordAuthentication.NULL.equals( auth ) == false;
     }
 
+    void openSocket( int port ) throws IOException {
+        if (USE_NIO) {
+            channel = SocketChannel.open();
+            socket = channel.socket();
+            try {
+                if (localAddr != null) {
+                    socket.bind( new InetSocketAddress( localAddr, localPort ));
+                }
+                socket.connect( new InetSocketAddress( address.getHostAddress(), port ));
+            } catch( IOException ioe ) {
+                channel.close();
+                throw ioe;
+            }
+        } else if (localAddr == null) {
+            socket = new Socket( address.getHostAddress(), port );
+        } else {
+            socket = new Socket( address.getHostAddress(), port, localAddr, localPort );
+        }
+    }
     void ssn139() throws IOException {
         Name calledName = new Name( address.firstCalledName(), 0x20, null );
         do {
-            if (localAddr == null) {
-                socket = new Socket( address.getHostAddress(), 139 );
-            } else {
-                socket = new Socket( address.getHostAddress(), 139, localAddr, localPort );
-            }
+            openSocket( 139 );
             socket.setSoTimeout( SO_TIMEOUT );
             out = socket.getOutputStream();
             in = socket.getInputStream();
@@ -244,11 +300,7 @@ public class SmbTransport extends Transport implements SmbConstants {
             } else {
                 if (port == 0)
                     port = DEFAULT_PORT; // 445
-                if (localAddr == null) {
-                    socket = new Socket( address.getHostAddress(), port );
-                } else {
-                    socket = new Socket( address.getHostAddress(), port, localAddr, localPort );
-                }
+                openSocket( port );
                 socket.setSoTimeout( SO_TIMEOUT );
                 out = socket.getOutputStream();
                 in = socket.getInputStream();
@@ -328,6 +380,7 @@ public class SmbTransport extends Transport implements SmbConstants {
         }
         maxMpxCount = Math.min( maxMpxCount, server.maxMpxCount );
         if (maxMpxCount < 1) maxMpxCount = 1;
+        slots = new Semaphore( maxMpxCount );
         snd_buf_size = Math.min( snd_buf_size, server.maxBufferSize );
         capabilities &= server.capabilities;
         if ((capabilities & ServerMessageBlock.CAP_UNICODE) == 0) {
@@ -339,6 +392,124 @@ public class SmbTransport extends Transport implements SmbConstants {
                 flags2 &= 0xFFFF ^ ServerMessageBlock.FLAGS2_UNICODE;
             }
         }
+
+        if (USE_NIO) {
+            channel.configureBlocking( false );
+            out = new SmbSelector.ChannelOutputStream( channel );
+            frameHeader.clear();
+            frame = null;
+        }
+    }
+    protected void loop() {
+        if (channel == null) {
+            super.loop();
+            return;
+        }
+        /* The transport thread ends here and an SmbSelector
+         * reads responses from now on
+         */
+        try {
+            SmbSelector.register( this );
+        } catch( IOException ioe ) {
+            channelFailed( ioe );
+        }
+    }
+
+    /* Called by the SmbSelector when the channel is readable. Reads as
+     * much as has arrived and dispatches each message completed. A frame
+     * is taken from the BufferCache only while a message is being read so
+     * that idle connections hold no buffer.
+     */
+
+    void channelRead() throws IOException {
+        lastRead = System.currentTimeMillis();
+        for ( ;; ) {
+            if (frame == null) {
+                if (channel.read( frameHeader ) < 0)
+                    throw new IOException( "end of stream" );
+                if (frameHeader.hasRemaining())
+                    return;
+                byte[] h = frameHeader.array();
+                int size = ((h[1] & 0x01) << 16) | ((h[2] & 0xFF) << 8) | (h[3] & 0xFF);
+                byte[] b = BufferCache.getBuffer( 4 + size );
+                System.arraycopy( h, 0, b, 0, 4 );
+                frame = ByteBuffer.wrap( b, 4, size );
+                frameHeader.clear();
+            }
+            if (frame.hasRemaining()) {
+                if (channel.read( frame ) < 0)
+                    throw new IOException( "end of stream" );
+                if (frame.hasRemaining())
+                    return;
+            }
+
+            byte[] b = frame.array();
+            int n = frame.limit();
+            frame = null;
+            try {
+                if (b[0] != (byte)0x85) { /* Dodge NetBIOS keep-alive */
+                    in = new ByteArrayInputStream( b, 0, n );
+                    Request key = peekKey();
+                    if (key == null)
+                        throw new IOException( "end of stream" );
+                    dispatch( key );
+                }
+            } finally {
+                BufferCache.releaseBuffer( b );
+            }
+        }
+    }
+    void channelFailed( Exception ex ) {
+        if (log.level >= 3)
+            ex.printStackTrace( log );
+        disconnectLater( true );
+    }
+    protected void timedOut() {
+        disconnectLater( true );
+    }
+
+    /* The equivalent of the read timeout on a blocking socket. As in
+     * Transport.loop the disconnect is not hard, so a transport with
+     * requests outstanding stays connected.
+     */
+
+    void checkIdle( long now ) {
+        if (now - lastRead > SO_TIMEOUT) {
+            lastRead = now;
+            disconnectLater( false );
+        }
+    }
+
+    /* Disconnecting may have to wait for setupDiscoLock or for a logoff
+     * response, so it is never done on an SmbSelector thread.
+     */
+
+    private void disconnectLater( final boolean hard ) {
+        final SocketChannel ch = channel;
+        workers.execute( new Runnable() {
+            public void run() {
+                if (channel != ch)
+                    return; /* already reconnected */
+                try {
+                    disconnect( hard );
+                } catch( IOException ioe ) {
+                    ioe.printStackTrace( log );
+                }
+            }
+        } );
+    }
+
+    /* A listener may send further requests, so it is never run on the
+     * thread that receives responses, whether that is the transport thread
+     * or an SmbSelector, nor on the timer that expires requests. Nor is a
+     * request that waited for a slot sent there.
+     */
+
+    protected void runListener( Runnable notification ) {
+        workers.execute( notification );
+    }
+    protected void execute( Runnable send ) {
+        workers.execute( send );
     }
     protected void doDisconnect( boolean hard ) throws IOException {
         ListIterator iter = sessions.listIterator();
@@ -351,6 +522,7 @@ public class SmbTransport extends Transport implements SmbConstants {
         in.close();
         socket.close();
         digest = null;
+        slots = null; /* until the next negotiation */
     }
 
     protected void makeKey( Request request ) throws IOException {
@@ -403,27 +575,27 @@ public class SmbTransport extends Transport implements SmbConstants {
         /* Unless key returned is null or invalid Transport.loop() always
          * calls doRecv() after and no one else but the transport thread
          * should call doRecv(). Therefore it is ok to expect that the data
-         * in sbuf will be preserved for copying into BUF in doRecv().
+         * in sbuf will be preserved for copying into rcv_buf in doRecv().
          */
 
         return key;
     }
 
     protected void doSend( Request request ) throws IOException {
-        synchronized (BUF) {
+        synchronized (snd_buf) {
             ServerMessageBlock smb = (ServerMessageBlock)request;
-            int n = smb.encode( BUF, 4 );
-            Encdec.enc_uint32be( n & 0xFFFF, BUF, 0 ); /* 4 byte session message header */
+            int n = smb.encode( snd_buf, 4 );
+            Encdec.enc_uint32be( n & 0xFFFF, snd_buf, 0 ); /* 4 byte session message header */
             if (log.level >= 4) {
                 do {
                     log.println( smb );
                 } while (smb instanceof AndXServerMessageBlock &&
                         (smb = ((AndXServerMessageBlock)smb).andx) != null);
                 if (log.level >= 6) {
-                    Hexdump.hexdump( log, BUF, 4, n );
+                    Hexdump.hexdump( log, snd_buf, 4, n );
                 }
             }
-            out.write( BUF, 0, 4 + n );
+            out.write( snd_buf, 0, 4 + n );
         }
     }
     protected void doSend0( Request request ) throws IOException {
@@ -445,28 +617,28 @@ public class SmbTransport extends Transport implements SmbConstants {
         ServerMessageBlock resp = (ServerMessageBlock)response;
         resp.useUnicode = useUnicode;
 
-        synchronized (BUF) {
-            System.arraycopy( sbuf, 0, BUF, 0, 4 + HEADER_LENGTH );
-            int size = Encdec.dec_uint16be( BUF, 2 ) & 0xFFFF;
+        synchronized (rcv_buf) {
+            System.arraycopy( sbuf, 0, rcv_buf, 0, 4 + HEADER_LENGTH );
+            int size = Encdec.dec_uint16be( rcv_buf, 2 ) & 0xFFFF;
             if (size < (HEADER_LENGTH + 1) || (4 + size) > rcv_buf_size ) {
                 throw new IOException( "Invalid payload size: " + size );
             }
-            int errorCode = Encdec.dec_uint32le( BUF, 9 ) & 0xFFFFFFFF;
+            int errorCode = Encdec.dec_uint32le( rcv_buf, 9 ) & 0xFFFFFFFF;
             if (resp.command == ServerMessageBlock.SMB_COM_READ_ANDX &&
                         (errorCode == 0 ||
                         errorCode == 0x80000005)) { // overflow indicator normal for pipe
                 SmbComReadAndXResponse r = (SmbComReadAndXResponse)resp;
                 int off = HEADER_LENGTH;
                                     /* WordCount thru dataOffset always 27 */
-                readn( in, BUF, 4 + off, 27 ); off += 27;
-                resp.decode( BUF, 4 );
+                readn( in, rcv_buf, 4 + off, 27 ); off += 27;
+                resp.decode( rcv_buf, 4 );
                 if (r.dataLength > 0) {
-                    readn( in, BUF, 4 + off, r.dataOffset - off);   /* pad */
+                    readn( in, rcv_buf, 4 + off, r.dataOffset - off);   /* pad */
                     readn( in, r.b, r.off, r.dataLength );  /* read direct */
                 }
             } else {
-                readn( in, BUF, 4 + 32, size - 32 );
-                resp.decode( BUF, 4 );
+                readn( in, rcv_buf, 4 + 32, size - 32 );
+                resp.decode( rcv_buf, 4 );
                 if (resp instanceof SmbComTransactionResponse) {
                     ((SmbComTransactionResponse)resp).nextElement();
                 }
@@ -477,13 +649,13 @@ public class SmbTransport extends Transport implements SmbConstants {
              * (perhaps for DOS reasons).
              */
             if (digest != null && resp.errorCode == 0) {
-                digest.verify( BUF, 4, resp );
+                digest.verify( rcv_buf, 4, resp );
             }
 
             if (log.level >= 4) {
                 log.println( response );
                 if (log.level >= 6) {
-                    Hexdump.hexdump( log, BUF, 4, size );
+                    Hexdump.hexdump( log, rcv_buf, 4, size );
                 }
             }
         }
@@ -571,47 +743,46 @@ public class SmbTransport extends Transport implements SmbConstants {
                         makeKey( req );
                     }
 
-                    synchronized (response_map) {
-                        response.received = false;
-                        resp.isReceived = false;
-                        try {
-                            response_map.put( req, resp );
+                    Semaphore slot = takeSlot();
+                    response.received = false;
+                    register( req, resp );
+                    try {
 
-                            /* 
-                             * Send multiple fragments
-                             */
+                        /* 
+                         * Send multiple fragments
+                         */
 
-                            do {
-                                doSend0( req );
-                            } while( req.hasMoreElements() && req.nextElement() != null );
+                        do {
+                            doSend0( req );
+                        } while( req.hasMoreElements() && req.nextElement() != null );
 
-                            /* 
-                             * Receive multiple fragments
-                             */
+                        /* 
+                         * Receive multiple fragments
+                         */
 
-                            long timeout = RESPONSE_TIMEOUT;
+                        long timeout = RESPONSE_TIMEOUT;
+                        synchronized (resp) {
                             resp.expiration = System.currentTimeMillis() + timeout;
                             while( resp.hasMoreElements() ) {
-                                response_map.wait( timeout );
+                                resp.wait( timeout );
                                 timeout = resp.expiration - System.currentTimeMillis();
-                                if (timeout <= 0) {
+                                if (timeout <= 0 && resp.hasMoreElements()) {
                                     throw new TransportException( this +
                                             " timedout waiting for response to " +
                                             req );
                                 }
                             }
-                            if (response.errorCode != 0) {
-                                checkStatus( req, resp );
-                            }
-                        } catch( InterruptedException ie ) {
-                            throw new TransportException( ie );
-                        } finally {
-                            response_map.remove( req );
                         }
+                        if (response.errorCode != 0) {
+                            checkStatus( req, resp );
+                        }
+                    } catch( InterruptedException ie ) {
+                        throw new TransportException( ie );
+                    } finally {
+                        abandon( req, slot );
                     }
                 } finally {
-                    BufferCache.releaseBuffer( req.txn_buf );
-                    BufferCache.releaseBuffer( resp.txn_buf );
+                    BufferCache.releaseBuffers( req, resp );
                 }
 
             } else {
@@ -628,6 +799,82 @@ public class SmbTransport extends Transport implements SmbConstants {
 
         checkStatus( request, response );
     }
+
+    /* Split-phase form of send for simple (non-transaction) requests.
+     * Several requests may be posted before the first is collected, which
+     * lets a reader keep the wire busy rather than waiting a full round
+     * trip per request. Once maxMpxCount requests are outstanding on the
+     * transport, from whatever caller, posting waits for one of them to
+     * complete, or with a listener is queued until one does.
+     */
+
+    void post( ServerMessageBlock request, ServerMessageBlock response ) throws SmbException {
+        post( request, response, null );
+    }
+    TransportFuture post( ServerMessageBlock request,
+                ServerMessageBlock response,
+                ResponseListener listener ) throws SmbException {
+        connect();
+        return post0( request, response, listener );
+    }
+
+    /* Post without connecting, which takes the transport lock, so that an
+     * operation may post its next request from the listener notified of
+     * the previous response. A request with a listener is not collected by
+     * anyone so it is expired by the transport timer instead. A transaction
+     * must fit in a single request; its buffers are released by the
+     * listener however the request ends, or here if it cannot be sent.
+     */
+
+    TransportFuture post0( ServerMessageBlock request,
+                ServerMessageBlock response,
+                ResponseListener listener ) throws SmbException {
+        request.flags2 |= flags2;
+        request.useUnicode = useUnicode;
+        request.response = response;
+        if (request.digest == null)
+            request.digest = digest;
+        response.received = false;
+        response.command = request.command;
+
+        if (request instanceof SmbComTransaction) {
+            SmbComTransaction req = (SmbComTransaction)request;
+            SmbComTransactionResponse resp = (SmbComTransactionResponse)response;
+
+            req.maxBufferSize = snd_buf_size;
+            resp.reset();
+            req.txn_buf = BufferCache.getBuffer( SmbComTransaction.TRANSACTION_BUF_SIZE );
+            resp.txn_buf = BufferCache.getBuffer( SmbComTransaction.TRANSACTION_BUF_SIZE );
+            req.nextElement();
+            if (req.hasMoreElements()) {
+                BufferCache.releaseBuffers( req, resp );
+                throw new SmbException( "Transaction too large to post: " + req );
+            }
+        }
+
+        try {
+            return super.sendAsync( request,
+                        response,
+                        listener == null ? 0L : RESPONSE_TIMEOUT,
+                        listener );
+        } catch( IOException ioe ) {
+            SmbFuture.releaseBuffers( request, response );
+            throw new SmbException( ioe.getMessage(), ioe );
+        }
+    }
+    protected boolean isComplete( Response response ) {
+        return !(response instanceof SmbComTransactionResponse) ||
+                    !((SmbComTransactionResponse)response).hasMoreElements();
+    }
+    void collect( ServerMessageBlock request, ServerMessageBlock response ) throws SmbException {
+        try {
+            super.collect( request, response, RESPONSE_TIMEOUT );
+        } catch( IOException ioe ) {
+            throw new SmbException( ioe.getMessage(), ioe );
+        }
+
+        checkStatus( request, response );
+    }
     public String toString() {
         return super.toString() + "[" + address + ":" + port + "]";
     }
@@ -23,6 +23,8 @@ import java.net.UnknownHostException;
 import jcifs.UniAddress;
 import jcifs.netbios.NbtAddress;
 import jcifs.Config;
+import jcifs.util.transport.ResponseListener;
+import jcifs.util.transport.TransportFuture;
 
 class SmbTree {
 
@@ -121,6 +123,28 @@ class SmbTree {
             throw se;
         }
     }
+    void post( ServerMessageBlock request,
+                            ServerMessageBlock response ) throws SmbException {
+        post( request, response, null );
+    }
+    TransportFuture post( ServerMessageBlock request,
+                            ServerMessageBlock response,
+                            ResponseListener listener ) throws SmbException {
+        treeConnect( null, null );
+        request.tid = tid;
+        return session.post( request, response, listener );
+    }
+    void collect( ServerMessageBlock request,
+                            ServerMessageBlock response ) throws SmbException {
+        try {
+            session.collect( request, response );
+        } catch( SmbException se ) {
+            if (se.getNtStatus() == se.NT_STATUS_NETWORK_NAME_DELETED) {
+                treeDisconnect( true );
+            }
+            throw se;
+        }
+    }
     void treeConnect( ServerMessageBlock andx,
                             ServerMessageBlock andxResponse ) throws SmbException {
         String unc;
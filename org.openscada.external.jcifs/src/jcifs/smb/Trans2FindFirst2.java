@@ -38,6 +38,7 @@ class Trans2FindFirst2 extends SmbComTransaction {
     private int flags;
     private int informationLevel;
     private int searchStorageType = 0;
+    private int searchCount;
     private String wildcard;
 
     // information levels
@@ -54,6 +55,10 @@ class Trans2FindFirst2 extends SmbComTransaction {
     static final int LIST_COUNT = Config.getInt( "jcifs.smb.client.listCount", DEFAULT_LIST_COUNT );
 
     Trans2FindFirst2( String filename, String wildcard, int searchAttributes ) {
+        this( filename, wildcard, searchAttributes, LIST_COUNT, LIST_SIZE );
+    }
+    Trans2FindFirst2( String filename, String wildcard, int searchAttributes,
+                int searchCount, int maxDataCount ) {
         if( filename.equals( "\\" )) {
             this.path = filename;
         } else {
@@ -61,6 +66,7 @@ class Trans2FindFirst2 extends SmbComTransaction {
         }
         this.wildcard = wildcard;
         this.searchAttributes = searchAttributes & 0x37; /* generally ignored tho */
+        this.searchCount = searchCount;
         command = SMB_COM_TRANSACTION2;
         subCommand = TRANS2_FIND_FIRST2;
 
@@ -69,7 +75,7 @@ class Trans2FindFirst2 extends SmbComTransaction {
 
         totalDataCount = 0;
         maxParameterCount = 10;
-        maxDataCount = LIST_SIZE;
+        this.maxDataCount = maxDataCount;
         maxSetupCount = 0;
     }
 
@@ -83,7 +89,7 @@ class Trans2FindFirst2 extends SmbComTransaction {
 
         writeInt2( searchAttributes, dst, dstIndex );
         dstIndex += 2;
-        writeInt2( LIST_COUNT, dst, dstIndex );
+        writeInt2( searchCount, dst, dstIndex );
         dstIndex += 2;
         writeInt2( flags, dst, dstIndex );
         dstIndex += 2;
@@ -110,7 +116,7 @@ class Trans2FindFirst2 extends SmbComTransaction {
     public String toString() {
         return new String( "Trans2FindFirst2[" + super.toString() +
             ",searchAttributes=0x" + Hexdump.toHexString( searchAttributes, 2 ) +
-            ",searchCount=" + LIST_COUNT +
+            ",searchCount=" + searchCount +
             ",flags=0x" + Hexdump.toHexString( flags, 2 ) +
             ",informationLevel=0x" + Hexdump.toHexString( informationLevel, 3 ) +
             ",searchStorageType=" + searchStorageType +
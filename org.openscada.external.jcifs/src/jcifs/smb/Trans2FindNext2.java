@@ -23,10 +23,15 @@ import jcifs.util.Hexdump;
 
 class Trans2FindNext2 extends SmbComTransaction {
 
-    private int sid, informationLevel, resumeKey, flags;
+    private int sid, informationLevel, resumeKey, flags, searchCount;
     private String filename;
 
     Trans2FindNext2( int sid, int resumeKey, String filename ) {
+        this( sid, resumeKey, filename,
+                Trans2FindFirst2.LIST_COUNT, Trans2FindFirst2.LIST_SIZE );
+    }
+    Trans2FindNext2( int sid, int resumeKey, String filename,
+                int searchCount, int maxDataCount ) {
         this.sid = sid;
         this.resumeKey = resumeKey;
         this.filename = filename;
@@ -34,8 +39,9 @@ class Trans2FindNext2 extends SmbComTransaction {
         subCommand = TRANS2_FIND_NEXT2;
         informationLevel = Trans2FindFirst2.SMB_FILE_BOTH_DIRECTORY_INFO;
         flags = 0x00;
+        this.searchCount = searchCount;
         maxParameterCount = 8;
-        maxDataCount = Trans2FindFirst2.LIST_SIZE;
+        this.maxDataCount = maxDataCount;
         maxSetupCount = 0;
     }
 
@@ -56,7 +62,7 @@ class Trans2FindNext2 extends SmbComTransaction {
 
         writeInt2( sid, dst, dstIndex );
         dstIndex += 2;
-        writeInt2( Trans2FindFirst2.LIST_COUNT, dst, dstIndex );
+        writeInt2( searchCount, dst, dstIndex );
         dstIndex += 2;
         writeInt2( informationLevel, dst, dstIndex );
         dstIndex += 2;
@@ -83,7 +89,7 @@ class Trans2FindNext2 extends SmbComTransaction {
     public String toString() {
         return new String( "Trans2FindNext2[" + super.toString() +
             ",sid=" + sid +
-            ",searchCount=" + Trans2FindFirst2.LIST_SIZE +
+            ",searchCount=" + searchCount +
             ",informationLevel=0x" + Hexdump.toHexString( informationLevel, 3 ) +
             ",resumeKey=0x" + Hexdump.toHexString( resumeKey, 4 ) +
             ",flags=0x" + Hexdump.toHexString( flags, 2 ) +
@@ -3,4 +3,5 @@ package jcifs.util.transport;
 public abstract class Response {
     public long expiration;
     public boolean isReceived;
+    TransportFuture future;
 }
@@ -0,0 +1,17 @@
+package jcifs.util.transport;
+
+/**
+ * Receives the outcome of a request sent with
+ * {@link Transport#sendAsync(Request, Response, long, ResponseListener)}.
+ * Listeners are called through <tt>Transport.runListener</tt>. A transport
+ * such as the SMB transport runs them on its pool of worker threads,
+ * otherwise they are called on the thread that receives the response or on
+ * the shared timeout timer thread. Either way they must not block, as the
+ * pool is small and those threads serve every request.
+ */
+
+public interface ResponseListener {
+
+    public void responseReceived( Request request, Response response );
+    public void requestFailed( Request request, TransportException te );
+}
@@ -3,6 +3,7 @@ package jcifs.util.transport;
 import java.io.*;
 import java.net.*;
 import java.util.*;
+import java.util.concurrent.Semaphore;
 import jcifs.util.LogStream;
 
 /**
@@ -51,6 +52,34 @@ public abstract class Transport implements Runnable {
 
     protected HashMap response_map = new HashMap( 4 );
 
+    /* Limits the number of requests outstanding at once, or null if there
+     * is no limit. A subclass sets it once the limit is known, such as
+     * from the protocol negotiation. A permit is taken for each request
+     * sent and returned once its response has been received or skipped or
+     * the connection is torn down, so the limit holds across every caller
+     * of the transport. The server still counts a request that has been
+     * cancelled, so its permit stays with an Abandoned entry in
+     * response_map until the response it no longer wants arrives.
+     */
+    protected volatile Semaphore slots;
+
+    /* Futures with a listener waiting for a slot, in the order they were
+     * sent.
+     */
+    private final LinkedList waiting = new LinkedList();
+
+    /* Stands in response_map for a request whose response is no longer
+     * wanted but whose slot is still held.
+     */
+
+    static class Abandoned extends Response {
+        Semaphore slot;
+
+        Abandoned( Semaphore slot ) {
+            this.slot = slot;
+        }
+    }
+
     protected abstract void makeKey( Request request ) throws IOException;
     protected abstract Request peekKey() throws IOException;
     protected abstract void doSend( Request request ) throws IOException;
@@ -62,56 +91,376 @@ public abstract class Transport implements Runnable {
     public void sendrecv( Request request,
                     Response response,
                     long timeout ) throws IOException {
-        synchronized (response_map) {
-            makeKey( request );
-            response.isReceived = false;
+        sendAsync( request, response, 0L, null );
+        collect( request, response, timeout );
+    }
+
+    /* Send a request without waiting for its response. Any number of
+     * requests may be outstanding at once. The request is registered
+     * before it is sent but the map is not held while sending so that
+     * responses can still be dispatched meanwhile.
+     */
+
+    public void post( Request request, Response response ) throws IOException {
+        sendAsync( request, response, 0L, null );
+    }
+
+/**
+ * Send a request and return at once with a future that is completed
+ * when the response has been read into <tt>response</tt>. If
+ * <tt>timeout</tt> is greater than zero the request fails with a
+ * <tt>TransportException</tt>, and the transport is disconnected, unless
+ * its response arrives within that many milliseconds; the timeouts of all transports are run by a single
+ * shared timer thread. The optional <tt>listener</tt> is notified of the
+ * outcome. Each request must expect a single response message. If the
+ * number of outstanding requests is limited and none more may be sent, a
+ * request with a listener is queued and sent once another completes;
+ * without a listener this method waits instead.
+ */
+
+    public TransportFuture sendAsync( Request request,
+                    Response response,
+                    long timeout,
+                    ResponseListener listener ) throws IOException {
+        TransportFuture future = new TransportFuture( this, request, response, listener );
+        if (listener == null) {
+            future.attachSlot( takeSlot() );
+        } else if (reserve( future ) == false) {
+            /* sent by release once a slot is free */
+            if (timeout > 0L)
+                future.schedule( timeout );
+            return future;
+        }
+        send( future );
+        if (timeout > 0L)
+            future.schedule( timeout );
+        return future;
+    }
+
+    /* Register and send the request of a future that holds its slot. If it
+     * cannot be sent the future is failed and the exception rethrown.
+     */
+
+    private void send( TransportFuture future ) throws IOException {
+        Request request = future.request;
+        Response response = future.response;
+        try {
+            synchronized (response_map) {
+                makeKey( request );
+                response.isReceived = false;
+                response.future = future;
+                put( request, response );
+            }
+        } catch( IOException ioe ) {
+            release( future.detachSlot() );
+            future.complete( new TransportException( "Request not sent: " + request ), true );
+            throw ioe;
+        }
+        try {
+            doSend( request );
+        } catch( IOException ioe ) {
+            abort( future, new TransportException( "Request not sent: " + request, ioe ), false );
+            if (log.level > 2)
+                ioe.printStackTrace( log );
             try {
-                response_map.put( request, response );
-                doSend( request );
-                response.expiration = System.currentTimeMillis() + timeout;
-                while (!response.isReceived) {
-                    response_map.wait( timeout );
-                    timeout = response.expiration - System.currentTimeMillis();
-                    if (timeout <= 0) {
-                        throw new TransportException( name +
-                                " timedout waiting for response to " +
-                                request );
-                    }
+                disconnect( true );
+            } catch( IOException ioe2 ) {
+                ioe2.printStackTrace( log );
+            }
+            throw ioe;
+        }
+    }
+
+    /* Take a slot for a request with a listener without waiting, as it may
+     * be sent from the listener of another. If none is free, or others are
+     * already waiting, the future is queued and false returned.
+     */
+
+    private boolean reserve( TransportFuture future ) {
+        Semaphore slot = slots;
+        if (slot == null)
+            return true;
+        synchronized (waiting) {
+            if (waiting.isEmpty() && slot.tryAcquire()) {
+                future.attachSlot( slot );
+                return true;
+            }
+            waiting.add( future );
+        }
+        return false;
+    }
+
+    /* Give back a slot. If futures are waiting for one it is handed to the
+     * first still pending, whose request is then sent with execute.
+     */
+
+    protected void release( Semaphore slot ) {
+        if (slot == null)
+            return;
+        TransportFuture first;
+        synchronized (waiting) {
+            do {
+                if (slot != slots || waiting.isEmpty()) {
+                    slot.release();
+                    return;
                 }
-            } catch( IOException ioe ) {
-                if (log.level > 2)
-                    ioe.printStackTrace( log );
+                first = (TransportFuture)waiting.removeFirst();
+            } while (first.isDone());
+        }
+        final TransportFuture next = first;
+        next.attachSlot( slot );
+        execute( new Runnable() {
+            public void run() {
                 try {
-                    disconnect( true );
-                } catch( IOException ioe2 ) {
-                    ioe2.printStackTrace( log );
+                    send( next );
+                } catch( IOException ioe ) {
+                    /* the future has been failed */
                 }
-                throw ioe;
+            }
+        } );
+    }
+
+    /* Wait until another request may be outstanding. Returns the semaphore
+     * whose permit was taken, which the caller must give back with release
+     * once the request is done, or null if there is no limit.
+     */
+
+    protected Semaphore takeSlot() throws TransportException {
+        Semaphore slot = slots;
+        if (slot != null) {
+            try {
+                slot.acquire();
             } catch( InterruptedException ie ) {
                 throw new TransportException( ie );
-            } finally {
-                response_map.remove( request );
             }
         }
+        return slot;
+    }
+
+    /* Wait for the response to a request sent with post. Each caller waits
+     * on the future of its own response, which dispatch completes, so that
+     * a response wakes only the thread waiting for it.
+     */
+
+    public void collect( Request request,
+                    Response response,
+                    long timeout ) throws IOException {
+        try {
+            response.future.await( timeout );
+        } catch( IOException ioe ) {
+            if (log.level > 2)
+                ioe.printStackTrace( log );
+            try {
+                disconnect( true );
+            } catch( IOException ioe2 ) {
+                ioe2.printStackTrace( log );
+            }
+            throw ioe;
+        } catch( InterruptedException ie ) {
+            throw new TransportException( ie );
+        } finally {
+            cancel( request );
+        }
+    }
+
+    /* Register a response that its sender waits for itself rather than
+     * through a future, such as one continued by several messages. The
+     * sender removes it again with abandon.
+     */
+
+    protected void register( Request request, Response response ) {
+        synchronized (response_map) {
+            response.isReceived = false;
+            response.future = null;
+            put( request, response );
+        }
+    }
+
+    /* Remove a response registered with register and give back the slot
+     * taken for its request. If the response has not arrived in full the
+     * server may still be working on the request, so the slot is held
+     * until the rest is skipped.
+     */
+
+    protected void abandon( Request request, Semaphore slot ) {
+        synchronized (response_map) {
+            Response response = (Response)response_map.remove( request );
+            if (slot != null && response != null &&
+                        (!response.isReceived || !isComplete( response ))) {
+                response_map.put( request, new Abandoned( slot ) );
+                return;
+            }
+        }
+        release( slot );
+    }
+
+    /* Must be called with response_map locked. An entry left behind by an
+     * abandoned request under the same key gives back its slot.
+     */
+
+    private void put( Request request, Response response ) {
+        Object old = response_map.put( request, response );
+        if (old instanceof Abandoned)
+            release( ((Abandoned)old).slot );
+    }
+
+    /* Abandon an outstanding request. If its response has not yet arrived
+     * it will be skipped by dispatch when it does and its future is
+     * completed as cancelled. The request's slot is held until then.
+     */
+
+    public void cancel( Request request ) {
+        TransportFuture future;
+        synchronized (response_map) {
+            Response response = (Response)response_map.get( request );
+            if (response == null || response instanceof Abandoned)
+                return;
+            future = retire( request, response );
+        }
+        if (future != null) {
+            future.complete( new TransportException(
+                        "Request cancelled: " + request ), true );
+        }
+    }
+
+    /* Fail a future that has not completed. Its response is taken from the
+     * map first so that nothing more is read into it once the listener,
+     * which may give back the buffers it reads into, has been notified.
+     */
+
+    boolean abort( TransportFuture future, TransportException te, boolean cancelled ) {
+        synchronized (response_map) {
+            Response response = (Response)response_map.get( future.request );
+            if (response != null && response.future == future)
+                retire( future.request, response );
+        }
+        return future.complete( te, cancelled );
+    }
+
+    /* Fail a request sent with a timeout that has not been answered in
+     * time. As in collect the connection is then taken to be lost and is
+     * torn down with timedOut, which also returns the slots held by any
+     * other requests the server will not answer. That is so even if the
+     * request was still waiting for a slot, as then none has been
+     * returned for as long.
+     */
+
+    void expire( TransportFuture future, TransportException te ) {
+        if (abort( future, te, false ))
+            timedOut();
+    }
+
+    /* Called on the timer thread when a request has timed out. A transport
+     * whose disconnect may block should override this to disconnect on
+     * another thread.
+     */
+
+    protected void timedOut() {
+        try {
+            disconnect( true );
+        } catch( IOException ioe ) {
+            if (log.level > 2)
+                ioe.printStackTrace( log );
+        }
+    }
+
+    /* Must be called with response_map locked. Remove the response of a
+     * request that is no longer wanted, leaving an Abandoned entry with
+     * its slot, and return its future.
+     */
+
+    private TransportFuture retire( Request request, Response response ) {
+        response_map.remove( request );
+        if (response.future == null)
+            return null;
+        Semaphore slot = response.future.detachSlot();
+        if (slot != null)
+            response_map.put( request, new Abandoned( slot ) );
+        return response.future;
+    }
+
+    /* Receive the message whose header peekKey has just read into the
+     * response registered for it and wake the thread waiting on it, or
+     * skip the message if no request is waiting for it. Once a response
+     * with a future is complete its entry is removed, its slot returned and
+     * the future completed after the map is released. A response registered
+     * with register stays until its sender removes it. The response to an
+     * abandoned request is skipped and only then is its slot returned.
+     */
+
+    protected void dispatch( Request key ) throws IOException {
+        TransportFuture future = null;
+        Semaphore slot = null;
+        synchronized (response_map) {
+            Response response = (Response)response_map.get( key );
+            if (response == null) {
+                if (log.level >= 4)
+                    log.println( "Invalid key, skipping message" );
+                doSkip();
+                return;
+            }
+            if (response instanceof Abandoned) {
+                doSkip();
+                response_map.remove( key );
+                slot = ((Abandoned)response).slot;
+            } else {
+                synchronized (response) {
+                    doRecv( response );
+                    response.isReceived = true;
+                    response.notifyAll();
+                }
+                if (response.future != null && isComplete( response )) {
+                    response_map.remove( key );
+                    future = response.future;
+                    slot = future.detachSlot();
+                }
+            }
+        }
+        release( slot );
+        if (future != null)
+            future.complete( null, false );
     }
-    private void loop() {
+
+    /* Notify the listener of a completed future. By default this is done at
+     * once on the thread that completed it, which may be the thread that
+     * receives responses. A transport whose receiving thread must never
+     * block may override this to hand the notification to another thread.
+     */
+
+    protected void runListener( Runnable notification ) {
+        notification.run();
+    }
+
+    /* Send a request that was waiting for a slot. This is called when a
+     * slot is released, which may be on the thread that receives responses,
+     * so a transport that overrides runListener should override this too.
+     */
+
+    protected void execute( Runnable send ) {
+        send.run();
+    }
+
+    /* Return false if the response will be continued by further messages
+     * that should also be dispatched to it.
+     */
+
+    protected boolean isComplete( Response response ) {
+        return true;
+    }
+
+    /* Read and dispatch responses on the transport thread until the
+     * transport is disconnected. A transport that receives its responses
+     * by other means may override this to return at once, which ends the
+     * thread once the connection has been established.
+     */
+
+    protected void loop() {
         while( thread == Thread.currentThread() ) {
             try {
                 Request key = peekKey();
                 if (key == null)
                     throw new IOException( "end of stream" );
-                synchronized (response_map) {
-                    Response response = (Response)response_map.get( key );
-                    if (response == null) {
-                        if (log.level >= 4)
-                            log.println( "Invalid key, skipping message" );
-                        doSkip();
-                    } else {
-                        doRecv( response );
-                        response.isReceived = true;
-                        response_map.notifyAll();
-                    }
-                }
+                dispatch( key );
             } catch( Exception ex ) {
                 String msg = ex.getMessage();
                 boolean timeout = msg != null && msg.equals( "Read timed out" );
@@ -202,6 +551,14 @@ public abstract class Transport implements Runnable {
         }
     }
     public void disconnect( boolean hard ) throws IOException {
+        ArrayList pending = new ArrayList();
+        try {
+            disconnect( hard, pending );
+        } finally {
+            failPending( pending );
+        }
+    }
+    private void disconnect( boolean hard, ArrayList pending ) throws IOException {
         synchronized(setupDiscoLock) {
             synchronized(this) {
                 switch (state) {
@@ -210,10 +567,14 @@ public abstract class Transport implements Runnable {
                     case 2:
                         hard = true;
                     case 3: /* connected - go ahead and disconnect */
-                        if (response_map.size() != 0 && !hard) {
+                        if (!hard && isBusy()) {
                             break; /* outstanding requests */
                         }
-                        doDisconnect( hard );
+                        try {
+                            doDisconnect( hard );
+                        } finally {
+                            takePending( pending );
+                        }
                     case 4: /* in error - reset the transport */
                         thread = null;
                         state = 0;
@@ -228,6 +589,61 @@ public abstract class Transport implements Runnable {
             }
         }
     }
+    /* Return true if a response is still wanted. Abandoned requests do not
+     * keep the connection open.
+     */
+
+    private boolean isBusy() {
+        synchronized (response_map) {
+            Iterator iter = response_map.values().iterator();
+            while (iter.hasNext()) {
+                if (!(iter.next() instanceof Abandoned))
+                    return true;
+            }
+        }
+        return false;
+    }
+
+    /* Remove every outstanding request once the connection is torn down
+     * and give back the slots they hold. No response can arrive for them
+     * any more.
+     */
+
+    private void takePending( ArrayList pending ) {
+        synchronized (response_map) {
+            Iterator iter = response_map.values().iterator();
+            while (iter.hasNext()) {
+                Response response = (Response)iter.next();
+                Semaphore slot = null;
+                if (response instanceof Abandoned) {
+                    slot = ((Abandoned)response).slot;
+                } else if (response.future != null) {
+                    slot = response.future.detachSlot();
+                    pending.add( response.future );
+                }
+                release( slot );
+            }
+            response_map.clear();
+        }
+        synchronized (waiting) {
+            pending.addAll( waiting );
+            waiting.clear();
+        }
+    }
+
+    /* Fail the futures taken from the map. This is done once the transport
+     * is no longer locked, as their listeners may use it again.
+     */
+
+    private void failPending( ArrayList pending ) {
+        for (int i = 0; i < pending.size(); i++) {
+            TransportFuture future = (TransportFuture)pending.get( i );
+            future.complete( new TransportException( name +
+                        " disconnected before the response to " +
+                        future.getRequest() + " arrived" ), false );
+        }
+    }
+
     public void run() {
         Thread run_thread = Thread.currentThread();
         Exception ex0 = null;
@@ -0,0 +1,192 @@
+package jcifs.util.transport;
+
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * The pending response to a request sent with
+ * {@link Transport#sendAsync(Request, Response, long, ResponseListener)}.
+ * The future is completed by the thread that receives the response, or
+ * with a <tt>TransportException</tt> if the request times out or is
+ * cancelled. {@link #get()} returns the <tt>Response</tt> that was passed
+ * to <tt>sendAsync</tt>.
+ */
+
+public class TransportFuture implements Future {
+
+    /* One daemon timer expires the requests of all transports.
+     */
+    static final Timer timer = new Timer( "TransportTimer", true );
+
+    Transport transport;
+    Request request;
+    Response response;
+    ResponseListener listener;
+    TimerTask timeout;
+    Semaphore slot;
+    TransportException te;
+    boolean done, cancelled;
+
+    TransportFuture( Transport transport,
+                Request request,
+                Response response,
+                ResponseListener listener ) {
+        this.transport = transport;
+        this.request = request;
+        this.response = response;
+        this.listener = listener;
+    }
+
+    public Request getRequest() {
+        return request;
+    }
+    public Response getResponse() {
+        return response;
+    }
+
+    /* Fail the request with a timeout unless it completes within delay
+     * milliseconds, which also disconnects the transport.
+     */
+
+    synchronized void schedule( long delay ) {
+        if (done)
+            return;
+        timeout = new TimerTask() {
+            public void run() {
+                transport.expire( TransportFuture.this,
+                            new TransportException( transport.name +
+                            " timedout waiting for response to " +
+                            request ));
+            }
+        };
+        timer.schedule( timeout, delay );
+    }
+
+    /* Take the request's slot from the future so that it is returned only
+     * once. The transport returns it when the response has been received
+     * or skipped rather than when the future completes.
+     */
+
+    synchronized void attachSlot( Semaphore s ) {
+        slot = s;
+    }
+    synchronized Semaphore detachSlot() {
+        Semaphore s = slot;
+        slot = null;
+        return s;
+    }
+
+    /* Complete the future, successfully if te is null, and notify the
+     * listener through Transport.runListener. Only the first completion
+     * takes effect.
+     */
+
+    boolean complete( TransportException te, boolean cancelled ) {
+        TimerTask t;
+        synchronized (this) {
+            if (done)
+                return false;
+            done = true;
+            this.te = te;
+            this.cancelled = cancelled;
+            t = timeout;
+            notifyAll();
+        }
+        if (t != null)
+            t.cancel();
+        if (listener != null) {
+            final TransportException failure = te;
+            transport.runListener( new Runnable() {
+                public void run() {
+                    notifyListener( failure );
+                }
+            } );
+        }
+        return true;
+    }
+
+    /* An exception thrown by the listener is logged so that it cannot
+     * escape into the thread that notified it.
+     */
+
+    void notifyListener( TransportException te ) {
+        try {
+            if (te == null) {
+                listener.responseReceived( request, response );
+            } else {
+                listener.requestFailed( request, te );
+            }
+        } catch( RuntimeException re ) {
+            if (Transport.log.level >= 2)
+                re.printStackTrace( Transport.log );
+        }
+    }
+
+    /**
+     * Wait up to <tt>timeout</tt> milliseconds for the response. If it does
+     * not arrive in time the future is completed with a
+     * <tt>TransportException</tt> which is then thrown.
+     */
+
+    public Response await( long timeout ) throws TransportException, InterruptedException {
+        synchronized (this) {
+            long expiration = System.currentTimeMillis() + timeout;
+            while (!done && timeout > 0) {
+                wait( timeout );
+                timeout = expiration - System.currentTimeMillis();
+            }
+        }
+        if (!isDone()) {
+            transport.abort( this, new TransportException( transport.name +
+                        " timedout waiting for response to " +
+                        request ), false );
+        }
+        synchronized (this) {
+            if (te != null)
+                throw te;
+        }
+        return response;
+    }
+
+    public boolean cancel( boolean mayInterruptIfRunning ) {
+        return transport.abort( this,
+                    new TransportException( "Request cancelled: " + request ), true );
+    }
+    public synchronized boolean isCancelled() {
+        return cancelled;
+    }
+    public synchronized boolean isDone() {
+        return done;
+    }
+    public synchronized Object get() throws InterruptedException, ExecutionException {
+        while (!done)
+            wait();
+        return result();
+    }
+    public synchronized Object get( long timeout, TimeUnit unit )
+                throws InterruptedException, ExecutionException, TimeoutException {
+        long t = unit.toMillis( timeout );
+        long expiration = System.currentTimeMillis() + t;
+        while (!done) {
+            if (t <= 0)
+                throw new TimeoutException();
+            wait( t );
+            t = expiration - System.currentTimeMillis();
+        }
+        return result();
+    }
+
+    private Object result() throws ExecutionException {
+        if (cancelled)
+            throw new CancellationException();
+        if (te != null)
+            throw new ExecutionException( te );
+        return response;
+    }
+}